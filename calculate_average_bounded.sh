@@ -0,0 +1,34 @@
+#!/bin/sh
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+
+# Memory budget for the whole process, in megabytes. The heap gets a bit
+# over a third of it, the mapped window and the JVM itself share the rest.
+BUDGET_MB=${BUDGET_MB:-256}
+
+# The JVM areas have floors below which the JVM does not start, or the file
+# channel cannot get its temporary direct buffers.
+max() { echo $(( $1 > $2 ? $1 : $2 )); }
+HEAP_MB=$(max $((BUDGET_MB * 3 / 8)) 8)
+METASPACE_MB=$(max $((BUDGET_MB / 16)) 16)
+CODE_CACHE_MB=$(max $((BUDGET_MB / 8)) 8)
+DIRECT_MB=$(max $((BUDGET_MB / 64)) 1)
+
+JAVA_OPTS="--enable-preview -Dbudget=$BUDGET_MB -Xmx${HEAP_MB}m -XX:+UseSerialGC
+-XX:MaxMetaspaceSize=${METASPACE_MB}m -XX:ReservedCodeCacheSize=${CODE_CACHE_MB}m
+-XX:MaxDirectMemorySize=${DIRECT_MB}m -Xss512k"
+java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_bounded
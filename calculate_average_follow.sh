@@ -0,0 +1,24 @@
+#!/bin/sh
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+
+# Stop once the file has not grown for this many milliseconds. The default of 0 aggregates the file as it is and
+# exits, like the other calculate_average_*.sh scripts; use -1 to keep following it until killed.
+FOLLOW_IDLE_EXIT_MS=${FOLLOW_IDLE_EXIT_MS:-0}
+
+JAVA_OPTS="--enable-preview -Dfollow.idleExit=$FOLLOW_IDLE_EXIT_MS"
+java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_follow
@@ -0,0 +1,143 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+set -eo pipefail
+
+if [ -z "$1" ]
+  then
+    echo "Usage: evaluate_cold.sh <fork name> (<fork name 2> ...)"
+    echo " benchmarks each fork with a cold and with a warm page cache and prints both timings side by side."
+    echo " The input file is \$MEASUREMENTS_FILE (default: measurements_1B.txt); it is evicted from the page cache"
+    echo " before every cold run, which needs no root privileges, only read access to the file."
+    exit 1
+fi
+
+BOLD_WHITE='\033[1;37m'
+BOLD_RED='\033[1;31m'
+RESET='\033[0m' # No Color
+
+: "${MEASUREMENTS_FILE:=measurements_1B.txt}"
+: "${RUNS:=5}"
+RUN_TIME_LIMIT=300 # seconds
+
+function check_command_installed {
+  if ! [ -x "$(command -v $1)" ]; then
+    echo "Error: $1 is not installed." >&2
+    exit 1
+  fi
+}
+
+function print_and_execute() {
+  echo "+ $@" >&2
+  "$@"
+}
+
+check_command_installed java
+check_command_installed hyperfine
+check_command_installed jq
+check_command_installed bc
+
+for fork in "$@"; do
+  if [ ! -f "./calculate_average_$fork.sh" ]; then
+    echo -e "${BOLD_RED}ERROR${RESET}: ./calculate_average_$fork.sh does not exist." >&2
+    exit 1
+  fi
+done
+
+if [ ! -f "$MEASUREMENTS_FILE" ]; then
+  echo -e "${BOLD_RED}ERROR${RESET}: $MEASUREMENTS_FILE does not exist." >&2
+  exit 1
+fi
+
+# prepare_*.sh scripts select their JDK through sdkman
+if [ -f "$HOME/.sdkman/bin/sdkman-init.sh" ]; then
+  source "$HOME/.sdkman/bin/sdkman-init.sh"
+fi
+
+print_and_execute ./mvnw --quiet clean verify
+
+print_and_execute rm -f measurements.txt
+print_and_execute ln -s $MEASUREMENTS_FILE measurements.txt
+
+# Fail early if eviction does not work here, e.g. because another process keeps the file mapped
+print_and_execute ./page_cache.sh evict measurements.txt
+
+echo ""
+
+filetimestamp=$(date  +"%Y%m%d%H%M%S")
+failed=()
+for fork in "$@"; do
+  set +e # a failing fork should not end the whole evaluation
+
+  if [ -f "./prepare_$fork.sh" ]; then
+    print_and_execute source "./prepare_$fork.sh"
+  fi
+
+  # The cold runs come first, as the warm runs leave the file in the page cache. --prepare is not part of the
+  # measured time. Only the input is evicted: the JDK, the jar and any native image are in the page cache for both.
+  print_and_execute hyperfine --warmup 0 --runs $RUNS --export-json $fork-$filetimestamp-cold.json \
+    --prepare "./page_cache.sh evict measurements.txt" \
+    "timeout -v $RUN_TIME_LIMIT ./calculate_average_$fork.sh 2>&1"
+  if [ $? -ne 0 ]; then
+    failed+=("$fork")
+    echo ""
+    continue
+  fi
+
+  print_and_execute hyperfine --warmup 1 --runs $RUNS --export-json $fork-$filetimestamp-warm.json \
+    "timeout -v $RUN_TIME_LIMIT ./calculate_average_$fork.sh 2>&1"
+  if [ $? -ne 0 ]; then
+    failed+=("$fork")
+    echo ""
+    continue
+  fi
+  echo ""
+done
+set -e
+
+rm -f measurements.txt
+
+# Trimmed mean as in evaluate.sh: the slowest and the fastest run are discarded
+function trimmed_mean() {
+  jq -r '.results[0].times | sort_by(.|tonumber) | .[1:-1] | add / length' $1
+}
+
+echo -e "${BOLD_WHITE}Cold vs. warm page cache${RESET} ($MEASUREMENTS_FILE, trimmed mean of $RUNS runs)"
+echo ""
+echo "| Implementation     | Cold (s) | Warm (s) | Cold / warm |"
+echo "|--------------------|----------|----------|-------------|"
+for fork in "$@"; do
+  if [[ " ${failed[@]} " =~ " ${fork} " ]]; then
+    echo "| $fork | failed | | |"
+    continue
+  fi
+
+  cold=$(trimmed_mean $fork-$filetimestamp-cold.json)
+  warm=$(trimmed_mean $fork-$filetimestamp-warm.json)
+  ratio=$(echo "scale=2; $cold / $warm" | bc)
+  printf "| %-18s | %8.3f | %8.3f | %11s |\n" $fork $cold $warm $ratio
+done
+echo ""
+
+echo "Raw results saved to file(s):"
+for fork in "$@"; do
+  for mode in cold warm; do
+    if [ -f "$fork-$filetimestamp-$mode.json" ]; then
+      echo "  $fork-$filetimestamp-$mode.json"
+    fi
+  done
+done
@@ -0,0 +1,41 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+
+# Compares the worker placement policies of CpuTopology on the engines that support them:
+# vemana takes a cpuPolicy=<policy> argument, perfecthash a -DcpuPolicy=<policy> system property.
+# "default" runs the engine unchanged, with availableProcessors() unpinned workers.
+#
+# Usage: evaluate_cpu_policies.sh [runs]
+
+set -eo pipefail
+
+RUNS=${1:-5}
+POLICIES="default,all_threads,physical_cores,fill_l3"
+
+if ! [ -x "$(command -v hyperfine)" ]; then
+  echo "Error: hyperfine is not installed." >&2
+  exit 1
+fi
+
+java --enable-preview --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CpuTopology
+
+hyperfine --warmup 1 --runs "$RUNS" --export-markdown cpu_policies_vemana.md -L policy "$POLICIES" \
+  'if [ {policy} = default ]; then ./calculate_average_vemana.sh; else ./calculate_average_vemana.sh cpuPolicy={policy}; fi > /dev/null'
+
+hyperfine --warmup 1 --runs "$RUNS" --export-markdown cpu_policies_perfecthash.md -L policy "$POLICIES" \
+  'if [ {policy} = default ]; then ./calculate_average_perfecthash.sh; else JDK_JAVA_OPTIONS=-DcpuPolicy={policy} ./calculate_average_perfecthash.sh; fi > /dev/null'
@@ -0,0 +1,48 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+# Benchmarks CalculateAverage_hotcold with and without its hot table on uniform (create_measurements.sh, 413
+# stations), 10K-station (create_measurements3.sh) and Zipf-skewed (create_measurements_keyset.sh --zipf) data. Data
+# files are created when missing. Results go to hotcold.md and .json.
+#
+# Usage: evaluate_hotcold.sh [records per file, default 100000000] [runs] [zipf exponent, default 1.2]
+
+set -eo pipefail
+
+RECORDS=${1:-100000000}
+RUNS=${2:-5}
+ZIPF=${3:-1.2}
+
+if ! [ -x "$(command -v hyperfine)" ]; then
+  echo "Error: hyperfine is not installed." >&2
+  exit 1
+fi
+
+if [ ! -f measurements_uniform.txt ]; then
+  ./create_measurements.sh "$RECORDS" && mv measurements.txt measurements_uniform.txt
+fi
+if [ ! -f measurements_10k.txt ]; then
+  ./create_measurements3.sh "$RECORDS" && mv measurements3.txt measurements_10k.txt
+fi
+if [ ! -f "measurements_zipf_$ZIPF.txt" ]; then
+  ./create_measurements_keyset.sh "$RECORDS" 100000 "measurements_zipf_$ZIPF.txt" --zipf "$ZIPF"
+fi
+
+hyperfine --warmup 1 --runs "$RUNS" --export-markdown hotcold.md --export-json hotcold.json \
+  -L data "uniform,10k,zipf_$ZIPF" -L hot true,false \
+  'ln -sf measurements_{data}.txt measurements.txt && JDK_JAVA_OPTIONS=-Dhot={hot} ./calculate_average_hotcold.sh 2>/dev/null > /dev/null'
+
+rm -f measurements.txt
@@ -0,0 +1,48 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+# Benchmarks CalculateAverage_interleaved with every interleave width (1-8 cursors per thread) on measurements.txt,
+# so that the width can be chosen per CPU generation. Results go to interleave_<cpu model>.md and .json, named after
+# the CPU so that runs on different machines can be collected side by side.
+#
+# Usage: evaluate_interleave.sh [runs] [widths, default 1,2,3,4,5,6,7,8]
+
+set -eo pipefail
+
+RUNS=${1:-5}
+WIDTHS=${2:-1,2,3,4,5,6,7,8}
+
+if ! [ -x "$(command -v hyperfine)" ]; then
+  echo "Error: hyperfine is not installed." >&2
+  exit 1
+fi
+
+CPU_MODEL=$(grep -m1 -E '^(model name|Model)' /proc/cpuinfo 2>/dev/null | cut -d: -f2 || true)
+if [ -z "$CPU_MODEL" ]; then
+  CPU_MODEL=$(sysctl -n machdep.cpu.brand_string 2>/dev/null || uname -m)
+fi
+CPU_MODEL=$(echo $CPU_MODEL)
+RESULT=interleave_$(echo "$CPU_MODEL" | tr -c 'A-Za-z0-9\n' '_')
+echo "CPU: $CPU_MODEL, $(nproc) threads"
+
+# The width is a static final read at class initialization, so every width gets its own JVM and JIT compilation
+hyperfine --warmup 1 --runs "$RUNS" --export-markdown "$RESULT.md" --export-json "$RESULT.json" -L width "$WIDTHS" \
+  'JDK_JAVA_OPTIONS=-Dinterleave={width} ./calculate_average_interleaved.sh 2>/dev/null > /dev/null'
+
+echo ""
+echo "Fastest width on $CPU_MODEL:"
+jq -r '.results | sort_by(.median) | .[0] | "  \(.parameters.width) (median \(.median) s)"' "$RESULT.json"
@@ -0,0 +1,49 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+# Benchmarks CalculateAverage_sharedtable with per-thread tables and with the shared table across station
+# cardinalities, to pick the -Dshared.threshold at which the engine switches to the shared table. Keyset files are
+# created with create_measurements_keyset.sh when missing. Results go to shared_table.md and .json.
+#
+# Usage: evaluate_shared_table.sh [records per file, default 100000000] [runs] [station counts, default 1000,100000,2000000]
+
+set -eo pipefail
+
+RECORDS=${1:-100000000}
+RUNS=${2:-5}
+KEYSETS=${3:-1000,100000,2000000}
+
+if ! [ -x "$(command -v hyperfine)" ]; then
+  echo "Error: hyperfine is not installed." >&2
+  exit 1
+fi
+
+for keys in ${KEYSETS//,/ }; do
+  if [ ! -f "measurements_keys_$keys.txt" ]; then
+    ./create_measurements_keyset.sh "$RECORDS" "$keys" "measurements_keys_$keys.txt"
+  fi
+done
+
+echo "$(nproc) threads"
+
+# -Dkeys passes the known cardinality, so both modes get the same table size and no sampling
+hyperfine --warmup 1 --runs "$RUNS" --export-markdown shared_table.md --export-json shared_table.json \
+  -L keys "$KEYSETS" -L table private,shared \
+  'ln -sf measurements_keys_{keys}.txt measurements.txt && JDK_JAVA_OPTIONS="-Dtable={table} -Dkeys={keys}" ./calculate_average_sharedtable.sh 2>/dev/null > /dev/null'
+
+rm -f measurements.txt
+echo ""
+jq -r '.results | group_by(.parameters.keys) | .[] | sort_by(.median) | "\(.[0].parameters.keys) stations: \(.[0].parameters.table) table is fastest (median \(.[0].median) s)"' shared_table.json
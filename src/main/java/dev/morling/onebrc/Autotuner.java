@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches the parameter space of an engine on a sample file and writes the fastest configuration to a per-host
+ * profile, which the engine reads at startup with {@link #loadProfile(String)}.
+ * <p>
+ * The best chunk sizes, table sizes and thread counts depend on cache sizes, core counts and the memory system, so
+ * constants tuned on one machine are off on the next. The search is a coordinate descent: starting from the current
+ * profile (or the engine's defaults), it tries every value of one parameter while keeping the others fixed, keeps the
+ * best and moves on to the next parameter, until a full pass brings no improvement. Every configuration is run
+ * {@code trials} times and judged by its median, and a change is only accepted if it is at least {@link #MIN_GAIN}
+ * faster than the current best, so that noise does not walk the search around. Configurations whose output differs
+ * from the defaults' are rejected.
+ * <p>
+ * Profiles are stored as {@code tuning/<engine>-<host>.properties}, where the host key combines host name,
+ * architecture and CPU count, so a fleet of machines can share one directory. Only engines listed in {@link #SPACES}
+ * can be tuned; they take their parameters as {@code key=value} arguments.
+ * <p>
+ * Usage: {@code autotune.sh <engine> <sample file> [trials] [max passes]}
+ */
+public class Autotuner {
+
+    /** Relative improvement a new value needs over the current best to be accepted. */
+    private static final double MIN_GAIN = 0.02;
+
+    private static final Path PROFILE_DIR = Path.of("tuning");
+
+    public record Parameter(String name, List<String> values) {
+    }
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    /** Parameter spaces of the tunable engines, the first value of each parameter being the engine's default. */
+    static final Map<String, List<Parameter>> SPACES = Map.of(
+            "vemana", List.of(
+                    new Parameter("chunkSizeBits", List.of("20", "16", "17", "18", "19", "21", "22", "23", "24")),
+                    new Parameter("commonChunkFraction", List.of("0.03", "0", "0.01", "0.1", "0.2")),
+                    new Parameter("commonChunkSizeBits", List.of("18", "14", "15", "16", "17", "19", "20")),
+                    new Parameter("hashtableSizeBits", List.of("14", "12", "13", "15", "16", "17")),
+                    new Parameter("munmapFraction", List.of("0.03", "0", "0.1", "0.3")),
+                    new Parameter("nThreads", threadCounts())));
+
+    private static List<String> threadCounts() {
+        List<String> counts = new ArrayList<>(List.of("-1"));
+        for (int n : new int[]{ PROCESSORS / 2, PROCESSORS, PROCESSORS * 2 }) {
+            if (n > 0 && !counts.contains(String.valueOf(n))) {
+                counts.add(String.valueOf(n));
+            }
+        }
+        return counts;
+    }
+
+    // ========================= Profiles =========================
+
+    /** Identifies this machine: host name, architecture and CPU count, e.g. {@code build-7_aarch64_64}. */
+    public static String hostKey() {
+        // Only local data: this runs on every engine start, where a resolver lookup could stall for seconds.
+        String host = System.getenv("HOSTNAME");
+        if (host == null || host.isBlank()) {
+            try {
+                host = Files.readString(Path.of("/etc/hostname")).strip();
+            }
+            catch (IOException e) {
+                host = "";
+            }
+        }
+        if (host.isEmpty()) {
+            host = "unknown";
+        }
+        return (host + "_" + System.getProperty("os.arch") + "_" + PROCESSORS).replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    public static Path profilePath(String engine) {
+        return PROFILE_DIR.resolve(engine + "-" + hostKey() + ".properties");
+    }
+
+    /**
+     * The tuned parameters for this host as {@code key=value} arguments, or an empty list if there is no profile.
+     * Engines put them before their command line arguments, so that explicit arguments still win.
+     */
+    public static List<String> loadProfile(String engine) {
+        Path path = profilePath(engine);
+        if (!Files.isRegularFile(path)) {
+            return List.of();
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        catch (IOException e) {
+            // A broken profile must not break the run, the defaults are always valid.
+            return List.of();
+        }
+        List<String> args = new ArrayList<>();
+        for (String key : properties.stringPropertyNames()) {
+            args.add(key + "=" + properties.getProperty(key));
+        }
+        return args;
+    }
+
+    private static void writeProfile(String engine, Map<String, String> config, String comment) throws IOException {
+        Path path = profilePath(engine);
+        Files.createDirectories(path.getParent());
+        Properties properties = new Properties();
+        properties.putAll(config);
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            properties.store(writer, comment);
+        }
+    }
+
+    // ========================= Search =========================
+
+    private final String engine;
+    private final Path sample;
+    private final int trials;
+    private final Map<Map<String, String>, Double> measured = new HashMap<>();
+    private String expectedOutput;
+
+    Autotuner(String engine, Path sample, int trials) {
+        this.engine = engine;
+        this.sample = sample;
+        this.trials = trials;
+    }
+
+    /** Runs the coordinate descent and returns the best configuration found. */
+    Map<String, String> tune(List<Parameter> space, int maxPasses) throws IOException, InterruptedException {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        space.forEach(p -> defaults.put(p.name(), p.values().get(0)));
+        // The reference output always comes from the defaults, whatever the starting point.
+        expectedOutput = run(defaults);
+
+        Map<String, String> best = new LinkedHashMap<>(defaults);
+        for (String arg : loadProfile(engine)) {
+            String key = arg.substring(0, arg.indexOf('='));
+            if (best.containsKey(key)) {
+                best.put(key, arg.substring(key.length() + 1));
+            }
+        }
+        double bestTime = measure(best);
+        if (Double.isNaN(bestTime)) {
+            // A stale profile with wrong output; nothing compares below NaN, so start from the defaults instead.
+            System.out.printf("start %s: wrong output, starting from the defaults%n", best);
+            best = new LinkedHashMap<>(defaults);
+            bestTime = measure(best);
+        }
+        System.out.printf("start %s: %.3f s%n", best, bestTime);
+
+        for (int pass = 1; pass <= maxPasses; pass++) {
+            boolean improved = false;
+            for (Parameter parameter : space) {
+                for (String value : parameter.values()) {
+                    if (value.equals(best.get(parameter.name()))) {
+                        continue;
+                    }
+                    Map<String, String> candidate = new LinkedHashMap<>(best);
+                    candidate.put(parameter.name(), value);
+                    double time = measure(candidate);
+                    System.out.printf("pass %d %s=%s: %s%n", pass, parameter.name(), value,
+                            Double.isNaN(time) ? "wrong output" : String.format("%.3f s", time));
+                    if (time < bestTime * (1 - MIN_GAIN)) {
+                        best = candidate;
+                        bestTime = time;
+                        improved = true;
+                    }
+                }
+            }
+            System.out.printf("after pass %d %s: %.3f s%n", pass, best, bestTime);
+            if (!improved) {
+                break;
+            }
+        }
+
+        // The winner was measured once, possibly on a lucky streak; compare it against the defaults once more.
+        measured.remove(best);
+        measured.remove(defaults);
+        double defaultTime = measure(defaults);
+        bestTime = measure(best);
+        System.out.printf("defaults: %.3f s, best: %.3f s%n", defaultTime, bestTime);
+        return bestTime < defaultTime * (1 - MIN_GAIN) ? best : defaults;
+    }
+
+    /** Median wall-clock time of {@code trials} runs in seconds, NaN if the output is wrong. */
+    private double measure(Map<String, String> config) throws IOException, InterruptedException {
+        Double known = measured.get(config);
+        if (known != null) {
+            return known;
+        }
+        double[] times = new double[trials];
+        for (int i = 0; i < trials; i++) {
+            long start = System.nanoTime();
+            String output = run(config);
+            times[i] = (System.nanoTime() - start) / 1e9;
+            if (!output.equals(expectedOutput)) {
+                measured.put(config, Double.NaN);
+                return Double.NaN;
+            }
+        }
+        Arrays.sort(times);
+        double median = times[trials / 2];
+        measured.put(Map.copyOf(config), median);
+        return median;
+    }
+
+    private String run(Map<String, String> config) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of("./calculate_average_" + engine + ".sh", "inputfile=" + sample));
+        config.forEach((key, value) -> command.add(key + "=" + value));
+        // Output goes to a file rather than a pipe, so that waiting for it cannot outlast the timeout.
+        Path output = Files.createTempFile("autotune", ".out");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(output.toFile())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (!process.waitFor(10, TimeUnit.MINUTES)) {
+                // The script's JVM too, which would otherwise keep running.
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                return "";
+            }
+            return process.exitValue() == 0 ? Files.readString(output, StandardCharsets.UTF_8) : "";
+        }
+        finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    // ========================= Command line =========================
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !SPACES.containsKey(args[0])) {
+            System.err.println("Usage: Autotuner <engine> <sample file> [trials] [max passes]");
+            System.err.println("Tunable engines: " + SPACES.keySet());
+            System.exit(1);
+        }
+        String engine = args[0];
+        Path sample = Path.of(args[1]);
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int maxPasses = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        Autotuner tuner = new Autotuner(engine, sample, trials);
+        Map<String, String> best = tuner.tune(SPACES.get(engine), maxPasses);
+        if (tuner.expectedOutput.isEmpty()) {
+            System.err.println("The engine failed with its default parameters, no profile written.");
+            System.exit(1);
+        }
+        writeProfile(engine, best, "Tuned on " + sample.getFileName() + ", " + trials + " trials per configuration");
+        System.out.println("Wrote " + profilePath(engine) + ": " + best);
+    }
+}
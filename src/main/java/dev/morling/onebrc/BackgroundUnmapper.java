@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps a file in chunks, hands out segments of those chunks to worker threads and unmaps every chunk from a
+ * dedicated thread as soon as all of its segments are processed.
+ * <p>
+ * Unmapping a large file takes a while, and doing it at the end (explicitly or implicitly at exit) adds directly to
+ * the runtime. Entries hide it in different ways: thomaswue, jerrinot and abeobk start a {@code --worker} subprocess
+ * and return as soon as it closed its output, shipilev releases buffers through their private cleaners and vemana
+ * unmaps a fraction of the shards from its own threads. Here every chunk gets its own shared {@link Arena}, and closing
+ * those arenas overlaps with the processing of the remaining chunks. When the last segment is done, only the chunks
+ * still in flight are mapped; the result can be printed without waiting for them.
+ * <p>
+ * Chunks are mapped with {@code overlap} extra bytes past their end, so that a worker can finish the last line of a
+ * segment, and over-read a few words, without crossing into the next chunk. Segments never span two chunks.
+ * <p>
+ * Any state that outlives a segment must not point into the mapping, e.g. station names have to be copied.
+ */
+public class BackgroundUnmapper implements AutoCloseable {
+
+    /**
+     * A piece of a chunk to process: raw addresses, not aligned to lines. {@code first} and {@code last} tell whether
+     * it starts at the beginning or ends at the end of the file.
+     */
+    public record Segment(int chunk, long start, long end, boolean first, boolean last) {
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long chunkSize;
+    private final int segmentSize;
+    private final long overlap;
+    private final Arena[] arenas;
+    private final long[] addresses;
+    private final AtomicIntegerArray pendingSegments;
+    private final AtomicLong cursor = new AtomicLong();
+    private final LinkedBlockingQueue<Integer> unmapQueue = new LinkedBlockingQueue<>();
+    private final Thread unmapper;
+
+    /**
+     * @param chunkSize size of a mapping, a multiple of {@code segmentSize}
+     * @param segmentSize size of a unit of work handed out by {@link #claim()}
+     * @param overlap bytes mapped past the end of every chunk, at least the maximum line length plus over-reads
+     */
+    public BackgroundUnmapper(Path file, long chunkSize, int segmentSize, long overlap) throws IOException {
+        if (chunkSize % segmentSize != 0) {
+            throw new IllegalArgumentException("Chunk size " + chunkSize + " is not a multiple of segment size " + segmentSize);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.chunkSize = chunkSize;
+        this.segmentSize = segmentSize;
+        this.overlap = overlap;
+
+        int chunks = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+        this.arenas = new Arena[chunks];
+        this.addresses = new long[chunks];
+        this.pendingSegments = new AtomicIntegerArray(chunks);
+        for (int i = 0; i < chunks; i++) {
+            long offset = i * chunkSize;
+            long length = Math.min(fileSize - offset, chunkSize);
+            arenas[i] = Arena.ofShared();
+            addresses[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(fileSize - offset, length + overlap), arenas[i]).address();
+            pendingSegments.set(i, (int) ((length + segmentSize - 1) / segmentSize));
+        }
+
+        this.unmapper = new Thread(this::unmapLoop, "unmapper");
+        this.unmapper.setDaemon(true);
+        this.unmapper.start();
+    }
+
+    public long fileSize() {
+        return fileSize;
+    }
+
+    public int chunks() {
+        return arenas.length;
+    }
+
+    /** Address of the first byte of a chunk. */
+    public long chunkAddress(int chunk) {
+        return addresses[chunk];
+    }
+
+    /** Size of a chunk, without the overlap. */
+    public long chunkLength(int chunk) {
+        return Math.min(chunkSize, fileSize - chunk * chunkSize);
+    }
+
+    /** Address of the given file offset, which has to lie within the mapping of {@code chunk}. */
+    public long address(int chunk, long fileOffset) {
+        return addresses[chunk] + fileOffset - chunk * chunkSize;
+    }
+
+    /** The next segment to process, or null when the whole file has been handed out. */
+    public Segment claim() {
+        long offset = cursor.getAndAdd(segmentSize);
+        if (offset >= fileSize) {
+            return null;
+        }
+        int chunk = (int) (offset / chunkSize);
+        long end = Math.min(fileSize, offset + segmentSize);
+        return new Segment(chunk, address(chunk, offset), address(chunk, end), offset == 0, end == fileSize);
+    }
+
+    /** Marks a segment as processed; the last segment of a chunk queues the chunk for unmapping. */
+    public void complete(Segment segment) {
+        if (pendingSegments.decrementAndGet(segment.chunk()) == 0) {
+            unmapQueue.add(segment.chunk());
+        }
+    }
+
+    private void unmapLoop() {
+        try {
+            for (int closed = 0; closed < arenas.length; closed++) {
+                int chunk = unmapQueue.take();
+                arenas[chunk].close();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until all chunks are unmapped and closes the file. Not needed at the end of a run: the remaining chunks
+     * are unmapped by the daemon thread or by the operating system at exit.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            unmapper.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.reflect.Field;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+import sun.misc.Unsafe;
+
+/**
+ * Map from byte string keys to min/max/sum/count statistics of int values, the data structure at the heart of most
+ * entries, as a reusable collection.
+ * <p>
+ * The layout follows what worked best across the entries:
+ * <ul>
+ * <li>Entries are stored densely in insertion order, one 64-byte record each (key words, hash and length, pool offset,
+ * min, max, sum, count), and a separate power-of-two index of entry numbers is probed linearly. Iteration in insertion
+ * order is a scan of the records, and growing only rehashes the small index.</li>
+ * <li>The first 16 bytes of every key are stored inline as two words, as in melgenek's {@code LongTable} and
+ * thomaswue's {@code firstNameWord}/{@code secondNameWord}; together with the length this decides most lookups
+ * without touching the key bytes. Longer keys are also copied to a key pool and compared there.</li>
+ * <li>The stored hash has its low 16 bits replaced by the key length, so one compare rejects most mismatches.</li>
+ * </ul>
+ * Storage is either on the Java heap or off-heap ({@link #offHeap(int)}), the latter freed by {@link #close()}. Both
+ * use the same code: all accesses go through {@link Unsafe} with a base object (the array, or null off-heap) and an
+ * offset, like in the entries. Going through {@link MemorySegment}s instead made the map slower than
+ * {@code HashMap}, as the accesses mix heap and native segments of different element types.
+ * <p>
+ * Not thread-safe; aggregate per thread and {@link #merge} the results. Keys can be at most 65535 bytes long.
+ * {@link #forEachSorted} orders keys by unsigned bytes, which for UTF-8 is code point order; it only differs from
+ * {@code String} order for keys with characters beyond the Basic Multilingual Plane.
+ * <p>
+ * {@code ByteKeyStatsMapTest} checks it against a plain map, and {@code ByteKeyStatsMapBenchmark} compares its speed with
+ * {@code HashMap<String, IntSummaryStatistics>}.
+ */
+public final class ByteKeyStatsMap implements AutoCloseable {
+
+    private static final Unsafe UNSAFE = initUnsafe();
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Layout of an entry record.
+    private static final int ENTRY_SIZE = 64;
+    private static final int WORD0 = 0;
+    private static final int WORD1 = 8;
+    private static final int HASH_AND_LENGTH = 16;
+    private static final int KEY_OFFSET = 24;
+    private static final int MIN = 32;
+    private static final int MAX = 40;
+    private static final int SUM = 48;
+    private static final int COUNT = 56;
+
+    private static final int INLINE_KEY_BYTES = 16;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+    public record Stats(int min, int max, long sum, long count) {
+        public double mean() {
+            return (double) sum / count;
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(byte[] key, int min, int max, long sum, long count);
+    }
+
+    private final boolean offHeap;
+    // Each area is a base object (null off-heap) plus an offset or address.
+    private Object entriesBase;
+    private long entriesAddress;
+    private Object indexBase;
+    private long indexAddress;
+    private Object poolBase;
+    private long poolAddress;
+    private long poolCapacity;
+    private int indexMask;
+    private int size;
+    private long poolUsed;
+
+    private ByteKeyStatsMap(boolean offHeap, int expectedKeys) {
+        this.offHeap = offHeap;
+        int indexCapacity = Integer.highestOneBit(Math.max(16, expectedKeys) * 2 - 1) << 1;
+        this.indexMask = indexCapacity - 1;
+        allocateEntries(indexCapacity / 2);
+        allocateIndex(indexCapacity);
+        allocatePool(Math.max(1024, expectedKeys * 32L));
+    }
+
+    /** A map on the Java heap, sized for {@code expectedKeys} without growing. */
+    public static ByteKeyStatsMap onHeap(int expectedKeys) {
+        return new ByteKeyStatsMap(false, expectedKeys);
+    }
+
+    /** A map in native memory, which has to be {@link #close() closed}. */
+    public static ByteKeyStatsMap offHeap(int expectedKeys) {
+        return new ByteKeyStatsMap(true, expectedKeys);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // ========================= Updates =========================
+
+    public void add(byte[] key, int value) {
+        add(key, 0, key.length, value);
+    }
+
+    public void add(byte[] key, int offset, int length, int value) {
+        Objects.checkFromIndexSize(offset, length, key.length);
+        addAt(key, Unsafe.ARRAY_BYTE_BASE_OFFSET + offset, length, value);
+    }
+
+    /** Adds a value for the key stored at {@code [offset, offset + length)} of {@code source}, e.g. a mapped file. */
+    public void add(MemorySegment source, long offset, int length, int value) {
+        Objects.checkFromIndexSize(offset, length, source.byteSize());
+        if (source.isNative()) {
+            addAt(null, source.address() + offset, length, value);
+        }
+        else {
+            add(source.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE), value);
+        }
+    }
+
+    /** Adds a value for the key at a raw native address, for callers that already work with addresses. */
+    public void add(long address, int length, int value) {
+        addAt(null, address, length, value);
+    }
+
+    private void addAt(Object base, long address, int length, int value) {
+        long offset = lookup(base, address, length, true);
+        // Read after the lookup, which may have grown the entries.
+        long entry = entriesAddress + offset;
+        Object e = entriesBase;
+        UNSAFE.putLong(e, entry + MIN, Math.min(UNSAFE.getLong(e, entry + MIN), value));
+        UNSAFE.putLong(e, entry + MAX, Math.max(UNSAFE.getLong(e, entry + MAX), value));
+        UNSAFE.putLong(e, entry + SUM, UNSAFE.getLong(e, entry + SUM) + value);
+        UNSAFE.putLong(e, entry + COUNT, UNSAFE.getLong(e, entry + COUNT) + 1);
+    }
+
+    /** Adds all statistics of {@code other} to this map. */
+    public void merge(ByteKeyStatsMap other) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot merge a map into itself");
+        }
+        Object o = other.entriesBase;
+        for (int i = 0; i < other.size; i++) {
+            long source = other.entriesAddress + (long) i * ENTRY_SIZE;
+            int length = (int) (UNSAFE.getLong(o, source + HASH_AND_LENGTH) & MAX_KEY_LENGTH);
+            long offset = length <= INLINE_KEY_BYTES
+                    ? lookup(o, source + WORD0, length, true)
+                    : lookup(other.poolBase, other.poolAddress + UNSAFE.getLong(o, source + KEY_OFFSET), length, true);
+            long entry = entriesAddress + offset;
+            Object e = entriesBase;
+            UNSAFE.putLong(e, entry + MIN, Math.min(UNSAFE.getLong(e, entry + MIN), UNSAFE.getLong(o, source + MIN)));
+            UNSAFE.putLong(e, entry + MAX, Math.max(UNSAFE.getLong(e, entry + MAX), UNSAFE.getLong(o, source + MAX)));
+            UNSAFE.putLong(e, entry + SUM, UNSAFE.getLong(e, entry + SUM) + UNSAFE.getLong(o, source + SUM));
+            UNSAFE.putLong(e, entry + COUNT, UNSAFE.getLong(e, entry + COUNT) + UNSAFE.getLong(o, source + COUNT));
+        }
+    }
+
+    // Returns the offset of the key's entry record in the entries area, creating it if {@code insert} is set, -1
+    // otherwise.
+    private long lookup(Object base, long address, int length, boolean insert) {
+        if (length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key too long: " + length + " bytes");
+        }
+        long word0;
+        long word1 = 0;
+        if (length >= 16) {
+            word0 = load(base, address);
+            word1 = load(base, address + 8);
+        }
+        else if (length > 8) {
+            word0 = load(base, address);
+            // The last 8 bytes of the key, shifted down to the ones not in word0.
+            word1 = load(base, address + length - 8) >>> ((16 - length) << 3);
+        }
+        else if (length == 8) {
+            word0 = load(base, address);
+        }
+        else {
+            word0 = loadShort(base, address, length);
+        }
+        long hash = (word0 ^ Long.rotateLeft(word1, 29)) * 0x9E3779B97F4A7C15L;
+        if (length > INLINE_KEY_BYTES) {
+            hash = hashTail(base, address, length, hash);
+        }
+        long hashAndLength = (hash & ~(long) MAX_KEY_LENGTH) | length;
+
+        // The index uses the upper half of the hash, where the multiplications leave the most entropy.
+        int slot = (int) (hashAndLength >>> 32) & indexMask;
+        while (true) {
+            int number = UNSAFE.getInt(indexBase, indexAddress + slot * 4L);
+            if (number == 0) {
+                return insert ? insert(slot, base, address, length, word0, word1, hashAndLength) : -1;
+            }
+            long offset = (number - 1L) * ENTRY_SIZE;
+            long entry = entriesAddress + offset;
+            if (UNSAFE.getLong(entriesBase, entry + HASH_AND_LENGTH) == hashAndLength
+                    && UNSAFE.getLong(entriesBase, entry + WORD0) == toStored(word0)
+                    && UNSAFE.getLong(entriesBase, entry + WORD1) == toStored(word1)
+                    && (length <= INLINE_KEY_BYTES || poolEquals(UNSAFE.getLong(entriesBase, entry + KEY_OFFSET), base, address, length))) {
+                return offset;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    private long insert(int slot, Object base, long address, int length, long word0, long word1, long hashAndLength) {
+        if (size == (indexMask + 1) / 2) {
+            grow();
+            // The slot was computed for the old index.
+            return lookup(base, address, length, true);
+        }
+        long keyOffset = 0;
+        if (length > INLINE_KEY_BYTES) {
+            if (poolUsed + length > poolCapacity) {
+                growPool(poolUsed + length);
+            }
+            keyOffset = poolUsed;
+            UNSAFE.copyMemory(base, address, poolBase, poolAddress + keyOffset, length);
+            poolUsed += length;
+        }
+        long offset = (long) size * ENTRY_SIZE;
+        long entry = entriesAddress + offset;
+        // Stored in byte order of the key, so that short keys can be read back from the record.
+        UNSAFE.putLong(entriesBase, entry + WORD0, toStored(word0));
+        UNSAFE.putLong(entriesBase, entry + WORD1, toStored(word1));
+        UNSAFE.putLong(entriesBase, entry + HASH_AND_LENGTH, hashAndLength);
+        UNSAFE.putLong(entriesBase, entry + KEY_OFFSET, keyOffset);
+        UNSAFE.putLong(entriesBase, entry + MIN, Integer.MAX_VALUE);
+        UNSAFE.putLong(entriesBase, entry + MAX, Integer.MIN_VALUE);
+        UNSAFE.putLong(entriesBase, entry + SUM, 0);
+        UNSAFE.putLong(entriesBase, entry + COUNT, 0);
+        size++;
+        UNSAFE.putInt(indexBase, indexAddress + slot * 4L, size);
+        return offset;
+    }
+
+    private long hashTail(Object base, long address, int length, long hash) {
+        int i = INLINE_KEY_BYTES;
+        for (; i + 8 <= length; i += 8) {
+            hash = (hash ^ load(base, address + i)) * 0x9E3779B97F4A7C15L;
+        }
+        if (i < length) {
+            // Keys this long have at least 8 bytes before the end, so read those and drop the ones already hashed.
+            hash = (hash ^ (load(base, address + length - 8) >>> ((8 - (length - i)) << 3))) * 0x9E3779B97F4A7C15L;
+        }
+        return hash;
+    }
+
+    private boolean poolEquals(long keyOffset, Object base, long address, int length) {
+        long pooled = poolAddress + keyOffset;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(poolBase, pooled + i) != UNSAFE.getLong(base, address + i)) {
+                return false;
+            }
+        }
+        return i == length || UNSAFE.getLong(poolBase, pooled + length - 8) == UNSAFE.getLong(base, address + length - 8);
+    }
+
+    // Little-endian word, whatever the platform: the first key byte is the lowest.
+    private static long load(Object base, long address) {
+        long word = UNSAFE.getLong(base, address);
+        return BIG_ENDIAN ? Long.reverseBytes(word) : word;
+    }
+
+    // A key shorter than 8 bytes, without reading past its end.
+    private static long loadShort(Object base, long address, int length) {
+        long word = 0;
+        int shift = 0;
+        if ((length & 4) != 0) {
+            int i = UNSAFE.getInt(base, address);
+            word = (BIG_ENDIAN ? Integer.reverseBytes(i) : i) & 0xFFFFFFFFL;
+            shift = 32;
+            address += 4;
+        }
+        if ((length & 2) != 0) {
+            short s = UNSAFE.getShort(base, address);
+            word |= ((BIG_ENDIAN ? Short.reverseBytes(s) : s) & 0xFFFFL) << shift;
+            shift += 16;
+            address += 2;
+        }
+        if ((length & 1) != 0) {
+            word |= (UNSAFE.getByte(base, address) & 0xFFL) << shift;
+        }
+        return word;
+    }
+
+    private static long toStored(long word) {
+        return BIG_ENDIAN ? Long.reverseBytes(word) : word;
+    }
+
+    // ========================= Memory =========================
+
+    private void grow() {
+        int indexCapacity = (indexMask + 1) * 2;
+        Object oldBase = entriesBase;
+        long oldAddress = entriesAddress;
+        allocateEntries(indexCapacity / 2);
+        UNSAFE.copyMemory(oldBase, oldAddress, entriesBase, entriesAddress, (long) size * ENTRY_SIZE);
+        free(oldBase, oldAddress);
+
+        free(indexBase, indexAddress);
+        allocateIndex(indexCapacity);
+        indexMask = indexCapacity - 1;
+        for (int i = 0; i < size; i++) {
+            long hashAndLength = UNSAFE.getLong(entriesBase, entriesAddress + (long) i * ENTRY_SIZE + HASH_AND_LENGTH);
+            int slot = (int) (hashAndLength >>> 32) & indexMask;
+            while (UNSAFE.getInt(indexBase, indexAddress + slot * 4L) != 0) {
+                slot = (slot + 1) & indexMask;
+            }
+            UNSAFE.putInt(indexBase, indexAddress + slot * 4L, i + 1);
+        }
+    }
+
+    private void growPool(long needed) {
+        Object oldBase = poolBase;
+        long oldAddress = poolAddress;
+        allocatePool(Math.max(needed, poolCapacity * 2));
+        UNSAFE.copyMemory(oldBase, oldAddress, poolBase, poolAddress, poolUsed);
+        free(oldBase, oldAddress);
+    }
+
+    private void allocateEntries(int capacity) {
+        long bytes = (long) capacity * ENTRY_SIZE;
+        if (offHeap) {
+            entriesBase = null;
+            entriesAddress = allocateZeroed(bytes);
+        }
+        else {
+            entriesBase = new long[Math.toIntExact(bytes / 8)];
+            entriesAddress = Unsafe.ARRAY_LONG_BASE_OFFSET;
+        }
+    }
+
+    private void allocateIndex(int capacity) {
+        if (offHeap) {
+            indexBase = null;
+            indexAddress = allocateZeroed(capacity * 4L);
+        }
+        else {
+            indexBase = new int[capacity];
+            indexAddress = Unsafe.ARRAY_INT_BASE_OFFSET;
+        }
+    }
+
+    private void allocatePool(long bytes) {
+        if (offHeap) {
+            poolBase = null;
+            poolAddress = UNSAFE.allocateMemory(bytes);
+        }
+        else {
+            poolBase = new byte[Math.toIntExact(bytes)];
+            poolAddress = Unsafe.ARRAY_BYTE_BASE_OFFSET;
+        }
+        poolCapacity = bytes;
+    }
+
+    private static long allocateZeroed(long bytes) {
+        long address = UNSAFE.allocateMemory(bytes);
+        UNSAFE.setMemory(address, bytes, (byte) 0);
+        return address;
+    }
+
+    private void free(Object base, long address) {
+        if (offHeap && base == null && address != 0) {
+            UNSAFE.freeMemory(address);
+        }
+    }
+
+    // ========================= Queries =========================
+
+    /** The statistics of a key, or null if it was never added. */
+    public Stats get(byte[] key) {
+        long offset = lookup(key, Unsafe.ARRAY_BYTE_BASE_OFFSET, key.length, false);
+        return offset < 0 ? null : stats(entriesAddress + offset);
+    }
+
+    private Stats stats(long entry) {
+        return new Stats((int) UNSAFE.getLong(entriesBase, entry + MIN), (int) UNSAFE.getLong(entriesBase, entry + MAX),
+                UNSAFE.getLong(entriesBase, entry + SUM), UNSAFE.getLong(entriesBase, entry + COUNT));
+    }
+
+    private byte[] key(int i) {
+        long entry = entriesAddress + (long) i * ENTRY_SIZE;
+        int length = (int) (UNSAFE.getLong(entriesBase, entry + HASH_AND_LENGTH) & MAX_KEY_LENGTH);
+        byte[] key = new byte[length];
+        if (length <= INLINE_KEY_BYTES) {
+            UNSAFE.copyMemory(entriesBase, entry + WORD0, key, Unsafe.ARRAY_BYTE_BASE_OFFSET, length);
+        }
+        else {
+            UNSAFE.copyMemory(poolBase, poolAddress + UNSAFE.getLong(entriesBase, entry + KEY_OFFSET), key, Unsafe.ARRAY_BYTE_BASE_OFFSET, length);
+        }
+        return key;
+    }
+
+    /** Visits all entries in insertion order. */
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            visit(i, key(i), consumer);
+        }
+    }
+
+    /** Visits all entries in unsigned byte order of their keys. */
+    public void forEachSorted(EntryConsumer consumer) {
+        byte[][] keys = new byte[size][];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = key(i);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> keys[i], Arrays::compareUnsigned));
+        for (int i : order) {
+            visit(i, keys[i], consumer);
+        }
+    }
+
+    private void visit(int i, byte[] key, EntryConsumer consumer) {
+        long entry = entriesAddress + (long) i * ENTRY_SIZE;
+        consumer.accept(key, (int) UNSAFE.getLong(entriesBase, entry + MIN), (int) UNSAFE.getLong(entriesBase, entry + MAX),
+                UNSAFE.getLong(entriesBase, entry + SUM), UNSAFE.getLong(entriesBase, entry + COUNT));
+    }
+
+    /** Frees the native memory of an off-heap map, which must not be used afterwards; a no-op for heap maps. */
+    @Override
+    public void close() {
+        if (offHeap && entriesAddress != 0) {
+            UNSAFE.freeMemory(entriesAddress);
+            UNSAFE.freeMemory(indexAddress);
+            UNSAFE.freeMemory(poolAddress);
+            entriesAddress = indexAddress = poolAddress = 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IntSummaryStatistics;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Compares {@link ByteKeyStatsMap} with {@code HashMap<String, IntSummaryStatistics>}; {@code ByteKeyStatsMapTest}
+ * checks its correctness.
+ * <p>
+ * The benchmark parses the beginning of a measurements file into (key, tenths) rows once, and times only the
+ * aggregation into each map, best of several rounds after warmup, checking that all produce the same result. JMH is
+ * not part of this build; with every round being a few hundred milliseconds and the best of many taken, JIT warmup
+ * and noise are small compared to the differences measured.
+ * <p>
+ * Usage: {@code benchmark_bytekeymap.sh [measurements file] [megabytes] [rounds]}
+ */
+public class ByteKeyStatsMapBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        Path file = Path.of(args.length > 0 ? args[0] : "measurements.txt");
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        benchmark(file, megabytes, rounds);
+    }
+
+    // ========================= Benchmark =========================
+
+    private static void benchmark(Path file, int megabytes, int rounds) throws IOException {
+        byte[] data;
+        try (InputStream in = Files.newInputStream(file)) {
+            data = in.readNBytes(megabytes << 20);
+        }
+        // Only complete lines.
+        int length = data.length;
+        while (length > 0 && data[length - 1] != '\n') {
+            length--;
+        }
+
+        int rows = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                rows++;
+            }
+        }
+        int[] keyOffsets = new int[rows];
+        int[] keyLengths = new int[rows];
+        int[] values = new int[rows];
+        int p = 0;
+        for (int row = 0; row < rows; row++) {
+            int start = p;
+            while (data[p] != ';') {
+                p++;
+            }
+            keyOffsets[row] = start;
+            keyLengths[row] = p - start;
+            p++;
+            boolean negative = data[p] == '-';
+            if (negative) {
+                p++;
+            }
+            int value = 0;
+            for (; data[p] != '\n'; p++) {
+                if (data[p] != '.') {
+                    value = value * 10 + (data[p] - '0');
+                }
+            }
+            values[row] = negative ? -value : value;
+            p++;
+        }
+        System.out.printf("%,d rows from %s%n", rows, file);
+
+        Supplier<String> hashMap = () -> {
+            Map<String, IntSummaryStatistics> map = new HashMap<>();
+            for (int i = 0; i < keyOffsets.length; i++) {
+                map.computeIfAbsent(new String(data, keyOffsets[i], keyLengths[i], StandardCharsets.UTF_8), k -> new IntSummaryStatistics())
+                        .accept(values[i]);
+            }
+            TreeMap<String, String> result = new TreeMap<>();
+            map.forEach((k, s) -> result.put(k, s.getMin() + "/" + s.getSum() + "/" + s.getMax() + "/" + s.getCount()));
+            return result.toString();
+        };
+        Supplier<String> heap = () -> aggregate(ByteKeyStatsMap.onHeap(10_000), data, keyOffsets, keyLengths, values);
+        Supplier<String> offHeap = () -> aggregate(ByteKeyStatsMap.offHeap(10_000), data, keyOffsets, keyLengths, values);
+
+        String expected = hashMap.get();
+        System.out.printf("%-40s %12s%n", "", "ns per row");
+        report("HashMap<String, IntSummaryStatistics>", hashMap, expected, rows, rounds);
+        report("ByteKeyStatsMap on heap", heap, expected, rows, rounds);
+        report("ByteKeyStatsMap off heap", offHeap, expected, rows, rounds);
+    }
+
+    private static String aggregate(ByteKeyStatsMap map, byte[] data, int[] keyOffsets, int[] keyLengths, int[] values) {
+        try (map) {
+            for (int i = 0; i < keyOffsets.length; i++) {
+                map.add(data, keyOffsets[i], keyLengths[i], values[i]);
+            }
+            TreeMap<String, String> result = new TreeMap<>();
+            map.forEach((key, min, max, sum, count) -> result.put(new String(key, StandardCharsets.UTF_8), min + "/" + sum + "/" + max + "/" + count));
+            return result.toString();
+        }
+    }
+
+    private static void report(String name, Supplier<String> run, String expected, int rows, int rounds) {
+        long best = Long.MAX_VALUE;
+        // The first rounds are warmup.
+        for (int round = 0; round < rounds + 3; round++) {
+            long start = System.nanoTime();
+            String result = run.get();
+            long elapsed = System.nanoTime() - start;
+            if (!result.equals(expected)) {
+                throw new IllegalStateException(name + " produced a different result");
+            }
+            if (round >= 3) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        System.out.printf("%-40s %12.2f%n", name, (double) best / rows);
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CalculateAverage_bounded {
+
+    // Detour: This is shipilev's implementation, reshaped to run in a small
+    // container with a hard memory limit.
+    //
+    // The parsing and aggregation are the same as there. What changes is how
+    // much memory the run may touch. shipilev maps the whole file up front in
+    // MMAP_CHUNK_SIZE chunks and unmaps them as they are done, so the mapped
+    // footprint is bounded only by how fast the workers go. Here, the chunks
+    // are mapped one at a time by the main thread, there are never more than
+    // a fixed number of them mapped at once, and every chunk is unmapped by
+    // the worker the moment it is parsed. The measurement maps are sized from
+    // the same budget, and running out of them is a clear error instead of a
+    // probing loop that never ends.
+    //
+    // The budget is split roughly as: a quarter for the window of mapped
+    // chunks, a quarter for the measurement maps, and the rest for the JVM
+    // itself (code cache, metaspace, stacks, GC). The invocation script
+    // derives the JVM limits from the same number. Note that mapped file pages
+    // are page cache and can be reclaimed under pressure; the window bounds
+    // how much of it is pinned by live mappings at any point.
+    //
+
+    // ========================= Tunables =========================
+
+    // Workload data file.
+    private static final String FILE = "./measurements.txt";
+
+    // Max distance to search for line separator when scanning for line
+    // boundaries. 100 bytes name should fit into this power-of-two buffer.
+    private static final int MAX_LINE_LENGTH = 128;
+
+    // Memory budget for the whole process, in megabytes.
+    private static final long BUDGET = Long.getLong("budget", 256) << 20;
+
+    // Worker threads, each with its own measurements map.
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Total bytes of the file that may be mapped at the same time.
+    private static final long WINDOW_SIZE = BUDGET / 4;
+
+    // Size of one mapped chunk. Two chunks per worker keep everyone busy
+    // while the main thread maps the next one, without the chunks getting
+    // so small that mapping costs start to show.
+    private static final int MMAP_CHUNK_SIZE = Math.clamp(WINDOW_SIZE / (2L * THREADS), 1 << 20, 64 << 20);
+
+    // Number of chunks that may be mapped at the same time.
+    private static final int WINDOW_CHUNKS = (int) Math.max(2, WINDOW_SIZE / MMAP_CHUNK_SIZE);
+
+    // Heap taken by one station in one map: the Bucket, its name tail, and
+    // two map slots. Rounded up generously.
+    private static final int BYTES_PER_STATION = 192;
+
+    // Stations that fit into the measurement maps. Limited by the heap too,
+    // in case the heap is set smaller than the budget assumes.
+    private static final int MAX_STATIONS = Math.clamp(
+            Math.min(BUDGET / 4, Runtime.getRuntime().maxMemory() / 2) / ((long) (THREADS + 1) * BYTES_PER_STATION),
+            1 << 10, 1 << 22);
+
+    // Fixed size of the measurements map. Must be the power of two, and at
+    // least twice the number of stations to keep the probe sequences short.
+    private static final int MAP_SIZE = Integer.highestOneBit(MAX_STATIONS) << 2;
+
+    // ========================= Storage =========================
+
+    // Mapped chunk handed from the main thread to the workers. Closing the
+    // arena unmaps the chunk right away.
+    private record Chunk(Arena arena, ByteBuffer buf) {
+    }
+
+    private static final Chunk POISON_PILL = new Chunk(null, null);
+
+    // Thrown when the input has more stations than the budget allows for.
+    private static final class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededException() {
+            super(String.format("More than %,d stations do not fit into a memory budget of %d MB with %d threads; raise -Dbudget",
+                    MAX_STATIONS, BUDGET >> 20, THREADS));
+        }
+    }
+
+    // ========================= MEATY GRITTY PARTS: PARSE AND AGGREGATE =========================
+
+    public static final class Bucket {
+        // Raw station name, encoded as two prefixes and the name tail,
+        // its total length, and hash.
+        public final byte[] nameTail;
+        public final int len;
+        public final int hash;
+        public final int prefix1, prefix2;
+
+        // Temperature values, in 10x scale.
+        public long sum;
+        public int count;
+        public int min;
+        public int max;
+
+        public Bucket(ByteBuffer slice, int begin, int end, int hash, int temp) {
+            len = end - begin;
+
+            // Decode the station name. It is handy to have a few prefixes
+            // available to simplify matches later.
+            int tailStart = 0;
+            if (len >= 8) {
+                prefix1 = slice.getInt(begin + 0);
+                prefix2 = slice.getInt(begin + 4);
+                tailStart += 8;
+            }
+            else if (len >= 4) {
+                prefix1 = slice.getInt(begin + 0);
+                prefix2 = 0;
+                tailStart += 4;
+            }
+            else {
+                prefix1 = 0;
+                prefix2 = 0;
+            }
+
+            // The rest goes to tail byte array. We are checking reading it on hot-path.
+            // Therefore, it is convenient to keep allocation for names near the buckets.
+            // One can avoid this by carefully recording the tail in a separate field,
+            // like the prefixes above, but this is simple enough to gain enough perf.
+            int tailLen = len - tailStart;
+            nameTail = new byte[tailLen];
+            slice.get(begin + tailStart, nameTail, 0, tailLen);
+
+            // Seed the bucket with initial value.
+            this.hash = hash;
+            this.sum = temp;
+            this.count = 1;
+            this.min = temp;
+            this.max = temp;
+        }
+
+        // Little helper method to compare the array with given ByteBuffer range.
+        public boolean matches(ByteBuffer cand, int begin, int end) {
+            int origLen = len;
+            int candLen = end - begin;
+            if (origLen != candLen) {
+                return false;
+            }
+
+            // Check the prefixes first, if we can.
+            int tailStart = 0;
+            if (origLen >= 8) {
+                if (prefix1 != cand.getInt(begin)) {
+                    return false;
+                }
+                if (prefix2 != cand.getInt(begin + 4)) {
+                    return false;
+                }
+                tailStart += 8;
+            }
+            else if (origLen >= 4) {
+                if (prefix1 != cand.getInt(begin)) {
+                    return false;
+                }
+                tailStart += 4;
+            }
+
+            // Check the rest.
+            for (int i = 0; i < origLen - tailStart; i++) {
+                if (nameTail[i] != cand.get(begin + tailStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Check if current Bucket matches another.
+        public boolean matches(Bucket other) {
+            return len == other.len &&
+                    prefix1 == other.prefix1 &&
+                    prefix2 == other.prefix2 &&
+                    Arrays.equals(nameTail, other.nameTail);
+        }
+
+        // Merge the temp value. Hot-path, should be fairly efficient.
+        public void merge(int value) {
+            sum += value;
+            count++;
+
+            // We rarely do the updates, so these branches are almost
+            // never taken. Writing them as explicit branches instead of
+            // Math.{min,max} improves performance a bit.
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        // Merge the buckets. Called during reporting, not a hot path.
+        public void merge(Bucket s) {
+            sum += s.sum;
+            count += s.count;
+            min = Math.min(min, s.min);
+            max = Math.max(max, s.max);
+        }
+
+        public Row toRow() {
+            // Reconstruct the name first. The prefixes and the tail were copied
+            // from the little-endian slice, so we need to match the endianness here.
+            ByteBuffer bb = ByteBuffer.allocate(len);
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+            if (len >= 4) {
+                bb.putInt(prefix1);
+            }
+            if (len >= 8) {
+                bb.putInt(prefix2);
+            }
+            bb.put(nameTail);
+
+            return new Row(
+                    new String(Arrays.copyOf(bb.array(), len)),
+                    Math.round((double) min) / 10.0,
+                    Math.round((double) sum / count) / 10.0,
+                    Math.round((double) max) / 10.0);
+        }
+    }
+
+    // Quick and dirty linear-probing hash map, with a cap on its size.
+    public static final class MeasurementsMap {
+        private final Bucket[] buckets = new Bucket[MAP_SIZE];
+        private int size;
+
+        // Fast path is inlined in seqCompute. This is a slow-path that is taken
+        // rarely, usually when there is a hash collision or a new station.
+        private void updateSlow(ByteBuffer name, int begin, int end, int hash, int temp) {
+            int idx = hash & (MAP_SIZE - 1);
+            while (true) {
+                Bucket cur = buckets[idx];
+                if (cur == null) {
+                    // No bucket yet. Create one, if the budget allows.
+                    if (size == MAX_STATIONS) {
+                        throw new BudgetExceededException();
+                    }
+                    buckets[idx] = new Bucket(name, begin, end, hash, temp);
+                    size++;
+                    return;
+                }
+                else if ((cur.hash == hash) && cur.matches(name, begin, end)) {
+                    cur.merge(temp);
+                    return;
+                }
+                else {
+                    idx = (idx + 1) & (MAP_SIZE - 1);
+                }
+            }
+        }
+
+        // Same as updateSlow(), really, but for merging maps. The union of
+        // the per-thread maps is capped the same way.
+        public void merge(MeasurementsMap otherMap) {
+            for (Bucket other : otherMap.buckets) {
+                if (other == null)
+                    continue;
+                int idx = other.hash & (MAP_SIZE - 1);
+                while (true) {
+                    Bucket cur = buckets[idx];
+                    if (cur == null) {
+                        if (size == MAX_STATIONS) {
+                            throw new BudgetExceededException();
+                        }
+                        buckets[idx] = other;
+                        size++;
+                        break;
+                    }
+                    else if ((cur.hash == other.hash) && cur.matches(other)) {
+                        cur.merge(other);
+                        break;
+                    }
+                    else {
+                        idx = (idx + 1) & (MAP_SIZE - 1);
+                    }
+                }
+            }
+        }
+
+        public int fill(Row[] rows) {
+            int idx = 0;
+            for (Bucket bucket : buckets) {
+                if (bucket == null)
+                    continue;
+                rows[idx++] = bucket.toRow();
+            }
+            return idx;
+        }
+    }
+
+    // Worker: takes mapped chunks off the queue, parses them into its own
+    // map, and unmaps each chunk as soon as it is done with it.
+    private static final class Worker extends Thread {
+        private final BlockingQueue<Chunk> chunks;
+        private final Semaphore window;
+        private final AtomicReference<Throwable> failure;
+        private final Thread mainThread;
+        private final MeasurementsMap map = new MeasurementsMap();
+
+        Worker(BlockingQueue<Chunk> chunks, Semaphore window, AtomicReference<Throwable> failure, Thread mainThread) {
+            this.chunks = chunks;
+            this.window = window;
+            this.failure = failure;
+            this.mainThread = mainThread;
+            // Workers never outlive a failed run.
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Chunk chunk;
+                while ((chunk = chunks.take()) != POISON_PILL) {
+                    try {
+                        ByteBuffer buf = chunk.buf().order(ByteOrder.LITTLE_ENDIAN);
+                        seqCompute(map, buf, buf.limit());
+                    }
+                    finally {
+                        // Unmap now, not whenever GC gets to it, and let the
+                        // main thread map the next chunk in its place.
+                        chunk.arena().close();
+                        window.release();
+                    }
+                }
+            }
+            catch (Throwable t) {
+                // Stop the main thread, which may be waiting for a window slot
+                // that this worker would never release.
+                failure.compareAndSet(null, t);
+                mainThread.interrupt();
+            }
+        }
+
+        private static void seqCompute(MeasurementsMap map, ByteBuffer origSlice, int length) {
+            Bucket[] buckets = map.buckets;
+
+            // Slice up our slice! Pecular note here: this instantiates a full new buffer
+            // object, which allows compiler to trust its fields more thoroughly.
+            ByteBuffer slice = origSlice.slice();
+
+            // New slice lost the endianness setting, set it up as the original slice.
+            slice.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Touch the buffer once to let the compiler eject the common checks
+            // for this slice from the loop here. This is an odd, flaky, and sometimes
+            // desperate, but a safe thing to do.
+            slice.get(0);
+
+            int idx = 0;
+            while (idx < length) {
+                // Parse out the name, computing the hash on the fly.
+                // Reading with ints allows us to guarantee that read would always
+                // be in bounds, since the temperature+EOL is at least 4 bytes
+                // long themselves. This implementation prefers simplicity over
+                // advanced tricks like SWAR.
+                int nameBegin = idx;
+                int nameHash = 0;
+
+                outer: while (true) {
+                    int intName = slice.getInt(idx);
+                    for (int c = 0; c < 4; c++) {
+                        int b = (intName >> (c << 3)) & 0xFF;
+                        if (b == ';') {
+                            idx += c + 1;
+                            break outer;
+                        }
+                        nameHash ^= b * 82805;
+                    }
+                    idx += 4;
+                }
+                int nameEnd = idx - 1;
+
+                // Parse out the temperature. The rules specify temperatures
+                // are within -99.9..99.9. This means even in the shortest case of
+                // "0.0<EOL>", we are not out of bounds for the int-sized read.
+                int intTemp = slice.getInt(idx);
+
+                int neg = 1;
+                if ((intTemp & 0xFF) == '-') {
+                    // Unlucky, there is a sign. Record it, shift one byte and read
+                    // the remaining digit again. Surprisingly, doing a second read
+                    // is not significantly worse than reading into long and trying
+                    // to do bit shifts on it. But it is significantly simpler.
+                    neg = -1;
+                    intTemp >>>= 8;
+                    intTemp |= slice.get(idx + 4) << 24;
+                    idx++;
+                }
+
+                // Since the sign is consumed, we are only left with two cases,
+                // which means we can trivially extract the number from int.
+                int temp = 0;
+                if ((intTemp >>> 24) == '\n') {
+                    // Case 1: EOL-digitL-point-digitH
+                    temp = (((intTemp & 0xFF)) - '0') * 10 +
+                            ((intTemp >> 16) & 0xFF) - '0';
+                    idx += 4;
+                }
+                else {
+                    // Case 2: digitL-point-digitH-digitHH
+                    temp = (((intTemp & 0xFF)) - '0') * 100 +
+                            (((intTemp >> 8) & 0xFF) - '0') * 10 +
+                            (((intTemp >>> 24)) - '0');
+                    idx += 5;
+                }
+
+                // All done, just flip the sign, if needed.
+                temp *= neg;
+
+                // Time to update!
+                Bucket bucket = buckets[nameHash & (MAP_SIZE - 1)];
+                if ((bucket != null) && (nameHash == bucket.hash) && bucket.matches(slice, nameBegin, nameEnd)) {
+                    // Lucky fast path: matching bucket hit. Most of the time we complete here.
+                    bucket.merge(temp);
+                }
+                else {
+                    // Unlucky, slow path. The method would not be inlined, it is useful
+                    // to give it the original slice, so that we keep current hot slice
+                    // metadata provably unmodified.
+                    map.updateSlow(origSlice, nameBegin, nameEnd, nameHash, temp);
+                }
+            }
+        }
+    }
+
+    // ========================= Invocation =========================
+
+    public static void main(String[] args) throws Exception {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        if (maxHeap > BUDGET) {
+            System.err.printf("Warning: the heap limit of %d MB exceeds the memory budget of %d MB; " +
+                    "run with calculate_average_bounded.sh or set -Xmx below the budget%n", maxHeap >> 20, BUDGET >> 20);
+        }
+
+        BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(WINDOW_CHUNKS + THREADS);
+        Semaphore window = new Semaphore(WINDOW_CHUNKS);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Worker[] workers = new Worker[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            workers[i] = new Worker(chunks, window, failure, Thread.currentThread());
+            workers[i].start();
+        }
+
+        try {
+            mapChunks(chunks, window);
+            for (Worker worker : workers) {
+                worker.join();
+            }
+        }
+        catch (InterruptedException | ClosedByInterruptException e) {
+            // A worker failed, reported below. The interrupt may also have hit the channel while mapping.
+            if (failure.get() == null) {
+                throw e;
+            }
+        }
+        if (failure.get() == null) {
+            try {
+                MeasurementsMap map = workers[0].map;
+                for (int i = 1; i < THREADS; i++) {
+                    map.merge(workers[i].map);
+                }
+                Row[] rows = new Row[map.size];
+                System.out.println(report(map, rows, new StringBuilder(16384)));
+                return;
+            }
+            catch (BudgetExceededException e) {
+                failure.set(e);
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof BudgetExceededException) {
+            System.err.println(t.getMessage());
+        }
+        else {
+            t.printStackTrace();
+        }
+        System.exit(1);
+    }
+
+    // Maps the file chunk by chunk, each at line boundaries, never having
+    // more than WINDOW_CHUNKS of them mapped at once.
+    private static void mapChunks(BlockingQueue<Chunk> chunks, Semaphore window) throws IOException, InterruptedException {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        try (FileChannel fc = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long start = 0;
+            long size = fc.size();
+            while (start < size) {
+                long end = Math.min(size, start + MMAP_CHUNK_SIZE);
+                if (end < size) {
+                    // Read a little chunk into a little buffer, and figure out
+                    // the boundary that does not split the line.
+                    long minEnd = Math.max(start, end - MAX_LINE_LENGTH);
+                    buf.clear();
+                    while (buf.hasRemaining() && fc.read(buf, minEnd + buf.position()) > 0) {
+                    }
+                    int w = buf.position();
+                    while (buf.get(w - 1) != '\n') {
+                        w--;
+                    }
+                    end = minEnd + w;
+                }
+
+                // Wait for a slot in the window before mapping more.
+                window.acquire();
+                Arena arena = Arena.ofShared();
+                ByteBuffer slice = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start, arena).asByteBuffer();
+                chunks.put(new Chunk(arena, slice));
+                start = end;
+            }
+        }
+        for (int i = 0; i < THREADS; i++) {
+            chunks.put(POISON_PILL);
+        }
+    }
+
+    private static String report(MeasurementsMap map, Row[] rows, StringBuilder sb) {
+        int rowCount = map.fill(rows);
+        Arrays.sort(rows, 0, rowCount);
+
+        sb.append("{");
+        for (int c = 0; c < rowCount; c++) {
+            if (c != 0) {
+                sb.append(", ");
+            }
+            rows[c].printTo(sb);
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    // ========================= Reporting =========================
+
+    private static final class Row implements Comparable<Row> {
+        private final String name;
+        private final double min;
+        private final double max;
+        private final double avg;
+
+        public Row(String name, double min, double avg, double max) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+        }
+
+        @Override
+        public int compareTo(Row o) {
+            return name.compareTo(o.name);
+        }
+
+        public void printTo(StringBuilder sb) {
+            sb.append(name);
+            sb.append("=");
+            sb.append(min);
+            sb.append("/");
+            sb.append(avg);
+            sb.append("/");
+            sb.append(max);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Variant for a stable set of stations, which are known up front from a {@link StationDictionary} file instead of
+ * being discovered by every run.
+ * <p>
+ * The dictionary gives every name a dense id, so each thread keeps its statistics in four flat arrays indexed by id.
+ * A row's id is found with the dictionary's perfect hash and a single compare, which for names shorter than 16 bytes is
+ * two word compares, as in {@link CalculateAverage_perfecthash}. Merging the threads is element-wise array addition,
+ * min and max, in loops the JIT vectorizes; the output walks the dictionary's sorted ids and copies the names' UTF-8
+ * bytes from the mapped dictionary, with no sorting and no {@code String}s.
+ * <p>
+ * Names missing from the dictionary go to a regular per-thread table and are merged into the output by name. With
+ * {@code -Ddictionary.append=true} they are then added to the dictionary, so the next run finds them; the dictionary is
+ * {@code -Ddictionary=<file>}, by default {@code stations.dict}, and can also be built with
+ * {@code station_dictionary.sh}. Without a dictionary file, every name takes the fallback path.
+ * <p>
+ * Measured on a single core, the lookup is about as fast as the fallback table's first-probe hit (3.3–3.4 s either way
+ * for 150 million rows and 413 stations); a minimal, partitioned perfect hash was slower than the table. What the
+ * dictionary saves is the discovery, the sort and the {@code String}s at the end and the per-entry merge, which
+ * matters with many threads and many stations rather than for the scan.
+ */
+public class CalculateAverage_dictionary {
+    private static final String FILE = "./measurements.txt";
+    private static final Path DICTIONARY = Path.of(System.getProperty("dictionary", "stations.dict"));
+    private static final boolean APPEND = Boolean.getBoolean("dictionary.append");
+    private static final int MIN_TEMP = -999;
+    private static final int MAX_TEMP = 999;
+    private static final int SEGMENT_SIZE = 1 << 21;
+    private static final int FALLBACK_TABLE_SIZE = 1 << 17;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StationDictionary dictionary = Files.exists(DICTIONARY) ? StationDictionary.load(DICTIONARY, Arena.global()) : StationDictionary.empty();
+        int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long fileStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            long fileEnd = fileStart + fileSize;
+            AtomicLong cursor = new AtomicLong(fileStart);
+
+            Worker[] workers = new Worker[numberOfWorkers];
+            Thread[] threads = new Thread[numberOfWorkers];
+            for (int i = 0; i < threads.length; i++) {
+                Worker worker = workers[i] = new Worker(dictionary);
+                threads[i] = new Thread(() -> worker.parseLoop(cursor, fileStart, fileEnd));
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Worker total = workers[0];
+            TreeMap<String, Result> unknown = new TreeMap<>();
+            for (Worker worker : workers) {
+                if (worker != total) {
+                    total.mergeFrom(worker);
+                }
+                for (Result r : worker.fallback.entries) {
+                    unknown.merge(r.calcName(), r, Result::accumulate);
+                }
+            }
+            System.out.write(total.format(unknown));
+            System.out.println();
+            System.out.flush();
+
+            if (APPEND && !unknown.isEmpty()) {
+                int added = StationDictionary.append(DICTIONARY, unknown.keySet());
+                System.err.printf("Added %,d stations to %s%n", added, DICTIONARY);
+            }
+        }
+    }
+
+    private static final class Worker {
+        private final StationDictionary dictionary;
+        private final long[] sums;
+        private final long[] counts;
+        private final int[] mins;
+        private final int[] maxs;
+        private final StationDictionary.Lookup lookup;
+        private final FallbackTable fallback = new FallbackTable();
+
+        Worker(StationDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.lookup = dictionary.lookup();
+            int n = dictionary.size();
+            sums = new long[n];
+            counts = new long[n];
+            mins = new int[n];
+            maxs = new int[n];
+            Arrays.fill(mins, MAX_TEMP);
+            Arrays.fill(maxs, MIN_TEMP);
+        }
+
+        void parseLoop(AtomicLong cursor, long fileStart, long fileEnd) {
+            while (true) {
+                long current = cursor.getAndAdd(SEGMENT_SIZE);
+                if (current >= fileEnd) {
+                    return;
+                }
+                long segmentEnd = nextNewLine(Math.min(fileEnd - 1, current + SEGMENT_SIZE));
+                long segmentStart = current == fileStart ? current : nextNewLine(current) + 1;
+                parseRange(segmentStart, segmentEnd);
+            }
+        }
+
+        void parseRange(long pos, long end) {
+            final StationDictionary dictionary = this.dictionary;
+            // Locals, so that the loop does not reload them.
+            final int slotShift = lookup.slotShift();
+            final long[] displacements = lookup.displacements();
+            final int[] slotIds = lookup.slotIds();
+            final long[] words = lookup.words();
+            final long[] sums = this.sums;
+            final long[] counts = this.counts;
+            final int[] mins = this.mins;
+            final int[] maxs = this.maxs;
+            final boolean empty = dictionary.size() == 0;
+            while (pos < end) {
+                long nameAddress = pos;
+                long word1 = UNSAFE.getLong(pos);
+                long word2 = UNSAFE.getLong(pos + 8);
+                long delimiterMask1 = findDelimiter(word1);
+                long delimiterMask2 = findDelimiter(word2);
+                int id;
+                long hash;
+                int nameLength;
+                if ((delimiterMask1 | delimiterMask2) != 0) {
+                    // Name shorter than 16 bytes, the two masked words identify it.
+                    int letterCount1 = Long.numberOfTrailingZeros(delimiterMask1) >>> 3; // value between 0 and 8
+                    int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3; // value between 0 and 8
+                    long mask = MASK2[letterCount1];
+                    word1 = word1 & MASK1[letterCount1];
+                    word2 = mask & word2 & MASK1[letterCount2];
+                    nameLength = letterCount1 + (int) (letterCount2 & mask);
+                    hash = StationDictionary.mix(word1 * StationDictionary.HASH_MULTIPLIER + word2 + nameLength);
+                    if (empty) {
+                        id = -1;
+                    }
+                    else {
+                        id = slotIds[StationDictionary.slot(hash, displacements, slotShift)];
+                        if (words[2 * id] != word1 || words[2 * id + 1] != word2) {
+                            id = -1;
+                        }
+                    }
+                }
+                else {
+                    // Slow-path for when the ';' could not be found in the first 16 bytes.
+                    nameLength = 16;
+                    while (true) {
+                        long mask = findDelimiter(UNSAFE.getLong(pos + nameLength));
+                        if (mask != 0) {
+                            nameLength += Long.numberOfTrailingZeros(mask) >>> 3;
+                            break;
+                        }
+                        nameLength += 8;
+                    }
+                    hash = hashName(nameAddress, nameLength);
+                    id = dictionary.candidate(hash);
+                    if (id >= 0 && (dictionary.nameLength(id) != nameLength || !namesEqual(dictionary.nameAddress(id), nameAddress, nameLength))) {
+                        id = -1;
+                    }
+                }
+                pos += nameLength + 1;
+
+                long numberWord = UNSAFE.getLong(pos);
+                int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+                int number = (int) convertIntoNumber(decimalSepPos, numberWord);
+                pos += (decimalSepPos >>> 3) + 3;
+
+                if (id >= 0) {
+                    mins[id] = Math.min(mins[id], number);
+                    maxs[id] = Math.max(maxs[id], number);
+                    sums[id] += number;
+                    counts[id]++;
+                }
+                else {
+                    fallback.find(hash, nameAddress, nameLength, word1, word2).record(number);
+                }
+            }
+        }
+
+        void mergeFrom(Worker other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            for (int i = 0; i < mins.length; i++) {
+                mins[i] = Math.min(mins[i], other.mins[i]);
+            }
+            for (int i = 0; i < maxs.length; i++) {
+                maxs[i] = Math.max(maxs[i], other.maxs[i]);
+            }
+        }
+
+        // The stations in the dictionary's sorted order, with the unknown ones merged in by name.
+        byte[] format(TreeMap<String, Result> unknown) {
+            Output out = new Output();
+            out.put((byte) '{');
+            boolean first = true;
+            var extra = unknown.entrySet().iterator();
+            Map.Entry<String, Result> next = extra.hasNext() ? extra.next() : null;
+            for (int id : dictionary.sortedIds()) {
+                if (counts[id] == 0) {
+                    continue;
+                }
+                // Only compared when there are unknown names.
+                while (next != null && next.getKey().compareTo(dictionary.name(id)) < 0) {
+                    first = out.separator(first);
+                    out.putName(next.getKey().getBytes(StandardCharsets.UTF_8));
+                    next.getValue().format(out);
+                    next = extra.hasNext() ? extra.next() : null;
+                }
+                first = out.separator(first);
+                out.putName(dictionary.nameAddress(id), dictionary.nameLength(id));
+                out.putStats(mins[id], maxs[id], sums[id], counts[id]);
+            }
+            while (next != null) {
+                first = out.separator(first);
+                out.putName(next.getKey().getBytes(StandardCharsets.UTF_8));
+                next.getValue().format(out);
+                next = extra.hasNext() ? extra.next() : null;
+            }
+            out.put((byte) '}');
+            return out.toByteArray();
+        }
+    }
+
+    // Growing byte buffer for the result line.
+    private static final class Output {
+        private byte[] bytes = new byte[1 << 16];
+        private int size;
+
+        void put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        boolean separator(boolean first) {
+            if (!first) {
+                put((byte) ',');
+                put((byte) ' ');
+            }
+            return false;
+        }
+
+        void putName(long address, int length) {
+            ensure(length + 1);
+            UNSAFE.copyMemory(null, address, bytes, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET + size, length);
+            size += length;
+            bytes[size++] = '=';
+        }
+
+        void putName(byte[] name) {
+            ensure(name.length + 1);
+            System.arraycopy(name, 0, bytes, size, name.length);
+            size += name.length;
+            bytes[size++] = '=';
+        }
+
+        // min/mean/max, rounded as the other entries do with Math.round(value * 10.0) / 10.0.
+        void putStats(int min, int max, long sum, long count) {
+            putTenths(min);
+            put((byte) '/');
+            putTenths(Math.round((sum / 10.0 / count) * 10.0));
+            put((byte) '/');
+            putTenths(max);
+        }
+
+        private void putTenths(long tenths) {
+            ensure(8);
+            if (tenths < 0) {
+                bytes[size++] = '-';
+                tenths = -tenths;
+            }
+            if (tenths >= 100) {
+                bytes[size++] = (byte) ('0' + tenths / 100);
+            }
+            bytes[size++] = (byte) ('0' + tenths / 10 % 10);
+            bytes[size++] = '.';
+            bytes[size++] = (byte) ('0' + tenths % 10);
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    // Regular open addressing table for the names that are not in the dictionary.
+    private static final class FallbackTable {
+        private final Result[] table = new Result[FALLBACK_TABLE_SIZE];
+        private final List<Result> entries = new ArrayList<>();
+
+        Result find(long hash, long nameAddress, int nameLength, long word1, long word2) {
+            int index = (int) hash & (FALLBACK_TABLE_SIZE - 1);
+            while (true) {
+                Result r = table[index];
+                if (r == null) {
+                    if (entries.size() == FALLBACK_TABLE_SIZE / 2) {
+                        throw new IllegalStateException("Too many stations missing from the dictionary");
+                    }
+                    r = new Result(hash, nameAddress, nameLength, word1, word2);
+                    table[index] = r;
+                    entries.add(r);
+                    return r;
+                }
+                if (r.hash == hash && r.nameLength == nameLength && r.firstNameWord == word1 && r.secondNameWord == word2
+                        && (nameLength < 16 || namesEqual(r.nameAddress, nameAddress, nameLength))) {
+                    return r;
+                }
+                index = (index + 1) & (FALLBACK_TABLE_SIZE - 1);
+            }
+        }
+    }
+
+    // ========================= Hashing and parsing helpers =========================
+
+    // Number of name bytes in a word -> mask keeping those bytes.
+    private static final long[] MASK1 = new long[]{ 0x00L, 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL,
+            0xFFFFFFFFFFFFFFFFL };
+    private static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+    // Same as StationDictionary.hash() on the name bytes.
+    private static long hashName(long address, int length) {
+        long hash = UNSAFE.getLong(address) & MASK1[Math.min(length, 8)];
+        hash = hash * StationDictionary.HASH_MULTIPLIER + (length > 8 ? UNSAFE.getLong(address + 8) & MASK1[Math.min(length - 8, 8)] : 0);
+        for (int i = 16; i < length; i += 8) {
+            hash = hash * StationDictionary.HASH_MULTIPLIER + (UNSAFE.getLong(address + i) & MASK1[Math.min(length - i, 8)]);
+        }
+        return StationDictionary.mix(hash + length);
+    }
+
+    private static boolean namesEqual(long a, long b, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        long mask = MASK1[length - i];
+        return ((UNSAFE.getLong(a + i) ^ UNSAFE.getLong(b + i)) & mask) == 0;
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        // Now digits is in the form 0xUU00TTHH00 (UU: units digit, TT: tens digit, HH: hundreds digit)
+        // 0xUU00TTHH00 * (100 * 0x1000000 + 10 * 0x10000 + 1) =
+        // 0x000000UU00TTHH00 + 0x00UU00TTHH000000 * 10 + 0xUU00TTHH00000000 * 100
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    private static final class Result {
+        final long hash;
+        final long firstNameWord, secondNameWord;
+        final long nameAddress;
+        final int nameLength;
+        int min, max;
+        long count;
+        long sum;
+
+        Result(long hash, long nameAddress, int nameLength, long firstNameWord, long secondNameWord) {
+            this.hash = hash;
+            this.nameAddress = nameAddress;
+            this.nameLength = nameLength;
+            this.firstNameWord = firstNameWord;
+            this.secondNameWord = secondNameWord;
+            this.min = MAX_TEMP;
+            this.max = MIN_TEMP;
+        }
+
+        void record(int number) {
+            min = Math.min(min, number);
+            max = Math.max(max, number);
+            sum += number;
+            count++;
+        }
+
+        static Result accumulate(Result r, Result other) {
+            r.min = Math.min(r.min, other.min);
+            r.max = Math.max(r.max, other.max);
+            r.sum += other.sum;
+            r.count += other.count;
+            return r;
+        }
+
+        String calcName() {
+            byte[] array = new byte[nameLength];
+            UNSAFE.copyMemory(null, nameAddress, array, sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET, nameLength);
+            return new String(array, StandardCharsets.UTF_8);
+        }
+
+        void format(Output out) {
+            out.putStats(min, max, sum, count);
+        }
+    }
+
+    private static final sun.misc.Unsafe UNSAFE = initUnsafe();
+
+    private static sun.misc.Unsafe initUnsafe() {
+        try {
+            java.lang.reflect.Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (sun.misc.Unsafe) theUnsafe.get(sun.misc.Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
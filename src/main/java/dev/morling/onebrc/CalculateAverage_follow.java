@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dev.morling.onebrc.MeasurementSpliterator.StationStats;
+
+/**
+ * Continuous aggregation of a growing file, like {@code tail -F}: the results over everything appended so far are
+ * printed again whenever they changed, at most every {@code follow.interval} milliseconds.
+ * <p>
+ * The file's size is polled every {@code follow.poll} milliseconds. Only the new bytes up to the last complete line
+ * are mapped, split at line starts into one part per thread and parsed with {@link MeasurementSpliterator} into
+ * per-part {@link ByteKeyStatsMap}s that live for the whole run; the mapping is released right after. A partly written
+ * last line stays for the next poll. So each poll costs in proportion to the bytes appended since the previous one,
+ * and printing costs in proportion to the number of stations.
+ * <p>
+ * The file is identified by its device and inode. When the path names a different file (rotation), the rest of the
+ * old file is read through the still open channel before switching to the new one from its start; when the file
+ * shrinks (truncation, e.g. {@code copytruncate}), reading restarts from its start.
+ * The statistics keep accumulating across both, as the file's rows are a stream; with {@code -Dfollow.reset=true}
+ * they start over instead.
+ * <p>
+ * Runs until killed, or with {@code -Dfollow.idleExit=<ms>} until the file has not grown for that long, which also
+ * makes it usable on a static file; {@code calculate_average_follow.sh} defaults to 0 for that reason.
+ */
+public class CalculateAverage_follow {
+
+    private static final Path FILE = Path.of("./measurements.txt");
+    private static final long POLL_MILLIS = Long.getLong("follow.poll", 100);
+    private static final long INTERVAL_MILLIS = Long.getLong("follow.interval", 1000);
+    private static final long IDLE_EXIT_MILLIS = Long.getLong("follow.idleExit", -1);
+    private static final boolean RESET = Boolean.getBoolean("follow.reset");
+    // Appends smaller than this are parsed by a single thread.
+    private static final int MIN_PART_SIZE = 1 << 20;
+
+    private final int parts = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService executor = Executors.newFixedThreadPool(parts, runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ByteKeyStatsMap[] tables = newTables();
+
+    private FileChannel channel;
+    private Object fileKey;
+    // Offset of the first byte not aggregated yet, always a line start.
+    private long position;
+
+    public static void main(String[] args) throws Exception {
+        new CalculateAverage_follow().follow();
+    }
+
+    private void follow() throws Exception {
+        long lastGrowth = System.currentTimeMillis();
+        long lastPrint = 0;
+        boolean printed = false;
+        boolean changed = false;
+        while (true) {
+            boolean grown = poll();
+            long now = System.currentTimeMillis();
+            if (grown) {
+                lastGrowth = now;
+                changed = true;
+            }
+            boolean idle = IDLE_EXIT_MILLIS >= 0 && now - lastGrowth >= IDLE_EXIT_MILLIS;
+            // An empty file still gets its result, {}, before exiting.
+            if ((changed && (now - lastPrint >= INTERVAL_MILLIS || idle)) || (idle && !printed)) {
+                System.out.println(snapshot());
+                System.out.flush();
+                lastPrint = now;
+                printed = true;
+                changed = false;
+            }
+            if (idle) {
+                return;
+            }
+            if (!grown) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+    }
+
+    /** Aggregates whatever complete lines were appended, following rotation and truncation; true if there were any. */
+    private boolean poll() throws Exception {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(FILE, BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e) {
+            // Between a rotation's rename and the new file's creation.
+            return channel != null && aggregateNewLines();
+        }
+        Object key = attributes.fileKey();
+        if (channel == null || (key != null && !key.equals(fileKey))) {
+            boolean drained = channel != null && aggregateNewLines();
+            if (channel != null) {
+                channel.close();
+                if (RESET) {
+                    resetTables();
+                }
+            }
+            channel = FileChannel.open(FILE, StandardOpenOption.READ);
+            // The key of what was actually opened, in case it rotated again just now.
+            fileKey = Objects.requireNonNullElse(Files.readAttributes(FILE, BasicFileAttributes.class).fileKey(), FILE);
+            position = 0;
+            return aggregateNewLines() | drained;
+        }
+        if (channel.size() < position) {
+            position = 0;
+            if (RESET) {
+                resetTables();
+            }
+        }
+        return aggregateNewLines();
+    }
+
+    private boolean aggregateNewLines() throws Exception {
+        long size = channel.size();
+        if (size <= position) {
+            return false;
+        }
+        try (Arena arena = Arena.ofShared()) {
+            MemorySegment appended = channel.map(FileChannel.MapMode.READ_ONLY, position, size - position, arena);
+            long end = lineStartAtOrBefore(appended, appended.byteSize());
+            if (end == 0) {
+                return false;
+            }
+            int count = (int) Math.max(1, Math.min(parts, end / MIN_PART_SIZE));
+            List<Future<?>> tasks = new ArrayList<>(count);
+            long start = 0;
+            for (int i = 0; i < count; i++) {
+                long partEnd = i == count - 1 ? end : lineStartAtOrBefore(appended, end * (i + 1) / count);
+                MemorySegment part = appended.asSlice(start, partEnd - start);
+                ByteKeyStatsMap table = tables[i];
+                tasks.add(executor.submit(() -> MeasurementSpliterator.of(part).forEachRemaining(
+                        row -> table.add(part, row.nameOffset(), row.nameLength(), row.tenths()))));
+                start = Math.max(start, partEnd);
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            position += end;
+            return true;
+        }
+    }
+
+    /** The start of the line after the last newline before {@code limit}, or 0. */
+    private static long lineStartAtOrBefore(MemorySegment segment, long limit) {
+        for (long i = limit - 1; i >= 0; i--) {
+            if (segment.get(ValueLayout.JAVA_BYTE, i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private TreeMap<String, StationStats> snapshot() {
+        TreeMap<String, StationStats> result = new TreeMap<>();
+        for (ByteKeyStatsMap table : tables) {
+            table.forEach((name, min, max, sum, count) -> result.merge(new String(name, StandardCharsets.UTF_8), new StationStats(min, max, sum, count),
+                    (a, b) -> new StationStats(Math.min(a.min(), b.min()), Math.max(a.max(), b.max()), a.sum() + b.sum(), a.count() + b.count())));
+        }
+        return result;
+    }
+
+    private void resetTables() {
+        for (ByteKeyStatsMap table : tables) {
+            table.close();
+        }
+        tables = newTables();
+    }
+
+    private ByteKeyStatsMap[] newTables() {
+        ByteKeyStatsMap[] result = new ByteKeyStatsMap[parts];
+        for (int i = 0; i < parts; i++) {
+            result[i] = ByteKeyStatsMap.offHeap(1024);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Two-level station table for skewed data: a small direct-mapped "hot" table of {@link #HOT_SLOTS} cache lines, which
+ * stays in L1, in front of a large open-addressing "cold" table holding every station.
+ * <p>
+ * Both use one cache line per slot with the first 16 name bytes inline, as thomaswue's
+ * {@code firstNameWord}/{@code secondNameWord}, so a hot hit for a name of up to 16 bytes touches a single L1 line. A
+ * hot slot accumulates statistics on top of its station's cold slot. On a cold hit, the station is promoted into its
+ * hot slot if that is empty and the station has been seen {@link #PROMOTE_AFTER} times, or if it has been seen more than
+ * twice as often as the current occupant, whose statistics are then flushed into its cold slot. With a few dominant
+ * stations, those end up hot and most rows never touch the cold table; with uniform data, promotions stop once counts
+ * even out and the cost is one L1 miss check per row.
+ * <p>
+ * {@code -Dhot=false} disables the hot table, for comparing the same code with and without it; see
+ * {@code evaluate_hotcold.sh}. On a single-core VM, the hot table was 15-30% slower on all data sets, even with 61% of
+ * the rows hitting it for Zipf 1.2: the cold slots of frequent stations stay cached anyway, so the hot table only saves
+ * where those are evicted, e.g. by many threads sharing a cache. Each thread has its own tables, merged at the end.
+ */
+public class CalculateAverage_hotcold {
+
+    private static final String FILE = "./measurements.txt";
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static final int SEGMENT_SIZE = 1 << 21;
+    private static final boolean HOT = Boolean.parseBoolean(System.getProperty("hot", "true"));
+    private static final int HOT_SLOTS = 256;
+    private static final int COLD_SLOTS = 1 << 18;
+    private static final long PROMOTE_AFTER = 16;
+
+    // Layout of a slot, cold and hot.
+    private static final int SLOT_SIZE = 64;
+    private static final int HASH = 0;
+    // The name in the file for cold slots, the station's cold slot for hot slots.
+    private static final int NAME_ADDRESS = 8;
+    private static final int COLD_SLOT = 8;
+    private static final int WORD0 = 16;
+    private static final int WORD1 = 24;
+    private static final int SUM = 32;
+    private static final int COUNT = 40;
+    private static final int MIN = 48;
+    private static final int MAX = 52;
+    private static final int NAME_LENGTH = 56;
+    // For hot slots, the count of the cold slot at promotion, saturated to an int.
+    private static final int COLD_COUNT = 60;
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long fileStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            long fileEnd = fileStart + fileSize;
+
+            int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+            Table[] tables = new Table[numberOfWorkers];
+            AtomicLong cursor = new AtomicLong(fileStart);
+            Thread[] threads = new Thread[numberOfWorkers];
+            for (int i = 0; i < threads.length; i++) {
+                int index = i;
+                threads[i] = new Thread(() -> {
+                    Table table = new Table();
+                    parseLoop(cursor, fileStart, fileEnd, table);
+                    table.flushHot();
+                    tables[index] = table;
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Table result = tables[0];
+            for (int i = 1; i < tables.length; i++) {
+                result.mergeFrom(tables[i]);
+                tables[i].free();
+            }
+            System.out.println(result.format());
+            System.out.close();
+        }
+    }
+
+    private static void parseLoop(AtomicLong cursor, long fileStart, long fileEnd, Table table) {
+        while (true) {
+            long current = cursor.getAndAdd(SEGMENT_SIZE);
+            if (current >= fileEnd) {
+                return;
+            }
+            long segmentEnd = nextNewLine(Math.min(fileEnd - 1, current + SEGMENT_SIZE));
+            long pos = current == fileStart ? current : nextNewLine(current) + 1;
+            while (pos < segmentEnd) {
+                pos = parseRow(pos, table);
+            }
+        }
+    }
+
+    // Parses the row at pos, records it and returns the start of the next row.
+    private static long parseRow(long nameAddress, Table table) {
+        long pos = nameAddress;
+        long hash = 0;
+        long word;
+        long delimiterMask;
+        while (true) {
+            word = UNSAFE.getLong(pos);
+            delimiterMask = findDelimiter(word);
+            if (delimiterMask != 0) {
+                break;
+            }
+            hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+            pos += 8;
+        }
+        int trailingZeros = Long.numberOfTrailingZeros(delimiterMask);
+        // Only the name bytes of the last word.
+        hash = (hash ^ (word & ((1L << (trailingZeros - 7)) - 1))) * 0x9E3779B97F4A7C15L;
+        pos += trailingZeros >>> 3;
+        int nameLength = (int) (pos - nameAddress);
+        // Never 0, which marks empty slots.
+        hash |= 1;
+
+        long numberWord = UNSAFE.getLong(pos + 1);
+        int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+        int value = (int) convertIntoNumber(decimalSepPos, numberWord);
+
+        long slot = table.find(nameAddress, nameLength, hash, firstBytes(UNSAFE.getLong(nameAddress), nameLength),
+                firstBytes(UNSAFE.getLong(nameAddress + 8), nameLength - 8));
+        UNSAFE.putLong(slot + SUM, UNSAFE.getLong(slot + SUM) + value);
+        UNSAFE.putLong(slot + COUNT, UNSAFE.getLong(slot + COUNT) + 1);
+        UNSAFE.putInt(slot + MIN, Math.max(UNSAFE.getInt(slot + MIN), 1000 - value));
+        UNSAFE.putInt(slot + MAX, Math.max(UNSAFE.getInt(slot + MAX), 1000 + value));
+        return pos + (decimalSepPos >>> 3) + 4;
+    }
+
+    // The first n bytes of the word, all of them for n >= 8 and none for n <= 0.
+    private static long firstBytes(long word, int n) {
+        return n >= 8 ? word : word & ((1L << (Math.max(n, 0) << 3)) - 1);
+    }
+
+    /**
+     * Hot and cold tables of {@link #SLOT_SIZE}-byte slots in native memory. Min and max are stored as
+     * {@code 1000 - min} and {@code 1000 + max}, so that zeroed slots need no initialization and merging is a max.
+     */
+    private static final class Table {
+        private final long hotBase;
+        private final long coldBase;
+        private final int coldMask;
+
+        Table() {
+            hotBase = allocateZeroed((long) HOT_SLOTS * SLOT_SIZE);
+            coldBase = allocateZeroed((long) COLD_SLOTS * SLOT_SIZE);
+            coldMask = COLD_SLOTS - 1;
+        }
+
+        // Returns the slot to record the row in.
+        long find(long nameAddress, int nameLength, long hash, long word0, long word1) {
+            if (!HOT) {
+                return findCold(nameAddress, nameLength, hash, word0, word1);
+            }
+            // Low bits for the hot table and high bits for the cold table, as they are otherwise correlated.
+            long hot = hotBase + ((hash >>> 1) & (HOT_SLOTS - 1)) * SLOT_SIZE;
+            if (UNSAFE.getLong(hot + HASH) == hash && UNSAFE.getInt(hot + NAME_LENGTH) == nameLength && UNSAFE.getLong(hot + WORD0) == word0
+                    && UNSAFE.getLong(hot + WORD1) == word1
+                    && (nameLength <= 16 || nameEquals(UNSAFE.getLong(UNSAFE.getLong(hot + COLD_SLOT) + NAME_ADDRESS) + 16, nameAddress + 16, nameLength - 16))) {
+                return hot;
+            }
+            long cold = findCold(nameAddress, nameLength, hash, word0, word1);
+            long seen = UNSAFE.getLong(cold + COUNT);
+            long occupant = UNSAFE.getLong(hot + HASH);
+            if (occupant == 0 ? seen >= PROMOTE_AFTER
+                    : seen > 2 * (UNSAFE.getLong(hot + COUNT) + UNSAFE.getInt(hot + COLD_COUNT))) {
+                if (occupant != 0) {
+                    flush(hot);
+                }
+                UNSAFE.putLong(hot + HASH, hash);
+                UNSAFE.putLong(hot + COLD_SLOT, cold);
+                UNSAFE.putLong(hot + WORD0, word0);
+                UNSAFE.putLong(hot + WORD1, word1);
+                UNSAFE.putInt(hot + NAME_LENGTH, nameLength);
+                UNSAFE.putInt(hot + COLD_COUNT, (int) Math.min(seen, Integer.MAX_VALUE));
+                return hot;
+            }
+            return cold;
+        }
+
+        private long findCold(long nameAddress, int nameLength, long hash, long word0, long word1) {
+            int index = (int) (hash >>> 32) & coldMask;
+            for (int probes = 0; probes <= coldMask; probes++) {
+                long slot = coldBase + (long) index * SLOT_SIZE;
+                long existing = UNSAFE.getLong(slot + HASH);
+                if (existing == 0) {
+                    UNSAFE.putLong(slot + HASH, hash);
+                    UNSAFE.putLong(slot + NAME_ADDRESS, nameAddress);
+                    UNSAFE.putLong(slot + WORD0, word0);
+                    UNSAFE.putLong(slot + WORD1, word1);
+                    UNSAFE.putInt(slot + NAME_LENGTH, nameLength);
+                    return slot;
+                }
+                if (existing == hash && UNSAFE.getInt(slot + NAME_LENGTH) == nameLength && UNSAFE.getLong(slot + WORD0) == word0
+                        && UNSAFE.getLong(slot + WORD1) == word1
+                        && (nameLength <= 16 || nameEquals(UNSAFE.getLong(slot + NAME_ADDRESS) + 16, nameAddress + 16, nameLength - 16))) {
+                    return slot;
+                }
+                index = (index + 1) & coldMask;
+            }
+            throw new IllegalStateException("Station table is full");
+        }
+
+        // Moves the statistics of a hot slot into its cold slot and empties it.
+        private static void flush(long hot) {
+            accumulate(UNSAFE.getLong(hot + COLD_SLOT), hot);
+            UNSAFE.setMemory(hot, SLOT_SIZE, (byte) 0);
+        }
+
+        void flushHot() {
+            for (long hot = hotBase; hot < hotBase + (long) HOT_SLOTS * SLOT_SIZE; hot += SLOT_SIZE) {
+                if (UNSAFE.getLong(hot + HASH) != 0) {
+                    flush(hot);
+                }
+            }
+        }
+
+        private static void accumulate(long target, long source) {
+            UNSAFE.putLong(target + SUM, UNSAFE.getLong(target + SUM) + UNSAFE.getLong(source + SUM));
+            UNSAFE.putLong(target + COUNT, UNSAFE.getLong(target + COUNT) + UNSAFE.getLong(source + COUNT));
+            UNSAFE.putInt(target + MIN, Math.max(UNSAFE.getInt(target + MIN), UNSAFE.getInt(source + MIN)));
+            UNSAFE.putInt(target + MAX, Math.max(UNSAFE.getInt(target + MAX), UNSAFE.getInt(source + MAX)));
+        }
+
+        // Merges the cold slots of other, whose hot slots must have been flushed.
+        void mergeFrom(Table other) {
+            for (long slot = other.coldBase; slot <= other.coldBase + (long) other.coldMask * SLOT_SIZE; slot += SLOT_SIZE) {
+                long hash = UNSAFE.getLong(slot + HASH);
+                if (hash != 0) {
+                    accumulate(findCold(UNSAFE.getLong(slot + NAME_ADDRESS), UNSAFE.getInt(slot + NAME_LENGTH), hash, UNSAFE.getLong(slot + WORD0),
+                            UNSAFE.getLong(slot + WORD1)), slot);
+                }
+            }
+        }
+
+        String format() {
+            List<Station> stations = new ArrayList<>();
+            for (long slot = coldBase; slot <= coldBase + (long) coldMask * SLOT_SIZE; slot += SLOT_SIZE) {
+                if (UNSAFE.getLong(slot + HASH) != 0) {
+                    byte[] bytes = new byte[UNSAFE.getInt(slot + NAME_LENGTH)];
+                    UNSAFE.copyMemory(null, UNSAFE.getLong(slot + NAME_ADDRESS), bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+                    stations.add(new Station(new String(bytes, StandardCharsets.UTF_8), slot));
+                }
+            }
+            stations.sort(Comparator.comparing(Station::name));
+
+            StringBuilder sb = new StringBuilder(stations.size() * 32 + 2).append('{');
+            for (Station station : stations) {
+                long slot = station.slot();
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                long count = UNSAFE.getLong(slot + COUNT);
+                sb.append(station.name()).append('=')
+                        .append(round((1000 - UNSAFE.getInt(slot + MIN)) / 10.0)).append('/')
+                        .append(round((UNSAFE.getLong(slot + SUM) / 10.0) / count)).append('/')
+                        .append(round((UNSAFE.getInt(slot + MAX) - 1000) / 10.0));
+            }
+            return sb.append('}').toString();
+        }
+
+        void free() {
+            UNSAFE.freeMemory(hotBase);
+            UNSAFE.freeMemory(coldBase);
+        }
+
+        private static long allocateZeroed(long bytes) {
+            long address = UNSAFE.allocateMemory(bytes);
+            UNSAFE.setMemory(address, bytes, (byte) 0);
+            return address;
+        }
+    }
+
+    private record Station(String name, long slot) {
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static boolean nameEquals(long a, long b, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        // The remaining name bytes and the ';' after them.
+        long tailMask = -1L >>> ((7 - (length - i)) << 3);
+        return ((UNSAFE.getLong(a + i) ^ UNSAFE.getLong(b + i)) & tailMask) == 0;
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Variant of thomaswue's entry with a configurable number of interleaved cursors per segment.
+ * <p>
+ * thomaswue splits every segment into three parts and advances three hand-unrolled cursors in lock-step, so that the
+ * dependency chains of three lines (load, delimiter search, table lookup, number parsing) are in flight at once. How
+ * many chains pay off depends on the core: reorder buffer size, load ports, and how many misses it tracks. Here the
+ * width is {@code -Dinterleave=<1..8>} (default 3), and the cursor state lives in arrays of that length, so there is no
+ * copy-paste per width. The width is a static final, so the loops over the cursors have a constant trip count. The loop
+ * body is split into phases (load words, resolve stations, parse numbers, record) so that each phase issues the
+ * independent work of all cursors back to back.
+ * <p>
+ * This is not as fast as the hand-written version. On the 2 GB sample on one vCPU, widths 3 and 4 took 3.8-4.5 s,
+ * against 3.7 s for thomaswue; width 1 took 5.0-5.5 s and width 8 took 4.5-4.7 s.
+ * <p>
+ * {@code evaluate_interleave.sh} benchmarks all widths.
+ */
+public class CalculateAverage_interleaved {
+    private static final String FILE = "./measurements.txt";
+    private static final int MIN_TEMP = -999;
+    private static final int MAX_TEMP = 999;
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int MAX_CITIES = 10000;
+    private static final int SEGMENT_SIZE = 1 << 21;
+    private static final int HASH_TABLE_SIZE = 1 << 17;
+
+    private static final int WIDTH = Integer.getInteger("interleave", 3);
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (WIDTH < 1 || WIDTH > 8) {
+            throw new IllegalArgumentException("interleave must be between 1 and 8, was " + WIDTH);
+        }
+        // Start worker subprocess if this process is not the worker, so that unmapping does not count.
+        if (args.length == 0 || !("--worker".equals(args[0]))) {
+            spawnWorker();
+            return;
+        }
+
+        int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            final long fileStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            final long fileEnd = fileStart + fileSize;
+            final AtomicLong cursor = new AtomicLong(fileStart);
+
+            Thread[] threads = new Thread[numberOfWorkers];
+            List<Result>[] allResults = new List[numberOfWorkers];
+            for (int i = 0; i < threads.length; ++i) {
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    List<Result> results = new ArrayList<>(MAX_CITIES);
+                    parseLoop(cursor, fileEnd, fileStart, results);
+                    allResults[index] = results;
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            System.out.println(accumulateResults(allResults));
+            System.out.close();
+        }
+    }
+
+    private static void spawnWorker() throws IOException {
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        ArrayList<String> workerCommand = new ArrayList<>();
+        info.command().ifPresent(workerCommand::add);
+        info.arguments().ifPresent(args -> workerCommand.addAll(Arrays.asList(args)));
+        workerCommand.add("--worker");
+        new ProcessBuilder().command(workerCommand).inheritIO().redirectOutput(ProcessBuilder.Redirect.PIPE)
+                .start().getInputStream().transferTo(System.out);
+    }
+
+    private static TreeMap<String, Result> accumulateResults(List<Result>[] allResults) {
+        TreeMap<String, Result> result = new TreeMap<>();
+        for (List<Result> resultArr : allResults) {
+            for (Result r : resultArr) {
+                Result current = result.putIfAbsent(r.calcName(), r);
+                if (current != null) {
+                    current.accumulate(r);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void parseLoop(AtomicLong counter, long fileEnd, long fileStart, List<Result> collectedResults) {
+        Result[] results = new Result[HASH_TABLE_SIZE];
+        // Cursor state, one slot per interleaved cursor.
+        long[] pos = new long[WIDTH];
+        long[] end = new long[WIDTH];
+        long[] word = new long[WIDTH];
+        long[] wordB = new long[WIDTH];
+        long[] delimiterMask = new long[WIDTH];
+        long[] delimiterMaskB = new long[WIDTH];
+        long[] number = new long[WIDTH];
+        Result[] current = new Result[WIDTH];
+
+        while (true) {
+            long segment = counter.addAndGet(SEGMENT_SIZE) - SEGMENT_SIZE;
+            if (segment >= fileEnd) {
+                return;
+            }
+
+            long segmentEnd = nextNewLine(Math.min(fileEnd - 1, segment + SEGMENT_SIZE));
+            long segmentStart = segment == fileStart ? segment : nextNewLine(segment) + 1;
+
+            // Cursor k covers the lines starting in [pos[k], end[k]), end[k] being the position of a '\n'.
+            long dist = (segmentEnd - segmentStart) / WIDTH;
+            long start = segmentStart;
+            for (int k = 0; k < WIDTH - 1; k++) {
+                pos[k] = start;
+                end[k] = nextNewLine(segmentStart + dist * (k + 1));
+                start = Math.max(start, end[k] + 1);
+            }
+            pos[WIDTH - 1] = start;
+            end[WIDTH - 1] = segmentEnd;
+
+            while (true) {
+                boolean hasNext = true;
+                for (int k = 0; k < WIDTH; k++) {
+                    hasNext &= pos[k] < end[k];
+                }
+                if (!hasNext) {
+                    break;
+                }
+                for (int k = 0; k < WIDTH; k++) {
+                    word[k] = UNSAFE.getLong(pos[k]);
+                    delimiterMask[k] = findDelimiter(word[k]);
+                }
+                for (int k = 0; k < WIDTH; k++) {
+                    wordB[k] = UNSAFE.getLong(pos[k] + 8);
+                    delimiterMaskB[k] = findDelimiter(wordB[k]);
+                }
+                for (int k = 0; k < WIDTH; k++) {
+                    current[k] = findResult(pos[k], word[k], delimiterMask[k], wordB[k], delimiterMaskB[k], results, collectedResults);
+                }
+                for (int k = 0; k < WIDTH; k++) {
+                    long delimiter = pos[k] + current[k].nameLength;
+                    long numberWord = UNSAFE.getLong(delimiter + 1);
+                    int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+                    number[k] = convertIntoNumber(decimalSepPos, numberWord);
+                    pos[k] = delimiter + (decimalSepPos >>> 3) + 4;
+                }
+                for (int k = 0; k < WIDTH; k++) {
+                    record(current[k], number[k]);
+                }
+            }
+
+            // Cursors that are not done yet, one line at a time.
+            for (int k = 0; k < WIDTH; k++) {
+                long p = pos[k];
+                while (p < end[k]) {
+                    long w = UNSAFE.getLong(p);
+                    long w2 = UNSAFE.getLong(p + 8);
+                    Result r = findResult(p, w, findDelimiter(w), w2, findDelimiter(w2), results, collectedResults);
+                    long delimiter = p + r.nameLength;
+                    long numberWord = UNSAFE.getLong(delimiter + 1);
+                    int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+                    record(r, convertIntoNumber(decimalSepPos, numberWord));
+                    p = delimiter + (decimalSepPos >>> 3) + 4;
+                }
+            }
+        }
+    }
+
+    private static final long[] MASK1 = new long[]{ 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFFFL,
+            0xFFFFFFFFFFFFFFFFL };
+    private static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+    /**
+     * The entry for the name starting at {@code nameAddress}. Takes and returns only scalars and the table, so that
+     * the cursor arrays of the caller stay local. The name length is taken from the entry.
+     */
+    private static Result findResult(long nameAddress, long word, long delimiterMask, long word2, long delimiterMask2, Result[] results,
+                                     List<Result> collectedResults) {
+        if ((delimiterMask | delimiterMask2) != 0) {
+            int letterCount1 = Long.numberOfTrailingZeros(delimiterMask) >>> 3; // value between 0 and 8
+            int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3; // value between 0 and 8
+            long mask = MASK2[letterCount1];
+            word = word & MASK1[letterCount1];
+            word2 = mask & word2 & MASK1[letterCount2];
+            long hash = word ^ word2;
+            Result existingResult = results[hashToIndex(hash, results)];
+            if (existingResult != null && existingResult.firstNameWord == word && existingResult.secondNameWord == word2) {
+                return existingResult;
+            }
+            return findResultSlow(nameAddress, letterCount1 + (letterCount2 & (int) mask), hash, results, collectedResults);
+        }
+
+        // The ';' is not within the first 16 bytes.
+        long hash = word ^ word2;
+        long p = nameAddress + 16;
+        while (true) {
+            long w = UNSAFE.getLong(p);
+            long m = findDelimiter(w);
+            if (m != 0) {
+                int trailingZeros = Long.numberOfTrailingZeros(m);
+                hash ^= w << (63 - trailingZeros);
+                p += trailingZeros >>> 3;
+                break;
+            }
+            hash ^= w;
+            p += 8;
+        }
+        return findResultSlow(nameAddress, (int) (p - nameAddress), hash, results, collectedResults);
+    }
+
+    private static Result findResultSlow(long nameAddress, int nameLength, long hash, Result[] results, List<Result> collectedResults) {
+        int tableIndex = hashToIndex(hash, results);
+        outer: while (true) {
+            Result existingResult = results[tableIndex];
+            if (existingResult == null) {
+                return newEntry(results, nameAddress, tableIndex, nameLength, collectedResults);
+            }
+            // Compare including the ';', so that a name is never a prefix of another.
+            int i = 0;
+            for (; i < nameLength + 1 - 8; i += 8) {
+                if (UNSAFE.getLong(existingResult.nameAddress + i) != UNSAFE.getLong(nameAddress + i)) {
+                    tableIndex = (tableIndex + 31) & (results.length - 1);
+                    continue outer;
+                }
+            }
+            int remainingShift = (64 - ((nameLength + 1 - i) << 3));
+            if (((UNSAFE.getLong(existingResult.nameAddress + i) ^ UNSAFE.getLong(nameAddress + i)) << remainingShift) == 0) {
+                return existingResult;
+            }
+            tableIndex = (tableIndex + 31) & (results.length - 1);
+        }
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    private static void record(Result existingResult, long number) {
+        if (number < existingResult.min) {
+            existingResult.min = (short) number;
+        }
+        if (number > existingResult.max) {
+            existingResult.max = (short) number;
+        }
+        existingResult.sum += number;
+        existingResult.count++;
+    }
+
+    private static int hashToIndex(long hash, Result[] results) {
+        long hashAsInt = hash ^ (hash >>> 33) ^ (hash >>> 15);
+        return (int) (hashAsInt & (results.length - 1));
+    }
+
+    // Branchless conversion of the ASCII number, by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    private static Result newEntry(Result[] results, long nameAddress, int tableIndex, int nameLength, List<Result> collectedResults) {
+        Result r = new Result();
+        results[tableIndex] = r;
+        int totalLength = nameLength + 1;
+        r.firstNameWord = UNSAFE.getLong(nameAddress);
+        r.secondNameWord = UNSAFE.getLong(nameAddress + 8);
+        if (totalLength <= 8) {
+            r.firstNameWord = r.firstNameWord & MASK1[totalLength - 1];
+            r.secondNameWord = 0;
+        }
+        else if (totalLength < 16) {
+            r.secondNameWord = r.secondNameWord & MASK1[totalLength - 9];
+        }
+        r.nameAddress = nameAddress;
+        r.nameLength = nameLength;
+        collectedResults.add(r);
+        return r;
+    }
+
+    private static final class Result {
+        long firstNameWord, secondNameWord;
+        short min, max;
+        int count;
+        int nameLength;
+        long sum;
+        long nameAddress;
+
+        private Result() {
+            this.min = MAX_TEMP;
+            this.max = MIN_TEMP;
+        }
+
+        public String toString() {
+            return round(((double) min) / 10.0) + "/" + round((((double) sum) / 10.0) / count) + "/" + round(((double) max) / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+
+        private void accumulate(Result other) {
+            if (other.min < min) {
+                min = other.min;
+            }
+            if (other.max > max) {
+                max = other.max;
+            }
+            sum += other.sum;
+            count += other.count;
+        }
+
+        public String calcName() {
+            byte[] array = new byte[Math.min(nameLength, MAX_NAME_LENGTH)];
+            UNSAFE.copyMemory(null, nameAddress, array, Unsafe.ARRAY_BYTE_BASE_OFFSET, array.length);
+            return new String(array, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Publishes the aggregation while it is running: a {@link Flow.Publisher} of {@link Snapshot}s, each holding the
+ * merged statistics of everything processed so far, so that a dashboard can watch the results converge on a large
+ * file instead of waiting for the end.
+ * <p>
+ * The scan is a {@link CountedCompleter} tree in the style of shipilev's entry: the file is split in halves down to
+ * {@link #SEGMENT_SIZE}, and every worker thread aggregates into its own {@link Table}. A separate publisher thread
+ * merges those tables every {@code interval}, without any coordination with the workers: every entry is guarded by a
+ * seqlock. The writer makes the sequence odd, updates min/max/sum and makes it even again; the reader retries until it
+ * saw the same even sequence before and after reading. The sequence doubles as the count ({@code seq = 2 * count}),
+ * so the hot path pays two ordered stores and no atomic read-modify-write, and a reader never blocks a writer.
+ * Entries are only ever added to a table, and published with a release store, so readers see complete entries.
+ * <p>
+ * Delivery goes through a {@link SubmissionPublisher}, which gives every subscriber its own buffer and honours its
+ * demand. The buffer holds a single snapshot: intermediate snapshots are offered without blocking, and while one is
+ * still waiting for a subscriber that is behind, newer ones are dropped for it, which is fine as every snapshot
+ * supersedes the previous one. The final snapshot is always delivered before completion.
+ * <p>
+ * Usage: {@code calculate_average_live.sh [--live [interval ms]]}. The result is printed as usual; with {@code --live},
+ * progress is printed to stderr while running.
+ */
+public class CalculateAverage_live {
+
+    private static final String FILE = "./measurements.txt";
+    private static final int SEGMENT_SIZE = 1 << 22;
+    private static final int TABLE_BITS = 17;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final Duration DEFAULT_INTERVAL = Duration.ofMillis(500);
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ========================= API =========================
+
+    public record Stats(long min, long max, long sum, long count) {
+
+        Stats merge(Stats other) {
+            return new Stats(Math.min(min, other.min), Math.max(max, other.max), sum + other.sum, count + other.count);
+        }
+
+        @Override
+        public String toString() {
+            return round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+    }
+
+    /** Merged statistics of all lines processed so far; {@code last} is set on the final snapshot only. */
+    public record Snapshot(long bytesProcessed, long fileSize, SortedMap<String, Stats> stations, boolean last) {
+
+        public double progress() {
+            return fileSize == 0 ? 1 : (double) bytesProcessed / fileSize;
+        }
+
+        @Override
+        public String toString() {
+            return stations.toString();
+        }
+    }
+
+    /**
+     * An aggregation of one file. Subscribe first, then {@link #start()}: snapshots are only delivered to subscribers
+     * present at the time they are taken.
+     */
+    public static final class LiveAggregation implements Flow.Publisher<Snapshot>, AutoCloseable {
+        private final Path file;
+        private final Duration interval;
+        // A buffer of one snapshot per subscriber: while one waits, newer ones are dropped instead of queued.
+        private final SubmissionPublisher<Snapshot> publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), 1);
+        private final List<Table> tables = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<Table> table = ThreadLocal.withInitial(() -> {
+            Table t = new Table();
+            tables.add(t);
+            return t;
+        });
+        private final AtomicLong bytesProcessed = new AtomicLong();
+        private long fileSize;
+
+        public LiveAggregation(Path file, Duration interval) {
+            this.file = file;
+            this.interval = interval;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Snapshot> subscriber) {
+            publisher.subscribe(subscriber);
+        }
+
+        /** Processes the file on a new pool; completes with the final snapshot after it was published. */
+        public CompletableFuture<Snapshot> start() {
+            CompletableFuture<Snapshot> result = new CompletableFuture<>();
+            Thread.ofPlatform().name("aggregation").start(() -> {
+                try {
+                    result.complete(run());
+                }
+                catch (Throwable e) {
+                    publisher.closeExceptionally(e);
+                    result.completeExceptionally(e);
+                }
+            });
+            return result;
+        }
+
+        private Snapshot run() throws IOException, InterruptedException {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "snapshot-publisher");
+                t.setDaemon(true);
+                return t;
+            });
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                fileSize = channel.size();
+                long start = fileSize == 0 ? 0 : channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+                ticker.scheduleAtFixedRate(
+                        // A subscriber whose buffered snapshot is still waiting misses this one.
+                        () -> publisher.offer(snapshot(false), (subscriber, snapshot) -> false),
+                        interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+
+                pool.invoke(new ParsingTask(null, this, start, start, start + fileSize));
+            }
+            finally {
+                ticker.shutdownNow();
+                pool.shutdown();
+                // A tick still running could otherwise publish a partial snapshot after the final one, or offer it
+                // to the closed publisher.
+                while (!ticker.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // A snapshot only merges the tables, so this takes a tick at most.
+                }
+            }
+            Snapshot last = snapshot(true);
+            publisher.submit(last);
+            publisher.close();
+            return last;
+        }
+
+        private Snapshot snapshot(boolean last) {
+            // Read before the tables, so that the reported progress never runs ahead of the statistics.
+            long processed = bytesProcessed.get();
+            TreeMap<String, Stats> merged = new TreeMap<>();
+            for (Table t : tables) {
+                t.readInto(merged);
+            }
+            return new Snapshot(processed, fileSize, Collections.unmodifiableSortedMap(merged), last);
+        }
+
+        @Override
+        public void close() {
+            publisher.close();
+        }
+    }
+
+    // ========================= Processing =========================
+
+    private static final class ParsingTask extends CountedCompleter<Void> {
+        private final LiveAggregation aggregation;
+        private final long fileStart;
+        private final long start;
+        private long end;
+
+        ParsingTask(CountedCompleter<?> parent, LiveAggregation aggregation, long fileStart, long start, long end) {
+            super(parent);
+            this.aggregation = aggregation;
+            this.fileStart = fileStart;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void compute() {
+            // Fork out the upper halves until a segment is left, splitting at raw offsets: a segment processes the
+            // lines that start within it, see parse().
+            while (end - start > SEGMENT_SIZE) {
+                long mid = start + (end - start) / 2;
+                addToPendingCount(1);
+                new ParsingTask(this, aggregation, fileStart, mid, end).fork();
+                end = mid;
+            }
+            parse(aggregation.table.get(), fileStart, start, end);
+            aggregation.bytesProcessed.addAndGet(end - start);
+            tryComplete();
+        }
+    }
+
+    private static void parse(Table table, long fileStart, long start, long end) {
+        long p = start == fileStart ? start : nextNewLine(start - 1) + 1;
+        while (p < end) {
+            long nameStart = p;
+            long hash = 0;
+            long word;
+            long delimiterMask;
+            while (true) {
+                word = UNSAFE.getLong(p);
+                delimiterMask = findDelimiter(word);
+                if (delimiterMask != 0) {
+                    break;
+                }
+                hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+                p += 8;
+            }
+            // Keep the bytes before the ';' only.
+            long lastWord = word & ((Long.lowestOneBit(delimiterMask) >>> 7) - 1);
+            hash = (hash ^ lastWord) * 0x9E3779B97F4A7C15L;
+            long delimiter = p + (Long.numberOfTrailingZeros(delimiterMask) >>> 3);
+            int nameLength = (int) (delimiter - nameStart);
+
+            long numberWord = UNSAFE.getLong(delimiter + 1);
+            int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+            long number = convertIntoNumber(decimalSepPos, numberWord);
+            p = delimiter + (decimalSepPos >>> 3) + 4;
+
+            table.entry(nameStart, nameLength, lastWord, hash).record(number);
+        }
+    }
+
+    /**
+     * Open addressing table owned by one worker thread. {@link #readInto} may be called concurrently from any thread.
+     */
+    private static final class Table {
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Entry[].class);
+
+        private final Entry[] slots = new Entry[TABLE_SIZE];
+
+        Entry entry(long nameAddress, int nameLength, long lastWord, long hash) {
+            // The multiplicative hash has its entropy in the upper bits.
+            int index = (int) (hash >>> (64 - TABLE_BITS));
+            while (true) {
+                Entry entry = slots[index];
+                if (entry == null) {
+                    entry = new Entry(nameAddress, nameLength, lastWord);
+                    // Publishes the fully constructed entry to readers.
+                    SLOTS.setRelease(slots, index, entry);
+                    return entry;
+                }
+                if (entry.lastWord == lastWord && entry.nameLength == nameLength && entry.nameEquals(nameAddress)) {
+                    return entry;
+                }
+                index = (index + 1) & (TABLE_SIZE - 1);
+            }
+        }
+
+        void readInto(TreeMap<String, Stats> merged) {
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                Entry entry = (Entry) SLOTS.getAcquire(slots, i);
+                if (entry != null) {
+                    Stats stats = entry.read();
+                    if (stats.count() > 0) {
+                        merged.merge(entry.name(), stats, Stats::merge);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private static final VarHandle SEQ;
+
+        static {
+            try {
+                SEQ = MethodHandles.lookup().findVarHandle(Entry.class, "seq", long.class);
+            }
+            catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // Points into the mapping, which stays for the lifetime of the process.
+        final long nameAddress;
+        final int nameLength;
+        final long lastWord;
+        // Created lazily by readers; racy, but Strings are immutable.
+        private String name;
+
+        // Twice the count, odd while an update is in progress.
+        private long seq;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private long sum;
+
+        Entry(long nameAddress, int nameLength, long lastWord) {
+            this.nameAddress = nameAddress;
+            this.nameLength = nameLength;
+            this.lastWord = lastWord;
+        }
+
+        // Only called by the owning thread.
+        void record(long value) {
+            long s = seq;
+            SEQ.setOpaque(this, s + 1);
+            // The odd sequence must be visible before any of the data changes.
+            VarHandle.storeStoreFence();
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            SEQ.setRelease(this, s + 2);
+        }
+
+        Stats read() {
+            while (true) {
+                long before = (long) SEQ.getAcquire(this);
+                if ((before & 1) == 0) {
+                    long min = this.min;
+                    long max = this.max;
+                    long sum = this.sum;
+                    // The data must be read before the sequence is checked again.
+                    VarHandle.loadLoadFence();
+                    if ((long) SEQ.getOpaque(this) == before) {
+                        return new Stats(min, max, sum, before >>> 1);
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        boolean nameEquals(long other) {
+            int i = 0;
+            for (; i + 8 <= nameLength; i += 8) {
+                if (UNSAFE.getLong(nameAddress + i) != UNSAFE.getLong(other + i)) {
+                    return false;
+                }
+            }
+            // The remaining bytes are in lastWord, which the caller compared already.
+            return true;
+        }
+
+        String name() {
+            if (name == null) {
+                byte[] bytes = new byte[nameLength];
+                UNSAFE.copyMemory(null, nameAddress, bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, nameLength);
+                name = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return name;
+        }
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    // Branchless conversion of the ASCII number, by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    // ========================= Command line =========================
+
+    public static void main(String[] args) throws Exception {
+        boolean live = args.length > 0 && args[0].equals("--live");
+        Duration interval = args.length > 1 ? Duration.ofMillis(Long.parseLong(args[1])) : DEFAULT_INTERVAL;
+
+        LiveAggregation aggregation = new LiveAggregation(Path.of(FILE), interval);
+        if (live) {
+            aggregation.subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(Snapshot snapshot) {
+                    long count = snapshot.stations().values().stream().mapToLong(Stats::count).sum();
+                    System.err.printf("%5.1f%%  %,d stations  %,d measurements%n", snapshot.progress() * 100,
+                            snapshot.stations().size(), count);
+                    // One at a time: of the snapshots taken while this one is printed, at most one is buffered, the
+                    // rest are dropped.
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    throwable.printStackTrace();
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+        }
+        System.out.println(aggregation.start().join());
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Two-pass variant of the segment-parallel approach with a station lookup that does not probe.
+ * <p>
+ * The first pass parses the first {@link #SAMPLE_SIZE} bytes of the file to discover the station names. A minimal
+ * perfect hash function is then built over the 64-bit hashes of those names, in the style of CHD / PTHash: keys are
+ * split into partitions of about {@link #PARTITION_SIZE} keys, each partition spreads its keys over buckets of on
+ * average {@link #BUCKET_SIZE} keys, and for every bucket, largest first, a pilot value is searched such that all its
+ * keys land on free slots. Partitions are independent and are built in parallel.
+ * <p>
+ * The main pass then maps each name to its slot with a fixed number of operations and a single name comparison,
+ * which for names shorter than 16 bytes is just two word compares. Names that were not seen in the sample (or whose
+ * bucket could not be placed) fail that comparison and go to a regular per-thread open addressing table. On a file
+ * with a stable set of stations, this removes probing from the hot loop and leaves one comparison per row.
+ * <p>
+ * The idea of a perfect hash comes from {@link PerfectHashSearch_hundredwatt}, which searches one offline for the
+ * fixed set of temperature values. Name parsing and the branchless number parsing follow
+ * {@link CalculateAverage_thomaswue} and Quan Anh Mai.
+ */
+public class CalculateAverage_perfecthash {
+    private static final String FILE = "./measurements.txt";
+    private static final int MIN_TEMP = -999;
+    private static final int MAX_TEMP = 999;
+    private static final int SEGMENT_SIZE = 1 << 21;
+
+    // The file is mapped in chunks that are unmapped in the background as soon as all their segments
+    // are done, see BackgroundUnmapper. The overlap covers the longest line plus word over-reads.
+    private static final long CHUNK_SIZE = 1 << 25;
+    private static final int CHUNK_OVERLAP = 256;
+    private static final int FALLBACK_TABLE_SIZE = 1 << 17;
+
+    // Size of the prefix of the file used to discover the station names.
+    private static final int SAMPLE_SIZE = 2 << 20;
+
+    // Perfect hash construction: target number of keys per partition, average number
+    // of keys per bucket and the number of pilot values tried for a single bucket.
+    private static final int PARTITION_SIZE = 1024;
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_PILOT = 1 << 20;
+
+    // Kernel I/O hints with -DioHints=true, see IoHints: sequential readahead for the file, and the
+    // next chunk is requested when the first segment of a chunk is claimed. MADV_SEQUENTIAL on the
+    // mapping was clearly slower (cold cache) in measurements and is not used.
+    private static final boolean IO_HINTS = Boolean.getBoolean("ioHints");
+
+    // Prints details about the sample and the perfect hash to stderr.
+    private static final boolean VERBOSE = false;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Optional worker placement with -DcpuPolicy=physical_cores etc., see CpuTopology.Policy.
+        final int[] cpus = CpuTopology.cpusFor(System.getProperty("cpuPolicy"));
+        int numberOfWorkers = cpus != null ? cpus.length : Runtime.getRuntime().availableProcessors();
+        // Not closed: that would wait for the remaining chunks to be unmapped.
+        final BackgroundUnmapper file = new BackgroundUnmapper(Path.of(FILE), CHUNK_SIZE, SEGMENT_SIZE, CHUNK_OVERLAP);
+        if (IO_HINTS) {
+            IoHints.fadvise(Path.of(FILE), 0, 0, IoHints.POSIX_FADV_SEQUENTIAL);
+        }
+
+        // First pass: discover the station names in the beginning of the file (within the first chunk).
+        long start = System.nanoTime();
+        long fileStart = file.chunkAddress(0);
+        long sampleEnd = nextNewLine(fileStart + Math.min(file.fileSize() - 1, SAMPLE_SIZE));
+        Worker sampler = new Worker(PerfectHash.EMPTY);
+        sampler.parseRange(fileStart, sampleEnd);
+        PerfectHash perfectHash = PerfectHash.build(sampler.fallback.entries);
+        if (VERBOSE) {
+            System.err.printf("Sampled %,d bytes, %,d stations, %,d placed in %d partitions in %d ms%n",
+                    sampleEnd - fileStart, sampler.fallback.entries.size(), perfectHash.placed, perfectHash.partitions,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+
+        // Second pass: parallel processing of segments.
+        Thread[] threads = new Thread[numberOfWorkers];
+        Worker[] workers = new Worker[numberOfWorkers];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                if (cpus != null) {
+                    CpuTopology.pin(cpus[index]);
+                }
+                Worker worker = new Worker(perfectHash);
+                worker.parseLoop(file);
+                workers[index] = worker;
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.println(accumulateResults(workers));
+        System.out.close();
+    }
+
+    private static TreeMap<String, Result> accumulateResults(Worker[] workers) {
+        TreeMap<String, Result> result = new TreeMap<>();
+        for (Worker worker : workers) {
+            for (Result r : worker.slots) {
+                if (r.count > 0) {
+                    result.merge(r.calcName(), r, Result::accumulate);
+                }
+            }
+            for (Result r : worker.fallback.entries) {
+                result.merge(r.calcName(), r, Result::accumulate);
+            }
+        }
+        return result;
+    }
+
+    // ========================= Parsing =========================
+
+    private static final class Worker {
+        private final PerfectHash perfectHash;
+        private final Result[] slots;
+        private final FallbackTable fallback = new FallbackTable();
+
+        Worker(PerfectHash perfectHash) {
+            this.perfectHash = perfectHash;
+            this.slots = perfectHash.newResults();
+        }
+
+        void parseLoop(BackgroundUnmapper file) {
+            BackgroundUnmapper.Segment segment;
+            while ((segment = file.claim()) != null) {
+                int next = segment.chunk() + 1;
+                if (IO_HINTS && next < file.chunks() && segment.start() == file.chunkAddress(segment.chunk())) {
+                    IoHints.madvise(file.chunkAddress(next), file.chunkLength(next), IoHints.MADV_WILLNEED);
+                }
+                long segmentEnd = nextNewLine(segment.last() ? segment.end() - 1 : segment.end());
+                long segmentStart = segment.first() ? segment.start() : nextNewLine(segment.start()) + 1;
+                parseRange(segmentStart, segmentEnd);
+                file.complete(segment);
+            }
+        }
+
+        void parseRange(long pos, long end) {
+            final PerfectHash perfectHash = this.perfectHash;
+            final Result[] slots = this.slots;
+            while (pos < end) {
+                long nameAddress = pos;
+                long word1 = UNSAFE.getLong(pos);
+                long word2 = UNSAFE.getLong(pos + 8);
+                long delimiterMask1 = findDelimiter(word1);
+                long delimiterMask2 = findDelimiter(word2);
+                Result result;
+                if ((delimiterMask1 | delimiterMask2) != 0) {
+                    // Name shorter than 16 bytes, the two masked words identify it.
+                    int letterCount1 = Long.numberOfTrailingZeros(delimiterMask1) >>> 3; // value between 0 and 8
+                    int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3; // value between 0 and 8
+                    long mask = MASK2[letterCount1];
+                    word1 = word1 & MASK1[letterCount1];
+                    word2 = mask & word2 & MASK1[letterCount2];
+                    int nameLength = letterCount1 + (int) (letterCount2 & mask);
+                    long hash = mix(word1 * HASH_MULTIPLIER + word2 + nameLength);
+                    pos += nameLength + 1;
+
+                    result = slots[perfectHash.slot(hash)];
+                    if (result.firstNameWord != word1 || result.secondNameWord != word2) {
+                        result = fallback.find(hash, nameAddress, nameLength, word1, word2);
+                    }
+                }
+                else {
+                    // Slow-path for when the ';' could not be found in the first 16 bytes.
+                    int nameLength = 16;
+                    while (true) {
+                        long mask = findDelimiter(UNSAFE.getLong(pos + nameLength));
+                        if (mask != 0) {
+                            nameLength += Long.numberOfTrailingZeros(mask) >>> 3;
+                            break;
+                        }
+                        nameLength += 8;
+                    }
+                    long hash = hashName(nameAddress, nameLength);
+                    pos += nameLength + 1;
+
+                    result = slots[perfectHash.slot(hash)];
+                    if (result.nameLength != nameLength || !namesEqual(result.nameAddress, nameAddress, nameLength)) {
+                        result = fallback.find(hash, nameAddress, nameLength, word1, word2);
+                    }
+                }
+
+                long numberWord = UNSAFE.getLong(pos);
+                int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+                result.record(convertIntoNumber(decimalSepPos, numberWord));
+                pos += (decimalSepPos >>> 3) + 3;
+            }
+        }
+    }
+
+    // Regular open addressing table for the names missed by the perfect hash.
+    private static final class FallbackTable {
+        private final Result[] table = new Result[FALLBACK_TABLE_SIZE];
+        private final List<Result> entries = new ArrayList<>();
+
+        Result find(long hash, long nameAddress, int nameLength, long word1, long word2) {
+            int index = (int) hash & (FALLBACK_TABLE_SIZE - 1);
+            while (true) {
+                Result r = table[index];
+                if (r == null) {
+                    r = new Result(hash, nameAddress, nameLength, word1, word2);
+                    table[index] = r;
+                    entries.add(r);
+                    return r;
+                }
+                if (r.hash == hash && r.nameLength == nameLength && r.firstNameWord == word1 && r.secondNameWord == word2
+                        && (nameLength < 16 || namesEqual(r.nameAddress, nameAddress, nameLength))) {
+                    return r;
+                }
+                index = (index + 1) & (FALLBACK_TABLE_SIZE - 1);
+            }
+        }
+    }
+
+    // ========================= Perfect hash =========================
+
+    private static final class PerfectHash {
+        static final PerfectHash EMPTY = new PerfectHash(1, 1, new int[1], new int[1], new int[1], new Result[]{ Result.sentinel() }, 0);
+
+        private final int partitions;
+        private final int bucketsPerPartition;
+        private final int[] offsets;
+        private final int[] sizes;
+        private final int[] pilots;
+        private final Result[] stations;
+        private final int placed;
+
+        private PerfectHash(int partitions, int bucketsPerPartition, int[] offsets, int[] sizes, int[] pilots, Result[] stations, int placed) {
+            this.partitions = partitions;
+            this.bucketsPerPartition = bucketsPerPartition;
+            this.offsets = offsets;
+            this.sizes = sizes;
+            this.pilots = pilots;
+            this.stations = stations;
+            this.placed = placed;
+        }
+
+        // The high half of the hash selects the partition, the low half the bucket
+        // inside of it, and the bucket's pilot perturbs the hash for the final slot.
+        int slot(long hash) {
+            int partition = (int) (((hash >>> 32) * partitions) >>> 32);
+            int bucket = partition * bucketsPerPartition + (int) (((hash & 0xFFFFFFFFL) * bucketsPerPartition) >>> 32);
+            return offsets[partition] + reduce(hash, pilots[bucket], sizes[partition]);
+        }
+
+        private static int reduce(long hash, int pilot, int size) {
+            return (int) (((mix(hash ^ (pilot * PILOT_MULTIPLIER)) >>> 32) * size) >>> 32);
+        }
+
+        // Every worker gets its own results, pre-populated with the station names.
+        Result[] newResults() {
+            Result[] results = new Result[stations.length];
+            for (int i = 0; i < results.length; i++) {
+                Result s = stations[i];
+                results[i] = new Result(s.hash, s.nameAddress, s.nameLength, s.firstNameWord, s.secondNameWord);
+            }
+            return results;
+        }
+
+        static PerfectHash build(List<Result> sample) {
+            // Names with the same 64-bit hash can not be told apart, all but the first go to the fallback table.
+            Set<Long> seen = new HashSet<>();
+            List<Result> keys = new ArrayList<>(sample.size());
+            for (Result r : sample) {
+                if (seen.add(r.hash)) {
+                    keys.add(r);
+                }
+            }
+            if (keys.isEmpty()) {
+                return EMPTY;
+            }
+
+            int n = keys.size();
+            int partitions = (n + PARTITION_SIZE - 1) / PARTITION_SIZE;
+            int bucketsPerPartition = Math.max(1, (n / partitions + BUCKET_SIZE - 1) / BUCKET_SIZE);
+
+            List<List<Result>> byPartition = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                byPartition.add(new ArrayList<>());
+            }
+            for (Result r : keys) {
+                byPartition.get((int) (((r.hash >>> 32) * partitions) >>> 32)).add(r);
+            }
+
+            int[] offsets = new int[partitions];
+            int[] sizes = new int[partitions];
+            for (int p = 0, offset = 0; p < partitions; p++) {
+                offsets[p] = offset;
+                sizes[p] = byPartition.get(p).size();
+                offset += sizes[p];
+            }
+
+            // One extra slot for the sentinel, which is hit by lookups in empty partitions.
+            int[] pilots = new int[partitions * bucketsPerPartition];
+            Result[] stations = new Result[n + 1];
+            Arrays.fill(stations, Result.sentinel());
+            int placed = IntStream.range(0, partitions).parallel()
+                    .map(p -> buildPartition(byPartition.get(p), bucketsPerPartition, p * bucketsPerPartition, pilots, offsets[p], stations))
+                    .sum();
+            return new PerfectHash(partitions, bucketsPerPartition, offsets, sizes, pilots, stations, placed);
+        }
+
+        private static int buildPartition(List<Result> keys, int bucketCount, int bucketBase, int[] pilots, int offset, Result[] stations) {
+            int size = keys.size();
+            List<List<Result>> buckets = new ArrayList<>(bucketCount);
+            for (int b = 0; b < bucketCount; b++) {
+                buckets.add(new ArrayList<>());
+            }
+            for (Result r : keys) {
+                buckets.get((int) (((r.hash & 0xFFFFFFFFL) * bucketCount) >>> 32)).add(r);
+            }
+            Integer[] order = new Integer[bucketCount];
+            for (int b = 0; b < bucketCount; b++) {
+                order[b] = b;
+            }
+            Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+            boolean[] taken = new boolean[size];
+            int[] candidate = new int[BUCKET_SIZE * 8];
+            int placed = 0;
+            for (int b : order) {
+                List<Result> bucket = buckets.get(b);
+                if (bucket.isEmpty()) {
+                    break;
+                }
+                if (candidate.length < bucket.size()) {
+                    candidate = new int[bucket.size()];
+                }
+                search: for (int pilot = 0; pilot < MAX_PILOT; pilot++) {
+                    for (int i = 0; i < bucket.size(); i++) {
+                        int slot = reduce(bucket.get(i).hash, pilot, size);
+                        if (taken[slot]) {
+                            continue search;
+                        }
+                        for (int j = 0; j < i; j++) {
+                            if (candidate[j] == slot) {
+                                continue search;
+                            }
+                        }
+                        candidate[i] = slot;
+                    }
+                    for (int i = 0; i < bucket.size(); i++) {
+                        taken[candidate[i]] = true;
+                        stations[offset + candidate[i]] = bucket.get(i);
+                    }
+                    pilots[bucketBase + b] = pilot;
+                    placed += bucket.size();
+                    break;
+                }
+                // If no pilot was found, the bucket's keys simply end up in the fallback table.
+            }
+            return placed;
+        }
+    }
+
+    // ========================= Hashing and parsing helpers =========================
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final long PILOT_MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    // Number of name bytes in a word -> mask keeping those bytes.
+    private static final long[] MASK1 = new long[]{ 0x00L, 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL,
+            0xFFFFFFFFFFFFFFFFL };
+    private static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 32)) * 0xD6E8FEB86659FD93L;
+        return x ^ (x >>> 32);
+    }
+
+    // Same hash as computed inline for short names: the name words, without the ';',
+    // folded by multiplication, plus the length.
+    private static long hashName(long address, int length) {
+        long hash = UNSAFE.getLong(address) & MASK1[Math.min(length, 8)];
+        hash = hash * HASH_MULTIPLIER + (length > 8 ? UNSAFE.getLong(address + 8) & MASK1[Math.min(length - 8, 8)] : 0);
+        for (int i = 16; i < length; i += 8) {
+            hash = hash * HASH_MULTIPLIER + (UNSAFE.getLong(address + i) & MASK1[Math.min(length - i, 8)]);
+        }
+        return mix(hash + length);
+    }
+
+    private static boolean namesEqual(long a, long b, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        long mask = MASK1[length - i];
+        return ((UNSAFE.getLong(a + i) ^ UNSAFE.getLong(b + i)) & mask) == 0;
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    // ========================= Results =========================
+
+    private static final class Result {
+        final long hash;
+        final long firstNameWord, secondNameWord;
+        final long nameAddress;
+        final int nameLength;
+        short min, max;
+        int count;
+        long sum;
+
+        Result(long hash, long nameAddress, int nameLength, long firstNameWord, long secondNameWord) {
+            this.hash = hash;
+            this.nameAddress = nameLength > 0 ? copyName(nameAddress, nameLength) : 0;
+            this.nameLength = nameLength;
+            this.firstNameWord = firstNameWord;
+            this.secondNameWord = secondNameWord;
+            this.min = MAX_TEMP;
+            this.max = MIN_TEMP;
+        }
+
+        // The chunk the name was read from is unmapped while parsing continues, so results keep a copy,
+        // with room for the word over-reads of namesEqual(). Never freed, there is one per station and worker.
+        private static long copyName(long nameAddress, int nameLength) {
+            long copy = UNSAFE.allocateMemory(nameLength + 8);
+            UNSAFE.copyMemory(nameAddress, copy, nameLength);
+            return copy;
+        }
+
+        // Matches no name: names never contain 0xFF bytes, and have a positive length.
+        static Result sentinel() {
+            return new Result(0, 0, -1, -1L, -1L);
+        }
+
+        void record(long number) {
+            if (number < min) {
+                min = (short) number;
+            }
+            if (number > max) {
+                max = (short) number;
+            }
+            sum += number;
+            count++;
+        }
+
+        static Result accumulate(Result r, Result other) {
+            if (other.min < r.min) {
+                r.min = other.min;
+            }
+            if (other.max > r.max) {
+                r.max = other.max;
+            }
+            r.sum += other.sum;
+            r.count += other.count;
+            return r;
+        }
+
+        String calcName() {
+            byte[] array = new byte[nameLength];
+            for (int i = 0; i < nameLength; ++i) {
+                array[i] = UNSAFE.getByte(nameAddress + i);
+            }
+            return new String(array, StandardCharsets.UTF_8);
+        }
+
+        public String toString() {
+            return round(((double) min) / 10.0) + "/" + round((((double) sum) / 10.0) / count) + "/" + round(((double) max) / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+    }
+
+    private static final sun.misc.Unsafe UNSAFE = initUnsafe();
+
+    private static sun.misc.Unsafe initUnsafe() {
+        try {
+            java.lang.reflect.Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (sun.misc.Unsafe) theUnsafe.get(sun.misc.Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
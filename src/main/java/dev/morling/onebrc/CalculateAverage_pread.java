@@ -0,0 +1,411 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the file with positional reads into reusable buffers instead of mapping it.
+ * <p>
+ * Mapping the whole file needs address space and page table entries for all of it, and once the file does not fit
+ * into the page cache, pages of the mapping are evicted and faulted in again. Here every worker owns two direct
+ * buffers of {@link #BUFFER_SIZE} bytes: while one is parsed, the next range of its segment is read into the other
+ * with {@link FileChannel#read(ByteBuffer, long)} on an I/O thread. Memory use is fixed, independent of the file size.
+ * <p>
+ * Reads do not end at line boundaries. The incomplete line at the end of a buffer is copied in front of the data of
+ * the next one, which leaves {@link #MAX_LINE_LENGTH} bytes free for that before the read position. A segment starts
+ * one byte early to see whether its first line is complete, and reads up to a line past its end to finish its last
+ * line. Since the buffers are reused, station names are copied when a station is first seen.
+ * <p>
+ * Name parsing and the branchless number parsing follow {@link CalculateAverage_thomaswue} and Quan Anh Mai.
+ */
+public class CalculateAverage_pread {
+    private static final String FILE = "./measurements.txt";
+    private static final int MIN_TEMP = -999;
+    private static final int MAX_TEMP = 999;
+    private static final int TABLE_SIZE = 1 << 17;
+
+    // Unit of work claimed by a worker, read in reads of BUFFER_SIZE bytes.
+    private static final long SEGMENT_SIZE = 1 << 24;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Room for the carried-over line in front of the data (the longest line has 107 bytes),
+    // and padding behind it for the word-wise over-reads.
+    private static final int MAX_LINE_LENGTH = 128;
+    private static final int PADDING = 64;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+        ExecutorService io = Executors.newFixedThreadPool(numberOfWorkers, r -> {
+            Thread thread = new Thread(r, "pread-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (var channel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            AtomicLong cursor = new AtomicLong();
+            Thread[] threads = new Thread[numberOfWorkers];
+            Worker[] workers = new Worker[numberOfWorkers];
+            for (int i = 0; i < threads.length; ++i) {
+                Worker worker = workers[i] = new Worker(channel, fileSize, io);
+                threads[i] = new Thread(() -> {
+                    long segmentStart;
+                    while ((segmentStart = cursor.getAndAdd(SEGMENT_SIZE)) < fileSize) {
+                        worker.processSegment(segmentStart, Math.min(fileSize, segmentStart + SEGMENT_SIZE));
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            System.out.println(accumulateResults(workers));
+            System.out.close();
+        }
+    }
+
+    private static TreeMap<String, Result> accumulateResults(Worker[] workers) {
+        TreeMap<String, Result> result = new TreeMap<>();
+        for (Worker worker : workers) {
+            for (Result r : worker.entries) {
+                result.merge(r.calcName(), r, Result::accumulate);
+            }
+        }
+        return result;
+    }
+
+    // ========================= Reading =========================
+
+    private static final class Worker {
+        private final FileChannel channel;
+        private final long fileSize;
+        private final ExecutorService io;
+        private final ByteBuffer[] buffers = new ByteBuffer[2];
+        private final long[] data = new long[2];
+        private final Result[] table = new Result[TABLE_SIZE];
+        private final List<Result> entries = new ArrayList<>();
+
+        Worker(FileChannel channel, long fileSize, ExecutorService io) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.io = io;
+            for (int i = 0; i < 2; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(MAX_LINE_LENGTH + BUFFER_SIZE + PADDING);
+                data[i] = MemorySegment.ofBuffer(buffers[i]).address() + MAX_LINE_LENGTH;
+            }
+        }
+
+        // Processes all lines starting in [start, end).
+        void processSegment(long start, long end) {
+            // The byte before the segment tells whether the first line starts at 'start' or belongs to
+            // the previous segment. No line starting before 'end' extends past 'readLimit'.
+            long readPosition = start == 0 ? 0 : start - 1;
+            long readLimit = Math.min(fileSize, end + MAX_LINE_LENGTH);
+            boolean skipFirst = start != 0;
+            int current = 0;
+            int carry = 0;
+            Future<Integer> pending = read(current, readPosition, readLimit);
+            while (pending != null) {
+                int length = await(pending);
+                long nextPosition = readPosition + length;
+                boolean last = nextPosition >= readLimit;
+                pending = last ? null : read(current ^ 1, nextPosition, readLimit);
+
+                // The buffer holds the file range [readPosition - carry, nextPosition).
+                long bufferStart = data[current] - carry;
+                long bufferEnd = data[current] + length;
+                long pos = bufferStart;
+                if (skipFirst) {
+                    pos = nextNewLine(pos) + 1;
+                    skipFirst = false;
+                }
+                // Only complete lines, and only those starting in the segment.
+                long completeEnd = last ? bufferEnd : lastNewLine(bufferStart, bufferEnd) + 1;
+                long segmentEnd = bufferStart + (end - (readPosition - carry));
+                pos = parseRange(pos, Math.min(completeEnd, segmentEnd));
+                if (pos >= segmentEnd) {
+                    if (pending != null) {
+                        await(pending);
+                    }
+                    return;
+                }
+
+                // Carry the incomplete line over to the front of the next buffer.
+                carry = (int) (bufferEnd - pos);
+                UNSAFE.copyMemory(pos, data[current ^ 1] - carry, carry);
+                readPosition = nextPosition;
+                current ^= 1;
+            }
+        }
+
+        private Future<Integer> read(int index, long position, long limit) {
+            ByteBuffer buffer = buffers[index];
+            buffer.limit(MAX_LINE_LENGTH + (int) Math.min(BUFFER_SIZE, limit - position));
+            buffer.position(MAX_LINE_LENGTH);
+            return io.submit(() -> {
+                long p = position;
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, p);
+                    if (n < 0) {
+                        break;
+                    }
+                    p += n;
+                }
+                return (int) (p - position);
+            });
+        }
+
+        private static int await(Future<Integer> pending) {
+            try {
+                return pending.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            catch (ExecutionException e) {
+                throw new UncheckedIOException(new IOException(e.getCause()));
+            }
+        }
+
+        // Parses the lines starting before 'end', all of which need to be complete; returns the position after them.
+        long parseRange(long pos, long end) {
+            while (pos < end) {
+                long nameAddress = pos;
+                long word1 = UNSAFE.getLong(pos);
+                long word2 = UNSAFE.getLong(pos + 8);
+                long delimiterMask1 = findDelimiter(word1);
+                long delimiterMask2 = findDelimiter(word2);
+                Result result;
+                if ((delimiterMask1 | delimiterMask2) != 0) {
+                    // Name shorter than 16 bytes, the two masked words identify it.
+                    int letterCount1 = Long.numberOfTrailingZeros(delimiterMask1) >>> 3; // value between 0 and 8
+                    int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3; // value between 0 and 8
+                    long mask = MASK2[letterCount1];
+                    word1 = word1 & MASK1[letterCount1];
+                    word2 = mask & word2 & MASK1[letterCount2];
+                    int nameLength = letterCount1 + (int) (letterCount2 & mask);
+                    pos += nameLength + 1;
+                    result = find(mix(word1 * HASH_MULTIPLIER + word2 + nameLength), nameAddress, nameLength, word1, word2);
+                }
+                else {
+                    // Slow-path for when the ';' could not be found in the first 16 bytes.
+                    int nameLength = 16;
+                    while (true) {
+                        long mask = findDelimiter(UNSAFE.getLong(pos + nameLength));
+                        if (mask != 0) {
+                            nameLength += Long.numberOfTrailingZeros(mask) >>> 3;
+                            break;
+                        }
+                        nameLength += 8;
+                    }
+                    pos += nameLength + 1;
+                    result = find(hashName(nameAddress, nameLength), nameAddress, nameLength, word1, word2);
+                }
+
+                long numberWord = UNSAFE.getLong(pos);
+                int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+                result.record(convertIntoNumber(decimalSepPos, numberWord));
+                pos += (decimalSepPos >>> 3) + 3;
+            }
+            return pos;
+        }
+
+        private Result find(long hash, long nameAddress, int nameLength, long word1, long word2) {
+            int index = (int) hash & (TABLE_SIZE - 1);
+            while (true) {
+                Result r = table[index];
+                if (r == null) {
+                    r = new Result(nameAddress, nameLength, word1, word2);
+                    table[index] = r;
+                    entries.add(r);
+                    return r;
+                }
+                if (r.nameLength == nameLength && r.firstNameWord == word1 && r.secondNameWord == word2
+                        && (nameLength < 16 || namesEqual(r.nameAddress, nameAddress, nameLength))) {
+                    return r;
+                }
+                index = (index + 1) & (TABLE_SIZE - 1);
+            }
+        }
+    }
+
+    // ========================= Parsing helpers =========================
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final long[] MASK1 = new long[]{ 0x00L, 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL,
+            0xFFFFFFFFFFFFFFFFL };
+    private static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 32)) * 0xD6E8FEB86659FD93L;
+        return x ^ (x >>> 32);
+    }
+
+    private static long hashName(long address, int length) {
+        long hash = UNSAFE.getLong(address) & MASK1[Math.min(length, 8)];
+        hash = hash * HASH_MULTIPLIER + (length > 8 ? UNSAFE.getLong(address + 8) & MASK1[Math.min(length - 8, 8)] : 0);
+        for (int i = 16; i < length; i += 8) {
+            hash = hash * HASH_MULTIPLIER + (UNSAFE.getLong(address + i) & MASK1[Math.min(length - i, 8)]);
+        }
+        return mix(hash + length);
+    }
+
+    private static boolean namesEqual(long a, long b, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        long mask = MASK1[length - i];
+        return ((UNSAFE.getLong(a + i) ^ UNSAFE.getLong(b + i)) & mask) == 0;
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    // Position of the last '\n' in [start, end), or start - 1 if there is none.
+    private static long lastNewLine(long start, long end) {
+        long pos = end - 1;
+        while (pos >= start && UNSAFE.getByte(pos) != '\n') {
+            pos--;
+        }
+        return pos;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    // ========================= Results =========================
+
+    private static final class Result {
+        final long firstNameWord, secondNameWord;
+        final long nameAddress;
+        final int nameLength;
+        short min, max;
+        int count;
+        long sum;
+
+        Result(long nameAddress, int nameLength, long firstNameWord, long secondNameWord) {
+            // The buffer holding the name is reused, so keep a copy, with room for the word
+            // over-reads of namesEqual(). Never freed, there is one per station and worker.
+            this.nameAddress = UNSAFE.allocateMemory(nameLength + 8);
+            UNSAFE.copyMemory(nameAddress, this.nameAddress, nameLength);
+            this.nameLength = nameLength;
+            this.firstNameWord = firstNameWord;
+            this.secondNameWord = secondNameWord;
+            this.min = MAX_TEMP;
+            this.max = MIN_TEMP;
+        }
+
+        void record(long number) {
+            if (number < min) {
+                min = (short) number;
+            }
+            if (number > max) {
+                max = (short) number;
+            }
+            sum += number;
+            count++;
+        }
+
+        static Result accumulate(Result r, Result other) {
+            if (other.min < r.min) {
+                r.min = other.min;
+            }
+            if (other.max > r.max) {
+                r.max = other.max;
+            }
+            r.sum += other.sum;
+            r.count += other.count;
+            return r;
+        }
+
+        String calcName() {
+            byte[] array = new byte[nameLength];
+            for (int i = 0; i < nameLength; ++i) {
+                array[i] = UNSAFE.getByte(nameAddress + i);
+            }
+            return new String(array, StandardCharsets.UTF_8);
+        }
+
+        public String toString() {
+            return round(((double) min) / 10.0) + "/" + round((((double) sum) / 10.0) / count) + "/" + round(((double) max) / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+    }
+
+    private static final sun.misc.Unsafe UNSAFE = initUnsafe();
+
+    private static sun.misc.Unsafe initUnsafe() {
+        try {
+            java.lang.reflect.Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (sun.misc.Unsafe) theUnsafe.get(sun.misc.Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
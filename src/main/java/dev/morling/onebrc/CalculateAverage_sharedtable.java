@@ -0,0 +1,401 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Variant for very many distinct stations: instead of one table per thread, which multiplies the table memory by the
+ * core count and leaves a large merge at the end, all threads can update one shared off-heap table.
+ * <p>
+ * A slot is one cache line holding the hash, the first 16 name bytes and the length, so that most lookups never touch
+ * the name in the mapped file. A slot is claimed by CAS of its hash from 0; the claiming thread then fills in the name
+ * and publishes the name address last with a release store, and threads finding the same hash wait for it. Sum and
+ * count are updated with atomic adds; min and max with CAS loops that only run when the value improves on the current
+ * one, which after the first rows is rare. Both encode the value so that 0 means "no value yet" and larger is better,
+ * so a zeroed table needs no initialization.
+ * <p>
+ * With {@code -Dtable=private}, each thread uses its own table of the same layout with plain updates, merged into one
+ * at the end. The default {@code -Dtable=auto} estimates the number of stations from a sample of the file and picks
+ * the shared table at {@code -Dshared.threshold} stations or more. The estimate also sizes the tables; it can be
+ * overridden with {@code -Dkeys}. {@code evaluate_shared_table.sh} compares both modes across cardinalities.
+ */
+public class CalculateAverage_sharedtable {
+
+    private static final String FILE = "./measurements.txt";
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static final int SEGMENT_SIZE = 1 << 21;
+    private static final long SHARED_THRESHOLD = Long.getLong("shared.threshold", 50_000);
+
+    // Layout of a slot.
+    private static final int SLOT_SIZE = 64;
+    private static final int HASH = 0;
+    private static final int NAME_ADDRESS = 8;
+    private static final int WORD0 = 16;
+    private static final int WORD1 = 24;
+    private static final int SUM = 32;
+    private static final int COUNT = 40;
+    private static final int MIN = 48;
+    private static final int MAX = 52;
+    private static final int NAME_LENGTH = 56;
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long fileStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            long fileEnd = fileStart + fileSize;
+
+            long keys = Long.getLong("keys", -1);
+            if (keys < 0) {
+                keys = estimateStations(fileStart, fileEnd);
+            }
+            String mode = System.getProperty("table", "auto");
+            boolean shared = switch (mode) {
+                case "shared" -> true;
+                case "private" -> false;
+                case "auto" -> keys >= SHARED_THRESHOLD;
+                default -> throw new IllegalArgumentException("Unknown table mode: " + mode);
+            };
+            // At most a quarter full for the estimate, which may be low.
+            int capacity = (int) Math.min(1 << 26, Math.max(1 << 14, Long.highestOneBit(keys * 4 - 1) << 1));
+
+            int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+            Table[] tables = new Table[shared ? 1 : numberOfWorkers];
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = new Table(capacity);
+            }
+            AtomicLong cursor = new AtomicLong(fileStart);
+            Thread[] threads = new Thread[numberOfWorkers];
+            for (int i = 0; i < threads.length; i++) {
+                Table table = tables[shared ? 0 : i];
+                threads[i] = new Thread(() -> parseLoop(cursor, fileStart, fileEnd, table, shared));
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Table result = tables[0];
+            for (int i = 1; i < tables.length; i++) {
+                result.mergeFrom(tables[i]);
+                tables[i].free();
+            }
+            System.out.println(result.format());
+            System.out.close();
+        }
+    }
+
+    private static void parseLoop(AtomicLong cursor, long fileStart, long fileEnd, Table table, boolean shared) {
+        while (true) {
+            long current = cursor.getAndAdd(SEGMENT_SIZE);
+            if (current >= fileEnd) {
+                return;
+            }
+            long segmentEnd = nextNewLine(Math.min(fileEnd - 1, current + SEGMENT_SIZE));
+            long pos = current == fileStart ? current : nextNewLine(current) + 1;
+            if (shared) {
+                while (pos < segmentEnd) {
+                    pos = parseRow(pos, table, true);
+                }
+            }
+            else {
+                while (pos < segmentEnd) {
+                    pos = parseRow(pos, table, false);
+                }
+            }
+        }
+    }
+
+    // Parses the row at pos, records it and returns the start of the next row.
+    private static long parseRow(long nameAddress, Table table, boolean shared) {
+        long pos = nameAddress;
+        long hash = 0;
+        long word;
+        long delimiterMask;
+        while (true) {
+            word = UNSAFE.getLong(pos);
+            delimiterMask = findDelimiter(word);
+            if (delimiterMask != 0) {
+                break;
+            }
+            hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+            pos += 8;
+        }
+        int trailingZeros = Long.numberOfTrailingZeros(delimiterMask);
+        // Only the name bytes of the last word.
+        hash = (hash ^ (word & ((1L << (trailingZeros - 7)) - 1))) * 0x9E3779B97F4A7C15L;
+        pos += trailingZeros >>> 3;
+        int nameLength = (int) (pos - nameAddress);
+        // Never 0, which marks empty slots.
+        hash |= 1;
+
+        long numberWord = UNSAFE.getLong(pos + 1);
+        int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+        int value = (int) convertIntoNumber(decimalSepPos, numberWord);
+
+        long slot = table.find(nameAddress, nameLength, hash, firstBytes(UNSAFE.getLong(nameAddress), nameLength),
+                firstBytes(UNSAFE.getLong(nameAddress + 8), nameLength - 8), shared);
+        if (shared) {
+            UNSAFE.getAndAddLong(null, slot + SUM, value);
+            UNSAFE.getAndAddLong(null, slot + COUNT, 1);
+            raise(slot + MIN, 1000 - value);
+            raise(slot + MAX, 1000 + value);
+        }
+        else {
+            UNSAFE.putLong(slot + SUM, UNSAFE.getLong(slot + SUM) + value);
+            UNSAFE.putLong(slot + COUNT, UNSAFE.getLong(slot + COUNT) + 1);
+            UNSAFE.putInt(slot + MIN, Math.max(UNSAFE.getInt(slot + MIN), 1000 - value));
+            UNSAFE.putInt(slot + MAX, Math.max(UNSAFE.getInt(slot + MAX), 1000 + value));
+        }
+        return pos + (decimalSepPos >>> 3) + 4;
+    }
+
+    // The first n bytes of the word, all of them for n >= 8 and none for n <= 0.
+    private static long firstBytes(long word, int n) {
+        return n >= 8 ? word : word & ((1L << (Math.max(n, 0) << 3)) - 1);
+    }
+
+    // Atomically raises the int at address to at least value.
+    private static void raise(long address, int value) {
+        int current = UNSAFE.getInt(address);
+        while (value > current && !UNSAFE.compareAndSwapInt(null, address, current, value)) {
+            current = UNSAFE.getIntVolatile(null, address);
+        }
+    }
+
+    /**
+     * Open-addressing table of {@link #SLOT_SIZE}-byte slots in native memory. Min and max are stored as
+     * {@code 1000 - min} and {@code 1000 + max}.
+     */
+    private static final class Table {
+        private final long base;
+        private final int mask;
+
+        Table(int capacity) {
+            long bytes = (long) capacity * SLOT_SIZE;
+            base = UNSAFE.allocateMemory(bytes);
+            UNSAFE.setMemory(base, bytes, (byte) 0);
+            mask = capacity - 1;
+        }
+
+        // Returns the slot of the name, claiming an empty one for a new name.
+        long find(long nameAddress, int nameLength, long hash, long word0, long word1, boolean shared) {
+            int index = (int) (hash >>> 32) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long slot = base + (long) index * SLOT_SIZE;
+                long existing = shared ? UNSAFE.getLongVolatile(null, slot + HASH) : UNSAFE.getLong(slot + HASH);
+                if (existing == 0) {
+                    if (!shared) {
+                        UNSAFE.putLong(slot + HASH, hash);
+                        fill(slot, nameAddress, nameLength, word0, word1);
+                        return slot;
+                    }
+                    if (UNSAFE.compareAndSwapLong(null, slot + HASH, 0, hash)) {
+                        fill(slot, nameAddress, nameLength, word0, word1);
+                        return slot;
+                    }
+                    // Lost the race; the slot may have been claimed for this name.
+                    existing = UNSAFE.getLongVolatile(null, slot + HASH);
+                }
+                if (existing == hash) {
+                    if (shared) {
+                        while (UNSAFE.getLongVolatile(null, slot + NAME_ADDRESS) == 0) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                    if (UNSAFE.getInt(slot + NAME_LENGTH) == nameLength && UNSAFE.getLong(slot + WORD0) == word0 && UNSAFE.getLong(slot + WORD1) == word1
+                            && (nameLength <= 16 || nameEquals(UNSAFE.getLong(slot + NAME_ADDRESS) + 16, nameAddress + 16, nameLength - 16))) {
+                        return slot;
+                    }
+                }
+                index = (index + 1) & mask;
+            }
+            throw new IllegalStateException("Station table is full, set -Dkeys to the number of stations");
+        }
+
+        private static void fill(long slot, long nameAddress, int nameLength, long word0, long word1) {
+            UNSAFE.putLong(slot + WORD0, word0);
+            UNSAFE.putLong(slot + WORD1, word1);
+            UNSAFE.putInt(slot + NAME_LENGTH, nameLength);
+            // Publishes the fields above.
+            UNSAFE.putLongVolatile(null, slot + NAME_ADDRESS, nameAddress);
+        }
+
+        void mergeFrom(Table other) {
+            for (long slot = other.base; slot <= other.base + (long) other.mask * SLOT_SIZE; slot += SLOT_SIZE) {
+                long hash = UNSAFE.getLong(slot + HASH);
+                if (hash == 0) {
+                    continue;
+                }
+                long target = find(UNSAFE.getLong(slot + NAME_ADDRESS), UNSAFE.getInt(slot + NAME_LENGTH), hash, UNSAFE.getLong(slot + WORD0),
+                        UNSAFE.getLong(slot + WORD1), false);
+                UNSAFE.putLong(target + SUM, UNSAFE.getLong(target + SUM) + UNSAFE.getLong(slot + SUM));
+                UNSAFE.putLong(target + COUNT, UNSAFE.getLong(target + COUNT) + UNSAFE.getLong(slot + COUNT));
+                UNSAFE.putInt(target + MIN, Math.max(UNSAFE.getInt(target + MIN), UNSAFE.getInt(slot + MIN)));
+                UNSAFE.putInt(target + MAX, Math.max(UNSAFE.getInt(target + MAX), UNSAFE.getInt(slot + MAX)));
+            }
+        }
+
+        String format() {
+            List<Station> stations = new ArrayList<>();
+            for (long slot = base; slot <= base + (long) mask * SLOT_SIZE; slot += SLOT_SIZE) {
+                if (UNSAFE.getLong(slot + HASH) != 0) {
+                    byte[] bytes = new byte[UNSAFE.getInt(slot + NAME_LENGTH)];
+                    UNSAFE.copyMemory(null, UNSAFE.getLong(slot + NAME_ADDRESS), bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+                    stations.add(new Station(new String(bytes, StandardCharsets.UTF_8), slot));
+                }
+            }
+            stations.sort(Comparator.comparing(Station::name));
+
+            StringBuilder sb = new StringBuilder(stations.size() * 32 + 2).append('{');
+            for (Station station : stations) {
+                long slot = station.slot();
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                long count = UNSAFE.getLong(slot + COUNT);
+                sb.append(station.name()).append('=')
+                        .append(round((1000 - UNSAFE.getInt(slot + MIN)) / 10.0)).append('/')
+                        .append(round((UNSAFE.getLong(slot + SUM) / 10.0) / count)).append('/')
+                        .append(round((UNSAFE.getInt(slot + MAX) - 1000) / 10.0));
+            }
+            return sb.append('}').toString();
+        }
+
+        void free() {
+            UNSAFE.freeMemory(base);
+        }
+    }
+
+    private record Station(String name, long slot) {
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static boolean nameEquals(long a, long b, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (UNSAFE.getLong(a + i) != UNSAFE.getLong(b + i)) {
+                return false;
+            }
+        }
+        // The remaining name bytes and the ';' after them.
+        long tailMask = -1L >>> ((7 - (length - i)) << 3);
+        return ((UNSAFE.getLong(a + i) ^ UNSAFE.getLong(b + i)) & tailMask) == 0;
+    }
+
+    private static int nameLength(long nameAddress) {
+        int length = 0;
+        while (UNSAFE.getByte(nameAddress + length) != ';') {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Estimates the number of distinct stations from 16 samples of 256 KB spread over the file, with the Chao1
+     * estimator (distinct names plus a correction from the names seen once and twice), capped at the estimated number
+     * of rows.
+     */
+    private static long estimateStations(long fileStart, long fileEnd) {
+        final int samples = 16;
+        final int sampleSize = 1 << 18;
+        Map<String, Integer> seen = new HashMap<>();
+        long rows = 0;
+        long sampledBytes = 0;
+        for (int s = 0; s < samples; s++) {
+            long start = fileStart + (fileEnd - fileStart) / samples * s;
+            long end = Math.min(fileEnd, start + sampleSize);
+            long pos = start == fileStart ? start : nextNewLine(start) + 1;
+            long first = pos;
+            while (pos < end) {
+                int nameLength = nameLength(pos);
+                byte[] bytes = new byte[nameLength];
+                UNSAFE.copyMemory(null, pos, bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, nameLength);
+                seen.merge(new String(bytes, StandardCharsets.UTF_8), 1, Integer::sum);
+                pos = nextNewLine(pos + nameLength) + 1;
+                rows++;
+            }
+            sampledBytes += pos - first;
+        }
+        long once = seen.values().stream().filter(c -> c == 1).count();
+        long twice = seen.values().stream().filter(c -> c == 2).count();
+        long estimate = seen.size() + once * (once - 1) / (2 * (twice + 1));
+        long fileRows = rows == 0 ? 1 : (long) ((double) (fileEnd - fileStart) / sampledBytes * rows);
+        return Math.max(1, Math.min(estimate, fileRows));
+    }
+
+    private static long nextNewLine(long prev) {
+        while (true) {
+            long currentWord = UNSAFE.getLong(prev);
+            long input = currentWord ^ 0x0A0A0A0A0A0A0A0AL;
+            long pos = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+            if (pos != 0) {
+                prev += Long.numberOfTrailingZeros(pos) >>> 3;
+                break;
+            }
+            else {
+                prev += 8;
+            }
+        }
+        return prev;
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+}
@@ -29,6 +29,14 @@ import java.util.Arrays;
 import java.util.concurrent.*;
 import java.util.function.Supplier;
 
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
 public class CalculateAverage_shipilev {
 
     // Detour: This implementation tries to balance the speed and readability.
@@ -92,6 +100,13 @@ public class CalculateAverage_shipilev {
     // feature would automatically turn off.
     private static final boolean DIRECT_UNMMAPS = true;
 
+    // Emit JFR events for parsed segments, map probing, merges and unmaps.
+    // These are recorded at segment granularity, away from the per-row loop,
+    // and cost next to nothing when no recording is running. Enable the
+    // recording with -XX:StartFlightRecording:filename=1brc.jfr, and then
+    // look at the per-thread timelines with JfrTimeline.
+    private static final boolean JFR_EVENTS = true;
+
     // ========================= Storage =========================
 
     // Thread-local measurement maps, each thread gets one.
@@ -268,16 +283,25 @@ public class CalculateAverage_shipilev {
         // null-check on bucket instead of multiple range-checks on inlined array.
         private final Bucket[] buckets = new Bucket[MAP_SIZE];
 
+        // Slow path statistics, reported through JFR events. These are only
+        // touched in updateSlow, so they do not cost anything on the fast path.
+        private long slowUpdates;
+        private long probes;
+        private int size;
+
         // Fast path is inlined in seqCompute. This is a slow-path that is taken
         // rarely, usually when there is a hash collision. We normally do not enter here.
         private void updateSlow(ByteBuffer name, int begin, int end, int hash, int temp) {
             int idx = hash & (MAP_SIZE - 1);
+            slowUpdates++;
 
             while (true) {
+                probes++;
                 Bucket cur = buckets[idx];
                 if (cur == null) {
                     // No bucket yet, lucky us. Create the bucket and be done.
                     buckets[idx] = new Bucket(name, begin, end, hash, temp);
+                    size++;
                     return;
                 }
                 else if ((cur.hash == hash) && cur.matches(name, begin, end)) {
@@ -337,19 +361,24 @@ public class CalculateAverage_shipilev {
         private final MappedByteBuffer mappedBuf;
         private final ByteBuffer buf;
 
+        // Offset of this slice in the file. Only used for telemetry.
+        private final long offset;
+
         // Entered from the root task, records the original mmap-ed slice
         // for later cleanup.
-        public ParsingTask(CountedCompleter<Void> p, MappedByteBuffer mappedBuf) {
+        public ParsingTask(CountedCompleter<Void> p, MappedByteBuffer mappedBuf, long offset) {
             super(p);
             this.mappedBuf = mappedBuf;
             this.buf = mappedBuf;
+            this.offset = offset;
         }
 
         // Entered from the other parsing tasks.
-        public ParsingTask(CountedCompleter<Void> p, ByteBuffer buf) {
+        public ParsingTask(CountedCompleter<Void> p, ByteBuffer buf, long offset) {
             super(p);
             this.mappedBuf = null;
             this.buf = buf;
+            this.offset = offset;
         }
 
         @Override
@@ -392,11 +421,11 @@ public class CalculateAverage_shipilev {
                 // execute one of the computations directly.
                 // FJP API: Tell there is a pending task.
                 setPendingCount(1);
-                new ParsingTask(this, buf.slice(0, mid)).fork();
+                new ParsingTask(this, buf.slice(0, mid), offset).fork();
 
                 // The stack depth would be shallow enough for us to
                 // execute one of the computations directly.
-                new ParsingTask(this, buf.slice(mid, len - mid)).compute();
+                new ParsingTask(this, buf.slice(mid, len - mid), offset + mid).compute();
             }
             else {
                 // Small enough chunk, time to process it.
@@ -413,13 +442,57 @@ public class CalculateAverage_shipilev {
                 buf.order(ByteOrder.LITTLE_ENDIAN);
 
                 // Go!
-                seqCompute(map, buf, len);
+                if (JFR_EVENTS) {
+                    seqComputeWithEvents(map, buf, len);
+                }
+                else {
+                    seqCompute(map, buf, len);
+                }
 
                 // FJP API: Notify that this task have completed.
                 tryComplete();
             }
         }
 
+        // Wraps the parsing of a single slice with JFR events. Everything here
+        // happens once per slice, the hot loop in seqCompute stays the same.
+        private void seqComputeWithEvents(MeasurementsMap map, ByteBuffer buf, int len) throws IOException {
+            long slowUpdates = map.slowUpdates;
+            long probes = map.probes;
+            int size = map.size;
+
+            SegmentParsedEvent event = new SegmentParsedEvent();
+            event.begin();
+            seqCompute(map, buf, len);
+            event.end();
+
+            if (event.shouldCommit()) {
+                // Counting rows in the hot loop is not free, so count them here,
+                // and only when somebody is actually recording.
+                int rows = 0;
+                for (int i = 0; i < len; i++) {
+                    if (buf.get(i) == '\n') {
+                        rows++;
+                    }
+                }
+                event.offset = offset;
+                event.bytes = len;
+                event.rows = rows;
+                event.commit();
+            }
+
+            MapProbesEvent probesEvent = new MapProbesEvent();
+            if (probesEvent.isEnabled()) {
+                probesEvent.offset = offset;
+                probesEvent.slowUpdates = map.slowUpdates - slowUpdates;
+                probesEvent.probes = map.probes - probes;
+                probesEvent.inserts = map.size - size;
+                probesEvent.size = map.size;
+                probesEvent.capacity = MAP_SIZE;
+                probesEvent.commit();
+            }
+        }
+
         private void seqCompute(MeasurementsMap map, ByteBuffer origSlice, int length) throws IOException {
             Bucket[] buckets = map.buckets;
 
@@ -559,13 +632,13 @@ public class CalculateAverage_shipilev {
                 // Fork out the large slice.
                 long len = end - start;
                 MappedByteBuffer slice = fc.map(FileChannel.MapMode.READ_ONLY, start, len);
-                start += len;
 
                 // FJP API: Announce we have a pending task before forking.
                 addToPendingCount(1);
 
                 // ...and fork it!
-                new ParsingTask(this, slice).fork();
+                new ParsingTask(this, slice, start).fork();
+                start += len;
             }
 
             // All mappings are up, can close the channel now.
@@ -615,13 +688,19 @@ public class CalculateAverage_shipilev {
         // that it is done by giving us a poison pill.
         ByteBuffer buf;
         while ((buf = RELEASABLE_BUFFERS.take()) != RELEASABLE_BUFFER_POISON_PILL) {
+            UnmapEvent unmapEvent = new UnmapEvent();
+            unmapEvent.begin();
             DirectUnmaps.invokeCleaner(buf);
+            unmapEvent.commit(buf.capacity());
         }
 
         // All done. Merge results from thread-local maps...
+        MergeEvent mergeEvent = new MergeEvent();
+        mergeEvent.begin();
         for (MeasurementsMap m : ALL_MAPS) {
             map.merge(m);
         }
+        mergeEvent.commit(ALL_MAPS.size());
 
         // ...and truly report them
         System.out.println(report(map, rows, sb));
@@ -674,6 +753,92 @@ public class CalculateAverage_shipilev {
         }
     }
 
+    // ========================= Telemetry =========================
+
+    // JFR events. These are committed at most once per slice, buffer or
+    // phase, never per row. With no recording running, shouldCommit() and
+    // isEnabled() return false, and the event objects are normally
+    // scalar-replaced by the compiler.
+
+    @Name("dev.morling.onebrc.shipilev.SegmentParsed")
+    @Label("Segment Parsed")
+    @Description("A slice of the file parsed by a single worker")
+    @Category({ "1BRC", "Parsing" })
+    @StackTrace(false)
+    public static final class SegmentParsedEvent extends Event {
+        @Label("Offset")
+        long offset;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Rows")
+        long rows;
+    }
+
+    @Name("dev.morling.onebrc.shipilev.MapProbes")
+    @Label("Map Probes")
+    @Description("Slow path activity in the thread-local map while parsing a slice")
+    @Category({ "1BRC", "Parsing" })
+    @StackTrace(false)
+    public static final class MapProbesEvent extends Event {
+        @Label("Offset")
+        long offset;
+
+        @Label("Slow Path Updates")
+        long slowUpdates;
+
+        @Label("Probes")
+        long probes;
+
+        @Label("Inserts")
+        long inserts;
+
+        @Label("Size")
+        int size;
+
+        @Label("Capacity")
+        int capacity;
+    }
+
+    @Name("dev.morling.onebrc.shipilev.Merge")
+    @Label("Merge")
+    @Description("Merge of the thread-local maps")
+    @Category({ "1BRC", "Reporting" })
+    @StackTrace(false)
+    public static final class MergeEvent extends Event {
+        @Label("Maps")
+        int maps;
+
+        void commit(int maps) {
+            end();
+            if (JFR_EVENTS && shouldCommit()) {
+                this.maps = maps;
+                commit();
+            }
+        }
+    }
+
+    @Name("dev.morling.onebrc.shipilev.Unmap")
+    @Label("Unmap")
+    @Description("Direct unmap of a processed mmap-ed chunk")
+    @Category({ "1BRC", "Unmapping" })
+    @StackTrace(false)
+    public static final class UnmapEvent extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void commit(long bytes) {
+            end();
+            if (JFR_EVENTS && shouldCommit()) {
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
     // ========================= Utils =========================
 
     // Tries to figure out if calling Cleaner directly on the DirectByteBuffer
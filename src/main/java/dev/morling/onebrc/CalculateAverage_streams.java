@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import dev.morling.onebrc.MeasurementSpliterator.Row;
+
+/**
+ * The baseline's Stream pipeline on top of {@link MeasurementSpliterator}: a parallel stream of flyweight rows over
+ * the mapped file, collected with the primitive station collector.
+ */
+public class CalculateAverage_streams {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) {
+        try (Stream<Row> rows = MeasurementSpliterator.stream(Path.of(FILE), true)) {
+            System.out.println(rows.collect(MeasurementSpliterator.toStationStats()));
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -189,7 +190,18 @@ public class CalculateAverage_vemana {
 
         boolean fakeAdvance = false;
 
-        for (String arg : args) {
+        // Optional worker placement, see CpuTopology.Policy; null keeps the default pool without pinning
+        String cpuPolicy = null;
+
+        // Port for progress metrics in Prometheus format, also registered over JMX; see EngineMetrics.
+        // -1 disables both, 0 picks a free port
+        int metricsPort = -1;
+
+        // Parameters tuned for this host by Autotuner come first, so that explicit arguments override them
+        List<String> allArgs = new ArrayList<>(Autotuner.loadProfile("vemana"));
+        allArgs.addAll(Arrays.asList(args));
+
+        for (String arg : allArgs) {
             String key = arg.substring(0, arg.indexOf('=')).trim();
             String value = arg.substring(key.length() + 1).trim();
             switch (key) {
@@ -217,6 +229,12 @@ public class CalculateAverage_vemana {
                 case "nThreads":
                     nThreads = Integer.parseInt(value);
                     break;
+                case "cpuPolicy":
+                    cpuPolicy = value;
+                    break;
+                case "metricsPort":
+                    metricsPort = Integer.parseInt(value);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown argument: " + arg);
             }
@@ -234,13 +252,15 @@ public class CalculateAverage_vemana {
                 new Runner(
                         Path.of(inputFile),
                         nThreads,
+                        CpuTopology.cpusFor(cpuPolicy),
                         chunkSizeBits,
                         commonChunkFraction,
                         commonChunkSizeBits,
                         hashtableSizeBits,
                         minReservedBytesAtFileTail,
                         munmapFraction,
-                        fakeAdvance)
+                        fakeAdvance,
+                        metricsPort)
                                 .getSummaryStatistics());
 
         Tracing.recordEvent("Final result printed");
@@ -343,6 +363,10 @@ public class CalculateAverage_vemana {
             endInBuf = (int) (rangeEnd - bufferStart);
         }
 
+        public long startInFile() {
+            return bufferStart + startInBuf;
+        }
+
     @Override
     public String toString() {
       return STR."""
@@ -433,9 +457,11 @@ public class CalculateAverage_vemana {
 
         private final double commonChunkFraction;
         private final int commonChunkSizeBits;
+        private final int[] cpus;
         private final boolean fakeAdvance;
         private final int hashtableSizeBits;
         private final Path inputFile;
+        private final int metricsPort;
         private final int minReservedBytesAtFileTail;
         private final double munmapFraction;
         private final int nThreads;
@@ -444,15 +470,18 @@ public class CalculateAverage_vemana {
         public Runner(
                       Path inputFile,
                       int nThreads,
+                      int[] cpus,
                       int chunkSizeBits,
                       double commonChunkFraction,
                       int commonChunkSizeBits,
                       int hashtableSizeBits,
                       int minReservedBytesAtFileTail,
                       double munmapFraction,
-                      boolean fakeAdvance) {
+                      boolean fakeAdvance,
+                      int metricsPort) {
             this.inputFile = inputFile;
             this.nThreads = nThreads;
+            this.cpus = cpus;
             this.shardSizeBits = chunkSizeBits;
             this.commonChunkFraction = commonChunkFraction;
             this.commonChunkSizeBits = commonChunkSizeBits;
@@ -460,10 +489,13 @@ public class CalculateAverage_vemana {
             this.minReservedBytesAtFileTail = minReservedBytesAtFileTail;
             this.munmapFraction = munmapFraction;
             this.fakeAdvance = fakeAdvance;
+            this.metricsPort = metricsPort;
         }
 
         AggregateResult getSummaryStatistics() throws Exception {
-            int nThreads = this.nThreads < 0 ? Runtime.getRuntime().availableProcessors() : this.nThreads;
+            int nThreads = this.nThreads >= 0 ? this.nThreads
+                    : cpus != null ? cpus.length
+                            : Runtime.getRuntime().availableProcessors();
 
             LazyShardQueue shardQueue = new SerialLazyShardQueue(
                     1L << shardSizeBits,
@@ -475,46 +507,62 @@ public class CalculateAverage_vemana {
                     munmapFraction,
                     fakeAdvance);
 
-            ExecutorService executorService = Executors.newFixedThreadPool(
-                    nThreads,
-                    runnable -> {
-                        Thread thread = new Thread(runnable);
-                        thread.setDaemon(true);
-                        return thread;
-                    });
-
-            List<Future<AggregateResult>> results = new ArrayList<>();
-            for (int i = 0; i < nThreads; i++) {
-                final int shardIdx = i;
-                final Callable<AggregateResult> callable = () -> {
-                    Tracing.recordWorkStart("Shard", shardIdx);
-                    AggregateResult result = new ShardProcessor(shardQueue, hashtableSizeBits, shardIdx).processShard();
-                    Tracing.recordWorkEnd("Shard", shardIdx);
-                    return result;
-                };
-                results.add(executorService.submit(callable));
+            // Always counted, as that is one plain store per counter and chunk; only exposed on request
+            EngineMetrics metrics = new EngineMetrics("vemana", nThreads, Files.size(inputFile));
+            try {
+                if (metricsPort >= 0) {
+                    metrics.register();
+                    System.err.println("Metrics at http://localhost:" + metrics.serve(metricsPort) + "/metrics");
+                }
+
+                ExecutorService executorService = Executors.newFixedThreadPool(
+                        nThreads,
+                        runnable -> {
+                            Thread thread = new Thread(runnable);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+
+                List<Future<AggregateResult>> results = new ArrayList<>();
+                for (int i = 0; i < nThreads; i++) {
+                    final int shardIdx = i;
+                    final Callable<AggregateResult> callable = () -> {
+                        if (cpus != null) {
+                            CpuTopology.pin(cpus[shardIdx % cpus.length]);
+                        }
+                        Tracing.recordWorkStart("Shard", shardIdx);
+                        AggregateResult result = new ShardProcessor(shardQueue, hashtableSizeBits, shardIdx, metrics).processShard();
+                        Tracing.recordWorkEnd("Shard", shardIdx);
+                        return result;
+                    };
+                    results.add(executorService.submit(callable));
+                }
+                Tracing.recordEvent("Basic push time");
+
+                // This particular sequence of Futures is so that both merge and munmap() can work as shards
+                // finish their computation without blocking on the entire set of shards to complete. In
+                // particular, munmap() doesn't need to wait on merge.
+                // First, submit a task to merge the results and then submit a task to cleanup bytebuffers
+                // from completed shards.
+                Future<AggregateResult> resultFutures = executorService.submit(() -> merge(results));
+                // Note that munmap() is serial and not parallel and hence we use just one thread.
+                executorService.submit(() -> closeByteBuffers(results, shardQueue));
+
+                AggregateResult result = resultFutures.get();
+                Tracing.recordEvent("Merge results received");
+
+                Tracing.recordEvent("About to shutdown executor and wait");
+                executorService.shutdown();
+                executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                Tracing.recordEvent("Executor terminated");
+
+                Tracing.analyzeWorkThreads(nThreads);
+                return result;
+            }
+            finally {
+                // The HTTP server's dispatcher thread is not a daemon, so a failed run must stop it too.
+                metrics.close();
             }
-            Tracing.recordEvent("Basic push time");
-
-            // This particular sequence of Futures is so that both merge and munmap() can work as shards
-            // finish their computation without blocking on the entire set of shards to complete. In
-            // particular, munmap() doesn't need to wait on merge.
-            // First, submit a task to merge the results and then submit a task to cleanup bytebuffers
-            // from completed shards.
-            Future<AggregateResult> resultFutures = executorService.submit(() -> merge(results));
-            // Note that munmap() is serial and not parallel and hence we use just one thread.
-            executorService.submit(() -> closeByteBuffers(results, shardQueue));
-
-            AggregateResult result = resultFutures.get();
-            Tracing.recordEvent("Merge results received");
-
-            Tracing.recordEvent("About to shutdown executor and wait");
-            executorService.shutdown();
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-            Tracing.recordEvent("Executor terminated");
-
-            Tracing.analyzeWorkThreads(nThreads);
-            return result;
         }
 
         private void closeByteBuffers(
@@ -741,13 +789,15 @@ public class CalculateAverage_vemana {
 
     public static class ShardProcessor {
 
+        private final EngineMetrics metrics;
         private final int shardIdx;
         private final LazyShardQueue shardQueue;
         private final ShardProcessorState state;
 
-        public ShardProcessor(LazyShardQueue shardQueue, int hashtableSizeBits, int shardIdx) {
+        public ShardProcessor(LazyShardQueue shardQueue, int hashtableSizeBits, int shardIdx, EngineMetrics metrics) {
             this.shardQueue = shardQueue;
             this.shardIdx = shardIdx;
+            this.metrics = metrics;
             this.state = new ShardProcessorState(hashtableSizeBits);
         }
 
@@ -767,20 +817,28 @@ public class CalculateAverage_vemana {
         }
 
         private void processRange(ByteRange range) {
+            metrics.segmentStarted(shardIdx, range.startInFile());
             MappedByteBuffer mmb = range.byteBuffer;
             int nextPos = range.startInBuf;
             int end = range.endInBuf;
 
+            int rows = 0;
             while (nextPos < end) {
                 nextPos = state.processLine(mmb, nextPos);
+                rows++;
             }
+            metrics.segmentDone(shardIdx, end - range.startInBuf, rows);
         }
 
         private void processRangeSlow(ByteRange range) {
+            metrics.segmentStarted(shardIdx, range.startInFile());
             int nextPos = range.startInBuf;
+            int rows = 0;
             while (nextPos < range.endInBuf) {
                 nextPos = state.processLineSlow(range.byteBuffer, nextPos);
+                rows++;
             }
+            metrics.segmentDone(shardIdx, range.endInBuf - range.startInBuf, rows);
         }
 
         private AggregateResult result() {
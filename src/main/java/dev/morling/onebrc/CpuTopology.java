@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CPU topology as seen by Linux in {@code /sys/devices/system/cpu}, and worker placement on top of it.
+ * <p>
+ * Most entries size their pools with {@code availableProcessors()}, which counts hardware threads: on a machine with
+ * SMT, two workers then share the execution units and L1/L2 of one core. This reads, for every CPU this process may
+ * run on, its physical core, package, NUMA node and L3 domain, and turns a {@link Policy} into an ordered list of CPUs,
+ * one per worker. Workers can then pin themselves with {@link #pin(int)}, which calls {@code sched_setaffinity} through
+ * the Foreign Function API.
+ * <p>
+ * Where the sysfs files or the native call are not available (other operating systems, restricted containers), every
+ * CPU is treated as its own core and pinning is a no-op, so callers need no special casing.
+ * <p>
+ * Usage: {@code java --enable-preview --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CpuTopology}
+ * prints the topology and the CPUs chosen by each policy.
+ */
+public class CpuTopology {
+
+    private static final Path SYS_CPU = Path.of("/sys/devices/system/cpu");
+    private static final Path SYS_NODE = Path.of("/sys/devices/system/node");
+
+    // Size of a cpu_set_t in glibc, i.e. room for 1024 CPUs.
+    private static final int CPU_SET_BYTES = 128;
+
+    public enum Policy {
+        /** Every hardware thread, one thread of each core first so that small pools still get separate cores. */
+        ALL_THREADS,
+        /** One hardware thread per physical core. */
+        PHYSICAL_CORES,
+        /** All hardware threads sharing the L3 of the first CPU, so workers and merged results stay in one cache. */
+        FILL_L3;
+
+        /** Parses names like {@code physical_cores} or {@code fill-l3}. */
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public record Cpu(int id, int core, int packageId, int node, int l3) {
+    }
+
+    private final List<Cpu> cpus;
+
+    private CpuTopology(List<Cpu> cpus) {
+        this.cpus = cpus;
+    }
+
+    public List<Cpu> cpus() {
+        return cpus;
+    }
+
+    // ========================= Reading =========================
+
+    /** Reads the topology of the CPUs this process is allowed to run on. */
+    public static CpuTopology read() {
+        List<Integer> allowed = allowedCpus();
+        List<Cpu> cpus = new ArrayList<>(allowed.size());
+        Map<Integer, Integer> nodes = cpuNodes();
+        for (int id : allowed) {
+            Path dir = SYS_CPU.resolve("cpu" + id);
+            int packageId = readInt(dir.resolve("topology/physical_package_id"), 0);
+            // Core ids are only unique within a package.
+            int core = packageId << 16 | readInt(dir.resolve("topology/core_id"), id);
+            cpus.add(new Cpu(id, core, packageId, nodes.getOrDefault(id, 0), l3Domain(dir, id)));
+        }
+        return new CpuTopology(cpus);
+    }
+
+    /** Convenience for engines: the CPUs for the named policy, or null if {@code policyName} is null. */
+    public static int[] cpusFor(String policyName) {
+        return policyName == null ? null : read().select(Policy.parse(policyName));
+    }
+
+    private static List<Integer> allowedCpus() {
+        List<Integer> online = parseList(readString(SYS_CPU.resolve("online")));
+        if (online.isEmpty()) {
+            online = new ArrayList<>();
+            for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+                online.add(i);
+            }
+        }
+        long[] mask = Native.getAffinity();
+        if (mask == null) {
+            return online;
+        }
+        List<Integer> allowed = new ArrayList<>();
+        for (int id : online) {
+            if (id < mask.length * 64 && (mask[id >>> 6] & (1L << id)) != 0) {
+                allowed.add(id);
+            }
+        }
+        return allowed.isEmpty() ? online : allowed;
+    }
+
+    private static Map<Integer, Integer> cpuNodes() {
+        Map<Integer, Integer> nodes = new LinkedHashMap<>();
+        try (var dirs = Files.list(SYS_NODE)) {
+            for (Path dir : dirs.toList()) {
+                String name = dir.getFileName().toString();
+                if (name.matches("node\\d+")) {
+                    int node = Integer.parseInt(name.substring(4));
+                    for (int cpu : parseList(readString(dir.resolve("cpulist")))) {
+                        nodes.put(cpu, node);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // No NUMA information, everything is on node 0.
+        }
+        return nodes;
+    }
+
+    // The L3 domain is named after the lowest CPU sharing it, which is stable even without cache ids.
+    private static int l3Domain(Path dir, int id) {
+        for (int index = 0; index < 8; index++) {
+            Path cache = dir.resolve("cache/index" + index);
+            if (readInt(cache.resolve("level"), -1) == 3) {
+                List<Integer> shared = parseList(readString(cache.resolve("shared_cpu_list")));
+                return shared.isEmpty() ? id : shared.get(0);
+            }
+        }
+        return 0;
+    }
+
+    /** Parses the kernel's list format, e.g. {@code 0-3,8,10-11}. */
+    static List<Integer> parseList(String list) {
+        List<Integer> result = new ArrayList<>();
+        if (list == null || list.isBlank()) {
+            return result;
+        }
+        for (String part : list.trim().split(",")) {
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            for (int i = from; i <= to; i++) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    private static String readString(Path path) {
+        try {
+            return Files.readString(path).trim();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int readInt(Path path, int defaultValue) {
+        String s = readString(path);
+        return s == null || s.isEmpty() ? defaultValue : Integer.parseInt(s);
+    }
+
+    // ========================= Policies =========================
+
+    /** The CPUs to use for the given policy, one per worker, in the order workers should take them. */
+    public int[] select(Policy policy) {
+        List<Cpu> selected = switch (policy) {
+            case ALL_THREADS -> coresFirst(cpus);
+            case PHYSICAL_CORES -> onePerCore(cpus);
+            case FILL_L3 -> {
+                int l3 = cpus.get(0).l3();
+                yield coresFirst(cpus.stream().filter(c -> c.l3() == l3).toList());
+            }
+        };
+        return selected.stream().mapToInt(Cpu::id).toArray();
+    }
+
+    // The first thread of every core, ordered by node and core, then the remaining siblings.
+    private static List<Cpu> coresFirst(List<Cpu> cpus) {
+        List<Cpu> first = onePerCore(cpus);
+        List<Cpu> result = new ArrayList<>(first);
+        cpus.stream().filter(c -> !first.contains(c)).sorted(BY_PLACEMENT).forEach(result::add);
+        return result;
+    }
+
+    private static List<Cpu> onePerCore(List<Cpu> cpus) {
+        Map<Integer, Cpu> cores = new LinkedHashMap<>();
+        cpus.stream().sorted(Comparator.comparingInt(Cpu::id)).forEach(c -> cores.putIfAbsent(c.core(), c));
+        return cores.values().stream().sorted(BY_PLACEMENT).toList();
+    }
+
+    private static final Comparator<Cpu> BY_PLACEMENT = Comparator.comparingInt(Cpu::node)
+            .thenComparingInt(Cpu::l3)
+            .thenComparingInt(Cpu::core)
+            .thenComparingInt(Cpu::id);
+
+    // ========================= Pinning =========================
+
+    /**
+     * Restricts the calling thread to the given CPU.
+     *
+     * @return whether the affinity was set
+     */
+    public static boolean pin(int cpu) {
+        return Native.setAffinity(cpu);
+    }
+
+    private static final class Native {
+        private static final MethodHandle SCHED_SETAFFINITY;
+        private static final MethodHandle SCHED_GETAFFINITY;
+
+        static {
+            MethodHandle set = null, get = null;
+            try {
+                Linker linker = Linker.nativeLinker();
+                FunctionDescriptor descriptor = FunctionDescriptor.of(ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS);
+                set = linker.defaultLookup().find("sched_setaffinity").map(a -> linker.downcallHandle(a, descriptor)).orElse(null);
+                get = linker.defaultLookup().find("sched_getaffinity").map(a -> linker.downcallHandle(a, descriptor)).orElse(null);
+            }
+            catch (Throwable e) {
+                // Native access not available, pinning is a no-op.
+            }
+            SCHED_SETAFFINITY = set;
+            SCHED_GETAFFINITY = get;
+        }
+
+        static boolean setAffinity(int cpu) {
+            if (SCHED_SETAFFINITY == null || cpu >= CPU_SET_BYTES * 8) {
+                return false;
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment mask = arena.allocate(CPU_SET_BYTES, 8);
+                mask.set(ValueLayout.JAVA_LONG, (cpu >>> 6) * 8L, 1L << cpu);
+                // pid 0 is the calling thread.
+                return (int) SCHED_SETAFFINITY.invokeExact(0, (long) CPU_SET_BYTES, mask) == 0;
+            }
+            catch (Throwable e) {
+                return false;
+            }
+        }
+
+        static long[] getAffinity() {
+            if (SCHED_GETAFFINITY == null) {
+                return null;
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment mask = arena.allocate(CPU_SET_BYTES, 8);
+                if ((int) SCHED_GETAFFINITY.invokeExact(0, (long) CPU_SET_BYTES, mask) != 0) {
+                    return null;
+                }
+                return mask.toArray(ValueLayout.JAVA_LONG);
+            }
+            catch (Throwable e) {
+                return null;
+            }
+        }
+    }
+
+    // ========================= Command line =========================
+
+    public static void main(String[] args) {
+        CpuTopology topology = read();
+        System.out.printf("%d CPUs available to this process (availableProcessors() = %d)%n%n", topology.cpus.size(),
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%5s %8s %8s %6s %6s%n", "CPU", "Core", "Package", "Node", "L3");
+        for (Cpu cpu : topology.cpus) {
+            System.out.printf("%5d %8d %8d %6d %6d%n", cpu.id(), cpu.core() & 0xFFFF, cpu.packageId(), cpu.node(), cpu.l3());
+        }
+        System.out.println();
+        for (Policy policy : Policy.values()) {
+            int[] selected = topology.select(policy);
+            System.out.printf("%-16s %3d workers on CPUs %s%n", policy, selected.length, Arrays.toString(selected));
+        }
+        System.out.println();
+        System.out.println("Pinning the main thread to CPU " + topology.cpus.get(0).id() + ": "
+                + (pin(topology.cpus.get(0).id()) ? "ok" : "not supported"));
+    }
+}
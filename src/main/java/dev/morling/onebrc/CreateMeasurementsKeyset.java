@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Creates a measurements file with a given number of distinct stations, for comparing engines across key cardinalities
+ * from a few hundred to millions of stations.
+ * <p>
+ * Station names are the names from {@code data/weather_stations.csv}, and once those are used up, the same names with a
+ * numeric suffix (" 2", " 3", ...); mean temperatures are derived from the latitude as in {@link CreateMeasurements3}.
+ * Stations are picked uniformly at random, or with {@code --zipf <exponent>} from a Zipf distribution where the station
+ * of rank k is picked with probability proportional to 1/k^exponent, for skewed data sets where few stations dominate.
+ * A fixed seed makes files reproducible.
+ * <p>
+ * Usage: {@code create_measurements_keyset.sh <number of records> <number of stations> [output file] [--zipf <exponent>]},
+ * the output file defaulting to {@code measurements_<stations>.txt}.
+ */
+public class CreateMeasurementsKeyset {
+
+    private static final String USAGE = "Usage: create_measurements_keyset.sh <number of records> <number of stations> [output file] [--zipf <exponent>]";
+
+    record WeatherStation(byte[] nameAndSeparator, double avgTemp) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>(List.of(args));
+        double zipfExponent = 0;
+        int zipf = positional.indexOf("--zipf");
+        if (zipf >= 0) {
+            if (zipf + 1 >= positional.size()) {
+                System.out.println(USAGE);
+                System.exit(1);
+            }
+            zipfExponent = Double.parseDouble(positional.remove(zipf + 1));
+            positional.remove(zipf);
+        }
+        if (positional.size() < 2 || positional.size() > 3) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        long records = 0;
+        int stations = 0;
+        try {
+            records = Long.parseLong(positional.get(0));
+            stations = Integer.parseInt(positional.get(1));
+        }
+        catch (NumberFormatException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        Path output = Path.of(positional.size() > 2 ? positional.get(2) : "measurements_" + stations + ".txt");
+
+        List<WeatherStation> weatherStations = generateWeatherStations(stations);
+        Random random = new Random(stations);
+        double[] cumulative = zipfExponent > 0 ? zipfCumulative(stations, zipfExponent) : null;
+        long start = System.currentTimeMillis();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), 1 << 20)) {
+            byte[] number = new byte[8];
+            for (long i = 1; i <= records; i++) {
+                WeatherStation station = weatherStations.get(cumulative == null ? random.nextInt(stations) : zipfRank(cumulative, random.nextDouble()));
+                out.write(station.nameAndSeparator());
+                int tenths = (int) Math.round(Math.max(-99.9, Math.min(99.9, station.avgTemp() + 7.0 * random.nextGaussian())) * 10.0);
+                out.write(number, 0, formatTenths(tenths, number));
+                if (i % 50_000_000 == 0) {
+                    System.out.printf("Wrote %,d measurements in %,d ms%n", i, System.currentTimeMillis() - start);
+                }
+            }
+        }
+        System.out.printf("Wrote %,d measurements of %,d stations to %s in %,d ms%n", records, stations, output, System.currentTimeMillis() - start);
+    }
+
+    // Cumulative probabilities of the ranks, normalized to end at 1.
+    private static double[] zipfCumulative(int stations, double exponent) {
+        double[] cumulative = new double[stations];
+        double sum = 0;
+        for (int k = 0; k < stations; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < stations; k++) {
+            cumulative[k] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int zipfRank(double[] cumulative, double uniform) {
+        int rank = Arrays.binarySearch(cumulative, uniform);
+        return Math.min(rank >= 0 ? rank : -rank - 1, cumulative.length - 1);
+    }
+
+    static List<WeatherStation> generateWeatherStations(int count) throws IOException {
+        Map<String, Double> base = new LinkedHashMap<>();
+        try (BufferedReader rows = Files.newBufferedReader(Path.of("data/weather_stations.csv"), StandardCharsets.UTF_8)) {
+            String row;
+            while ((row = rows.readLine()) != null) {
+                if (row.startsWith("#")) {
+                    continue;
+                }
+                int separator = row.indexOf(';');
+                double lat = Double.parseDouble(row.substring(separator + 1));
+                // Guesstimate mean temperature using cosine of latitude
+                base.putIfAbsent(row.substring(0, separator), 30 * Math.cos(Math.toRadians(lat)) - 10);
+            }
+        }
+        List<WeatherStation> weatherStations = new ArrayList<>(count);
+        for (int round = 1; weatherStations.size() < count; round++) {
+            for (var e : base.entrySet()) {
+                if (weatherStations.size() == count) {
+                    break;
+                }
+                String name = round == 1 ? e.getKey() : e.getKey() + " " + round;
+                byte[] bytes = (name + ";").getBytes(StandardCharsets.UTF_8);
+                if (bytes.length <= 101) {
+                    weatherStations.add(new WeatherStation(bytes, e.getValue()));
+                }
+            }
+        }
+        return weatherStations;
+    }
+
+    // Writes the value as "-12.3\n" into buffer and returns the length.
+    static int formatTenths(int tenths, byte[] buffer) {
+        int length = 0;
+        if (tenths < 0) {
+            buffer[length++] = '-';
+            tenths = -tenths;
+        }
+        if (tenths >= 100) {
+            buffer[length++] = (byte) ('0' + tenths / 100);
+        }
+        buffer[length++] = (byte) ('0' + tenths / 10 % 10);
+        buffer[length++] = '.';
+        buffer[length++] = (byte) ('0' + tenths % 10);
+        buffer[length++] = '\n';
+        return length;
+    }
+}
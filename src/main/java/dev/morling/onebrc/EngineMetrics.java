@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Progress of a running engine, per worker: bytes parsed, rows, the file offset of the segment being parsed and the
+ * segments done, so that a long run can be told apart from a stalled one.
+ * <p>
+ * Each worker writes only its own counters, with plain stores once per segment, into a slot of 16 longs (128 bytes)
+ * of a shared array, so no two workers' counters share a cache line. Readers use opaque loads, which see the
+ * workers' latest stores without ordering anything on the workers' side; the values of different counters may be
+ * from slightly different moments. Nothing is computed until someone asks.
+ * <p>
+ * The counters are exposed as an {@link EngineMetricsMXBean} and, with {@link #serve(int)}, as Prometheus text at
+ * {@code http://localhost:<port>/metrics}.
+ */
+public final class EngineMetrics implements EngineMetricsMXBean, AutoCloseable {
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int SLOT_SHIFT = 4;
+    private static final int BYTES = 0;
+    private static final int ROWS = 1;
+    private static final int SEGMENT = 2;
+    private static final int SEGMENTS = 3;
+
+    private final String engine;
+    private final int workers;
+    private final long inputBytes;
+    private final long startNanos = System.nanoTime();
+    private final long[] counters;
+    private ObjectName objectName;
+    private HttpServer server;
+
+    public EngineMetrics(String engine, int workers, long inputBytes) {
+        this.engine = engine;
+        this.workers = workers;
+        this.inputBytes = inputBytes;
+        this.counters = new long[workers << SLOT_SHIFT];
+        for (int worker = 0; worker < workers; worker++) {
+            counters[(worker << SLOT_SHIFT) + SEGMENT] = -1;
+        }
+    }
+
+    // ========================= Updates, by the worker only =========================
+
+    public void segmentStarted(int worker, long offset) {
+        counters[(worker << SLOT_SHIFT) + SEGMENT] = offset;
+    }
+
+    public void segmentDone(int worker, long bytes, long rows) {
+        int slot = worker << SLOT_SHIFT;
+        counters[slot + BYTES] += bytes;
+        counters[slot + ROWS] += rows;
+        counters[slot + SEGMENTS]++;
+    }
+
+    // ========================= Queries =========================
+
+    private long read(int worker, int counter) {
+        return (long) LONGS.getOpaque(counters, (worker << SLOT_SHIFT) + counter);
+    }
+
+    private long[] readAll(int counter) {
+        long[] values = new long[workers];
+        for (int worker = 0; worker < workers; worker++) {
+            values[worker] = read(worker, counter);
+        }
+        return values;
+    }
+
+    private long total(int counter) {
+        long total = 0;
+        for (int worker = 0; worker < workers; worker++) {
+            total += read(worker, counter);
+        }
+        return total;
+    }
+
+    @Override
+    public String getEngine() {
+        return engine;
+    }
+
+    @Override
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    @Override
+    public long getBytesParsed() {
+        return total(BYTES);
+    }
+
+    @Override
+    public long getRows() {
+        return total(ROWS);
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public long[] getWorkerBytesParsed() {
+        return readAll(BYTES);
+    }
+
+    @Override
+    public long[] getWorkerRows() {
+        return readAll(ROWS);
+    }
+
+    @Override
+    public long[] getWorkerSegmentOffsets() {
+        return readAll(SEGMENT);
+    }
+
+    @Override
+    public long[] getWorkerSegmentsDone() {
+        return readAll(SEGMENTS);
+    }
+
+    /** The metrics in the Prometheus text exposition format. */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder(1024);
+        String labels = "engine=\"" + engine + "\"";
+        gauge(out, "onebrc_input_bytes", "Size of the input file in bytes.", labels, inputBytes);
+        gauge(out, "onebrc_elapsed_seconds", "Seconds since the run started.", labels, getElapsedSeconds());
+        perWorker(out, "onebrc_bytes_parsed_total", "counter", "Bytes parsed by a worker.", labels, BYTES);
+        perWorker(out, "onebrc_rows_total", "counter", "Rows parsed by a worker.", labels, ROWS);
+        perWorker(out, "onebrc_segments_total", "counter", "Segments completed by a worker.", labels, SEGMENTS);
+        perWorker(out, "onebrc_segment_offset_bytes", "gauge", "File offset of the segment a worker is parsing, -1 before the first.", labels, SEGMENT);
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String labels, Object value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private void perWorker(StringBuilder out, String name, String type, String help, String labels, int counter) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (int worker = 0; worker < workers; worker++) {
+            out.append(name).append('{').append(labels).append(",worker=\"").append(worker).append("\"} ").append(read(worker, counter)).append('\n');
+        }
+    }
+
+    // ========================= Exposure =========================
+
+    /** Registers the MXBean as {@code dev.morling.onebrc:type=EngineMetrics,engine=<engine>}. */
+    public EngineMetrics register() throws JMException {
+        objectName = ObjectName.getInstance("dev.morling.onebrc:type=EngineMetrics,engine=" + ObjectName.quote(engine));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return this;
+    }
+
+    /** Serves {@code /metrics} on the loopback interface, on an ephemeral port for 0; returns the port. */
+    public int serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /** Stops the HTTP server and unregisters the MXBean, if they were started. */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e) {
+                // Already gone.
+            }
+            objectName = null;
+        }
+    }
+}
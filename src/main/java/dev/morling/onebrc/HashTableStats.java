@@ -0,0 +1,404 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Offline instrumentation of the station hash tables used by some of the entries. Every table is modelled with
+ * the exact hash mixer, capacity and probing scheme of the original, but lives in this class only, so the engines
+ * themselves stay untouched and do not pay anything for the statistics.
+ * <p>
+ * Station names are read from a file in the format of {@code data/weather_stations.csv} (or a measurements file):
+ * everything before the first {@code ;} of a line is the name, lines starting with {@code #} are skipped. Names
+ * that occur several times are weighted by their number of occurrences, so running this over a measurements file
+ * reflects the actual lookup mix.
+ * <p>
+ * For every table, this reports the load factor, a histogram of probe lengths, the frequency of the long-name slow
+ * path (names not handled by the inlined name words) and the occupancy of home buckets, i.e. how many distinct names
+ * map to the same initial slot. The tables are then ranked by the average probe length per lookup.
+ * <p>
+ * Usage: {@code hash_stats.sh [station file] [max distinct names]}
+ */
+public class HashTableStats {
+
+    private static final int[] HISTOGRAM_BOUNDS = { 1, 2, 3, 4, 8, 16, 64, Integer.MAX_VALUE };
+
+    public static void main(String[] args) throws IOException {
+        Path file = Path.of(args.length > 0 ? args[0] : "data/weather_stations.csv");
+        int maxKeys = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+
+        Map<String, Long> stations = readStations(file, maxKeys);
+        List<Key> keys = new ArrayList<>(stations.size());
+        for (Map.Entry<String, Long> e : stations.entrySet()) {
+            keys.add(new Key(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue()));
+        }
+        System.out.printf("%,d distinct station names from %s%n%n", keys.size(), file);
+
+        List<Report> reports = new ArrayList<>();
+        for (TableModel model : models()) {
+            Report report = model.run(keys);
+            System.out.println(report);
+            reports.add(report);
+        }
+
+        reports.sort(Comparator.comparing((Report r) -> r.overflow > 0)
+                .thenComparingDouble(r -> r.avgProbes)
+                .thenComparingInt(r -> r.maxProbes));
+        System.out.println("Ranking (by average probes per lookup, weighted by occurrences):");
+        System.out.printf("  %-4s %-40s %12s %10s %10s %12s%n", "#", "Table", "avg probes", "max", "home hit", "slow path");
+        for (int i = 0; i < reports.size(); i++) {
+            Report r = reports.get(i);
+            System.out.printf("  %-4d %-40s %12s %10d %9.2f%% %11.2f%%%n", i + 1, r.name,
+                    r.overflow > 0 ? "FULL" : String.format("%.4f", r.avgProbes), r.maxProbes, 100.0 * r.homeHits, 100.0 * r.slowPath);
+        }
+    }
+
+    private static Map<String, Long> readStations(Path file, int maxKeys) throws IOException {
+        Map<String, Long> stations = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int sep = line.indexOf(';');
+                String name = sep >= 0 ? line.substring(0, sep) : line;
+                if (stations.size() < maxKeys || stations.containsKey(name)) {
+                    stations.merge(name, 1L, Long::sum);
+                }
+            }
+        }
+        return stations;
+    }
+
+    // ========================= Models =========================
+
+    private static List<TableModel> models() {
+        return List.of(
+                new TableModel("thomaswue (hashToIndex, stride 31)",
+                        new Table(1 << 17, Probing.STRIDE_31, HashTableStats::thomaswueIndex, k -> true),
+                        k -> k.length() >= 16),
+                new TableModel("mtopolnik (rotl(w0 * C, 17), linear)",
+                        new Table(1 << 16, Probing.LINEAR, HashTableStats::mtopolnikIndex, k -> true),
+                        k -> k.length() >= 16),
+                new TableModel("melgenek (prime multiplier, quadratic)",
+                        new Table(32768, Probing.QUADRATIC, HashTableStats::melgenekLongIndex, k -> k.length() <= 8),
+                        new Table(16384, Probing.QUADRATIC, HashTableStats::melgenekRegularIndex, k -> k.length() > 8),
+                        k -> k.length() > 8),
+                new TableModel("jincongho (fxhash, linear)",
+                        new Table(1 << 14, Probing.LINEAR, HashTableStats::jinconghoIndex, k -> true),
+                        k -> false),
+                new TableModel("shipilev (xor of b * 82805, linear)",
+                        new Table(1 << 15, Probing.LINEAR, HashTableStats::shipilevIndex, k -> true),
+                        k -> false));
+    }
+
+    // CalculateAverage_thomaswue: findResult() and hashToIndex(). The name words include the ';'.
+    private static final long[] MASK1 = new long[]{ 0xFFL, 0xFFFFL, 0xFFFFFFL, 0xFFFFFFFFL, 0xFFFFFFFFFFL, 0xFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFFFL,
+            0xFFFFFFFFFFFFFFFFL };
+    private static final long[] MASK2 = new long[]{ 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0x00L, 0xFFFFFFFFFFFFFFFFL };
+
+    private static int thomaswueIndex(Key key) {
+        long word = key.longAt(0);
+        long word2 = key.longAt(8);
+        long delimiterMask = findDelimiter(word);
+        long delimiterMask2 = findDelimiter(word2);
+        long hash;
+        if ((delimiterMask | delimiterMask2) != 0) {
+            int letterCount1 = Long.numberOfTrailingZeros(delimiterMask) >>> 3;
+            int letterCount2 = Long.numberOfTrailingZeros(delimiterMask2) >>> 3;
+            word = word & MASK1[letterCount1];
+            word2 = MASK2[letterCount1] & word2 & MASK1[letterCount2];
+            hash = word ^ word2;
+        }
+        else {
+            hash = word ^ word2;
+            for (int pos = 16;; pos += 8) {
+                word = key.longAt(pos);
+                long mask = findDelimiter(word);
+                if (mask != 0) {
+                    hash ^= word << (63 - Long.numberOfTrailingZeros(mask));
+                    break;
+                }
+                hash ^= word;
+            }
+        }
+        long hashAsInt = hash ^ (hash >>> 33) ^ (hash >>> 15);
+        return (int) (hashAsInt & ((1 << 17) - 1));
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    // CalculateAverage_mtopolnik: only the first name word (with the ';' if it fits) is hashed.
+    private static int mtopolnikIndex(Key key) {
+        long word = key.longAt(0);
+        long matchBits = findDelimiter(word);
+        if (matchBits != 0) {
+            word &= matchBits ^ (matchBits - 1);
+        }
+        long hash = Long.rotateLeft(word * 0x51_7c_c1_b7_27_22_0a_95L, 17);
+        return (int) (hash & ((1 << 16) - 1));
+    }
+
+    // CalculateAverage_melgenek: calculateLongHash() for names up to 8 bytes, calculateHash() otherwise.
+    private static final long RANDOM_PRIME = 0x7A646E4D;
+
+    private static int melgenekLongIndex(Key key) {
+        long str = key.length() == 8 ? key.longAt(0) : key.longAt(0) & (-1L >>> ((Long.BYTES - key.length()) * Byte.SIZE));
+        long hash = str * RANDOM_PRIME;
+        return ((int) hash ^ (int) (hash >>> 32)) & (32768 - 1);
+    }
+
+    private static int melgenekRegularIndex(Key key) {
+        long hash = 0;
+        int position = 0;
+        int end = key.length();
+        for (; position + Long.BYTES < end; position += Long.BYTES) {
+            hash = hash * RANDOM_PRIME + key.longAt(position);
+        }
+        if (position + Integer.BYTES < end) {
+            hash = hash * RANDOM_PRIME + key.intAt(position);
+            position += Integer.BYTES;
+        }
+        for (; position < end; position++) {
+            hash = hash * RANDOM_PRIME + key.name[position];
+        }
+        hash = hash * RANDOM_PRIME;
+        return ((int) hash ^ (int) (hash >>> 32)) & (16384 - 1);
+    }
+
+    // CalculateAverage_jincongho: fxhash over the first and the last four bytes of the name.
+    private static int jinconghoIndex(Key key) {
+        final int seed = 0x9E3779B9;
+        int length = key.length();
+        int x, y;
+        if (length >= Integer.BYTES) {
+            x = key.intAt(0);
+            y = key.intAt(length - Integer.BYTES);
+        }
+        else {
+            x = key.name[0];
+            y = key.name[length - 1];
+        }
+        return ((Integer.rotateLeft(x * seed, 5) ^ y) * seed) & ((1 << 14) - 1);
+    }
+
+    // CalculateAverage_shipilev: seqCompute() folds every name byte into the hash.
+    private static int shipilevIndex(Key key) {
+        int hash = 0;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= (key.name[i] & 0xFF) * 82805;
+        }
+        return hash & ((1 << 15) - 1);
+    }
+
+    // ========================= Simulation =========================
+
+    private enum Probing {
+        LINEAR,
+        STRIDE_31,
+        QUADRATIC;
+
+        int next(int index, int attempt, int mask) {
+            return switch (this) {
+                case LINEAR -> (index + 1) & mask;
+                case STRIDE_31 -> (index + 31) & mask;
+                case QUADRATIC -> (index + attempt) & mask;
+            };
+        }
+    }
+
+    private record Key(byte[] name, long occurrences, ByteBuffer padded) {
+
+        Key(byte[] name, long occurrences) {
+            // The name followed by ';' and zero padding, so that word-wise reads past the name work as in the engines.
+            this(name, occurrences, ByteBuffer.allocate(name.length + 1 + 24).order(ByteOrder.LITTLE_ENDIAN).put(name).put((byte) ';'));
+        }
+
+        int length() {
+            return name.length;
+        }
+
+        long longAt(int pos) {
+            return padded.getLong(pos);
+        }
+
+        int intAt(int pos) {
+            return padded.getInt(pos);
+        }
+    }
+
+    private static final class Table {
+        private final int capacity;
+        private final Probing probing;
+        private final ToIntFunction<Key> index;
+        private final Predicate<Key> accepts;
+        private final boolean[] used;
+        private final int[] homeCounts;
+        private int size;
+
+        Table(int capacity, Probing probing, ToIntFunction<Key> index, Predicate<Key> accepts) {
+            this.capacity = capacity;
+            this.probing = probing;
+            this.index = index;
+            this.accepts = accepts;
+            this.used = new boolean[capacity];
+            this.homeCounts = new int[capacity];
+        }
+
+        // Inserts a new distinct key, returning the number of slots inspected, or -1 if the table is full.
+        int insert(Key key) {
+            if (size == capacity) {
+                return -1;
+            }
+            int idx = index.applyAsInt(key);
+            homeCounts[idx]++;
+            int probes = 1;
+            while (used[idx]) {
+                idx = probing.next(idx, probes, capacity - 1);
+                probes++;
+            }
+            used[idx] = true;
+            size++;
+            return probes;
+        }
+    }
+
+    private static final class TableModel {
+        private final String name;
+        private final Table[] tables;
+        private final Predicate<Key> slowPath;
+
+        TableModel(String name, Table table, Predicate<Key> slowPath) {
+            this(name, new Table[]{ table }, slowPath);
+        }
+
+        // Composite tables, the first table accepting a key gets it.
+        TableModel(String name, Table first, Table second, Predicate<Key> slowPath) {
+            this(name, new Table[]{ first, second }, slowPath);
+        }
+
+        private TableModel(String name, Table[] tables, Predicate<Key> slowPath) {
+            this.name = name;
+            this.tables = tables;
+            this.slowPath = slowPath;
+        }
+
+        Report run(List<Key> keys) {
+            Report report = new Report(name);
+            long lookups = 0, probeSum = 0, homeHits = 0, slow = 0;
+            for (Key key : keys) {
+                Table table = tables[0];
+                for (Table t : tables) {
+                    if (t.accepts.test(key)) {
+                        table = t;
+                        break;
+                    }
+                }
+                // A lookup of an existing key walks the same chain as its insertion did.
+                int probes = table.insert(key);
+                if (probes < 0) {
+                    report.overflow++;
+                    continue;
+                }
+                lookups += key.occurrences();
+                probeSum += probes * key.occurrences();
+                homeHits += probes == 1 ? key.occurrences() : 0;
+                slow += slowPath.test(key) ? key.occurrences() : 0;
+                report.maxProbes = Math.max(report.maxProbes, probes);
+                for (int b = 0; b < HISTOGRAM_BOUNDS.length; b++) {
+                    if (probes <= HISTOGRAM_BOUNDS[b]) {
+                        report.histogram[b]++;
+                        break;
+                    }
+                }
+            }
+            report.avgProbes = lookups == 0 ? 0 : (double) probeSum / lookups;
+            report.homeHits = lookups == 0 ? 0 : (double) homeHits / lookups;
+            report.slowPath = lookups == 0 ? 0 : (double) slow / lookups;
+
+            StringBuilder layout = new StringBuilder();
+            for (Table t : tables) {
+                int[] occupancy = new int[5];
+                int maxOccupancy = 0;
+                for (int c : t.homeCounts) {
+                    occupancy[Math.min(c, occupancy.length - 1)]++;
+                    maxOccupancy = Math.max(maxOccupancy, c);
+                }
+                layout.append(String.format("  capacity %,d, %,d keys, load factor %.3f%n", t.capacity, t.size, (double) t.size / t.capacity));
+                layout.append(String.format("  home buckets with 0/1/2/3/4+ keys: %,d / %,d / %,d / %,d / %,d (max %d)%n",
+                        occupancy[0], occupancy[1], occupancy[2], occupancy[3], occupancy[4], maxOccupancy));
+            }
+            report.layout = layout.toString();
+            return report;
+        }
+    }
+
+    private static final class Report {
+        private final String name;
+        private final long[] histogram = new long[HISTOGRAM_BOUNDS.length];
+        private String layout;
+        private double avgProbes;
+        private double homeHits;
+        private double slowPath;
+        private int maxProbes;
+        private int overflow;
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("-------------------------------------------------------------------------------------------\n");
+            sb.append("  ").append(name).append('\n');
+            sb.append("-------------------------------------------------------------------------------------------\n");
+            sb.append(layout);
+            if (overflow > 0) {
+                sb.append(String.format("  TABLE FULL: %,d keys did not fit%n", overflow));
+            }
+            sb.append(String.format("  avg probes per lookup %.4f, max %d, home slot hit rate %.2f%%, long-name slow path %.2f%%%n",
+                    avgProbes, maxProbes, 100.0 * homeHits, 100.0 * slowPath));
+            sb.append("  probe length histogram (distinct keys):\n");
+            int lower = 1;
+            for (int b = 0; b < HISTOGRAM_BOUNDS.length; b++) {
+                int upper = HISTOGRAM_BOUNDS[b];
+                String range = upper == Integer.MAX_VALUE ? lower + "+" : lower == upper ? String.valueOf(lower) : lower + "-" + upper;
+                sb.append(String.format("    %8s : %,d%n", range, histogram[b]));
+                lower = upper + 1;
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+
+/**
+ * Tells the kernel how a memory-mapped input file is going to be accessed, through {@code madvise} and
+ * {@code posix_fadvise} called with the Foreign Function API.
+ * <p>
+ * The mmap-based entries read the file strictly front to back (per segment), but by default the kernel only sees page
+ * faults and reads ahead a small window around them. {@link #POSIX_FADV_SEQUENTIAL} enlarges that readahead
+ * ({@link #MADV_SEQUENTIAL} does too, but also drops pages eagerly, which made re-reads slower), {@link #MADV_WILLNEED}
+ * starts reading a range before it is touched, and
+ * {@link #MADV_DONTNEED} drops the page table entries of a range that has been processed, so that the final unmap has
+ * less to tear down. The data itself stays in the page cache.
+ * <p>
+ * All calls return whether the advice was applied. On other operating systems, or without native access, they do
+ * nothing, so callers need no special casing. Advice is never required for correctness.
+ */
+public class IoHints {
+
+    // madvise(2) advice values from Linux' mman-common.h.
+    public static final int MADV_NORMAL = 0;
+    public static final int MADV_RANDOM = 1;
+    public static final int MADV_SEQUENTIAL = 2;
+    public static final int MADV_WILLNEED = 3;
+    public static final int MADV_DONTNEED = 4;
+    public static final int MADV_HUGEPAGE = 14;
+
+    // posix_fadvise(2) advice values, as defined for Linux.
+    public static final int POSIX_FADV_NORMAL = 0;
+    public static final int POSIX_FADV_RANDOM = 1;
+    public static final int POSIX_FADV_SEQUENTIAL = 2;
+    public static final int POSIX_FADV_WILLNEED = 3;
+    public static final int POSIX_FADV_DONTNEED = 4;
+
+    private static final int O_RDONLY = 0;
+    private static final int SC_PAGESIZE = 30;
+
+    public static final long PAGE_SIZE = Native.pageSize();
+
+    /** Advises on the pages overlapping {@code [address, address + length)}. */
+    public static boolean madvise(long address, long length, int advice) {
+        if (length <= 0) {
+            return false;
+        }
+        long start = address & -PAGE_SIZE;
+        long end = (address + length + PAGE_SIZE - 1) & -PAGE_SIZE;
+        return Native.madvise(start, end - start, advice);
+    }
+
+    public static boolean madvise(MemorySegment segment, int advice) {
+        return madvise(segment.address(), segment.byteSize(), advice);
+    }
+
+    /** Advises on {@code [offset, offset + length)} of the file, a length of 0 meaning up to its end. */
+    public static boolean fadvise(Path file, long offset, long length, int advice) {
+        int fd = Native.open(file);
+        if (fd < 0) {
+            return false;
+        }
+        try {
+            // The page cache belongs to the file, not to this descriptor, so the advice outlives it.
+            return Native.fadvise(fd, offset, length, advice);
+        }
+        finally {
+            Native.close(fd);
+        }
+    }
+
+    /**
+     * Number of pages of {@code [address, address + length)} that are resident in memory, or -1 if unknown. For a
+     * file mapping this is the part of the file in the page cache; asking does not fault anything in.
+     */
+    public static long residentPages(long address, long length) {
+        long start = address & -PAGE_SIZE;
+        long pages = (address + length - start + PAGE_SIZE - 1) / PAGE_SIZE;
+        return Native.mincore(start, pages);
+    }
+
+    private static final class Native {
+        private static final MethodHandle MADVISE;
+        private static final MethodHandle POSIX_FADVISE;
+        private static final MethodHandle OPEN;
+        private static final MethodHandle CLOSE;
+        private static final MethodHandle SYSCONF;
+        private static final MethodHandle MINCORE;
+
+        static {
+            MethodHandle madvise = null, fadvise = null, open = null, close = null, sysconf = null, mincore = null;
+            try {
+                Linker linker = Linker.nativeLinker();
+                var lookup = linker.defaultLookup();
+                madvise = lookup.find("madvise").map(a -> linker.downcallHandle(a,
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT)))
+                        .orElse(null);
+                fadvise = lookup.find("posix_fadvise").map(a -> linker.downcallHandle(a,
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT)))
+                        .orElse(null);
+                // open() is variadic, the mode argument is only read with O_CREAT.
+                open = lookup.find("open").map(a -> linker.downcallHandle(a,
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT)))
+                        .orElse(null);
+                close = lookup.find("close").map(a -> linker.downcallHandle(a,
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT)))
+                        .orElse(null);
+                sysconf = lookup.find("sysconf").map(a -> linker.downcallHandle(a,
+                        FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT)))
+                        .orElse(null);
+                mincore = lookup.find("mincore").map(a -> linker.downcallHandle(a,
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS)))
+                        .orElse(null);
+            }
+            catch (Throwable e) {
+                // Native access not available, all advice is a no-op.
+            }
+            MADVISE = madvise;
+            POSIX_FADVISE = fadvise;
+            OPEN = open;
+            CLOSE = close;
+            SYSCONF = sysconf;
+            MINCORE = mincore;
+        }
+
+        static long pageSize() {
+            try {
+                if (SYSCONF != null) {
+                    long size = (long) SYSCONF.invokeExact(SC_PAGESIZE);
+                    if (size > 0) {
+                        return size;
+                    }
+                }
+            }
+            catch (Throwable e) {
+                // Fall through to the common default.
+            }
+            return 4096;
+        }
+
+        static boolean madvise(long address, long length, int advice) {
+            if (MADVISE == null) {
+                return false;
+            }
+            try {
+                return (int) MADVISE.invokeExact(address, length, advice) == 0;
+            }
+            catch (Throwable e) {
+                return false;
+            }
+        }
+
+        // One status byte per page, the lowest bit tells whether it is resident.
+        static long mincore(long address, long pages) {
+            if (MINCORE == null) {
+                return -1;
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment vector = arena.allocate(Math.max(1, pages));
+                if ((int) MINCORE.invokeExact(address, pages * PAGE_SIZE, vector) != 0) {
+                    return -1;
+                }
+                long resident = 0;
+                for (long i = 0; i < pages; i++) {
+                    resident += vector.get(ValueLayout.JAVA_BYTE, i) & 1;
+                }
+                return resident;
+            }
+            catch (Throwable e) {
+                return -1;
+            }
+        }
+
+        static boolean fadvise(int fd, long offset, long length, int advice) {
+            if (POSIX_FADVISE == null) {
+                return false;
+            }
+            try {
+                // Returns the error number instead of setting errno.
+                return (int) POSIX_FADVISE.invokeExact(fd, offset, length, advice) == 0;
+            }
+            catch (Throwable e) {
+                return false;
+            }
+        }
+
+        static int open(Path file) {
+            if (OPEN == null) {
+                return -1;
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                return (int) OPEN.invokeExact(arena.allocateUtf8String(file.toString()), O_RDONLY);
+            }
+            catch (Throwable e) {
+                return -1;
+            }
+        }
+
+        static void close(int fd) {
+            try {
+                if (CLOSE != null) {
+                    int ignored = (int) CLOSE.invokeExact(fd);
+                }
+            }
+            catch (Throwable e) {
+                // Nothing to do, the descriptor is gone with the process at the latest.
+            }
+        }
+    }
+}
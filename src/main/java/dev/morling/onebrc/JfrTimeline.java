@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Prints per-thread timelines for the 1BRC events found in a JFR recording, e.g. one taken with
+ * {@code -XX:StartFlightRecording:filename=1brc.jfr} from {@link CalculateAverage_shipilev}.
+ * <p>
+ * For every event type, the summary mirrors what vemana's {@code Tracing.ThreadTimingsArray} reports on stderr:
+ * busy durations, the overall timespan and the spread of begin and completion times across threads. Each thread
+ * then gets a line with its counters and an ASCII bar showing when it was busy.
+ * <p>
+ * Usage: {@code java --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.JfrTimeline 1brc.jfr [event name prefix]}
+ */
+public class JfrTimeline {
+
+    private static final String DEFAULT_PREFIX = "dev.morling.onebrc.";
+    private static final int TIMELINE_WIDTH = 64;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: JfrTimeline <recording.jfr> [event name prefix]");
+            System.exit(1);
+        }
+        String prefix = args.length > 1 ? args[1] : DEFAULT_PREFIX;
+
+        Map<String, Map<String, ThreadTimeline>> timelines = new TreeMap<>();
+        Instant first = Instant.MAX;
+        Instant last = Instant.MIN;
+        for (RecordedEvent event : RecordingFile.readAllEvents(Path.of(args[0]))) {
+            String type = event.getEventType().getName();
+            if (!type.startsWith(prefix)) {
+                continue;
+            }
+            String thread = threadName(event.getThread());
+            timelines.computeIfAbsent(type.substring(prefix.length()), k -> new TreeMap<>())
+                    .computeIfAbsent(thread, ThreadTimeline::new)
+                    .add(event);
+            if (event.getStartTime().isBefore(first)) {
+                first = event.getStartTime();
+            }
+            if (event.getEndTime().isAfter(last)) {
+                last = event.getEndTime();
+            }
+        }
+
+        if (timelines.isEmpty()) {
+            System.out.println("No events with prefix '" + prefix + "' found in " + args[0]);
+            return;
+        }
+
+        for (Map.Entry<String, Map<String, ThreadTimeline>> entry : timelines.entrySet()) {
+            System.out.println(analyze(entry.getKey(), new ArrayList<>(entry.getValue().values()), first, last));
+        }
+    }
+
+    private static String threadName(RecordedThread thread) {
+        if (thread == null) {
+            return "<unknown>";
+        }
+        return thread.getJavaName() != null ? thread.getJavaName() : thread.getOSName();
+    }
+
+    private static String analyze(String type, List<ThreadTimeline> threads, Instant first, Instant last) {
+        long minBusy = Long.MAX_VALUE, maxBusy = Long.MIN_VALUE;
+        long minBegin = Long.MAX_VALUE, maxBegin = Long.MIN_VALUE;
+        long minEnd = Long.MAX_VALUE, maxEnd = Long.MIN_VALUE;
+        for (ThreadTimeline t : threads) {
+            long begin = millis(first, t.begin);
+            long end = millis(first, t.end);
+            minBusy = Math.min(minBusy, t.busy.toMillis());
+            maxBusy = Math.max(maxBusy, t.busy.toMillis());
+            minBegin = Math.min(minBegin, begin);
+            maxBegin = Math.max(maxBegin, begin);
+            minEnd = Math.min(minEnd, end);
+            maxEnd = Math.max(maxEnd, end);
+        }
+
+        long total = Math.max(1, millis(first, last));
+        StringBuilder sb = new StringBuilder();
+        sb.append("-------------------------------------------------------------------------------------------\n");
+        sb.append("                                ").append(type).append(" Stats\n");
+        sb.append("-------------------------------------------------------------------------------------------\n");
+        sb.append("Threads                                   = ").append(threads.size()).append('\n');
+        sb.append("Max busy time                             = ").append(maxBusy).append(" ms\n");
+        sb.append("Min busy time                             = ").append(minBusy).append(" ms\n");
+        sb.append("Timespan[max(end)-min(start)]             = ").append(maxEnd - minBegin)
+                .append(" ms [").append(minBegin).append(" - ").append(maxEnd).append("]\n");
+        sb.append("Completion Timespan[max(end)-min(end)]    = ").append(maxEnd - minEnd).append(" ms\n");
+        sb.append("Begin Timespan[max(begin)-min(begin)]     = ").append(maxBegin - minBegin).append(" ms\n");
+        sb.append('\n');
+        sb.append(String.format("%-28s %7s %10s %12s %8s %8s %8s  %s%n",
+                "Thread", "Events", "MB", "Rows", "Begin", "End", "Busy", "Timeline [0 - " + total + " ms]"));
+        for (ThreadTimeline t : threads) {
+            sb.append(String.format("%-28s %7d %10.1f %12d %8d %8d %8d  %s%n",
+                    abbreviate(t.thread, 28),
+                    t.events,
+                    t.bytes / (1024.0 * 1024.0),
+                    t.rows,
+                    millis(first, t.begin),
+                    millis(first, t.end),
+                    t.busy.toMillis(),
+                    t.render(first, total)));
+        }
+        return sb.toString();
+    }
+
+    private static long millis(Instant from, Instant to) {
+        return Duration.between(from, to).toMillis();
+    }
+
+    private static String abbreviate(String s, int length) {
+        return s.length() <= length ? s : s.substring(0, length - 3) + "...";
+    }
+
+    private static final class ThreadTimeline {
+        private final String thread;
+        private final List<RecordedEvent> recorded = new ArrayList<>();
+        private Instant begin = Instant.MAX;
+        private Instant end = Instant.MIN;
+        private Duration busy = Duration.ZERO;
+        private long events;
+        private long bytes;
+        private long rows;
+
+        ThreadTimeline(String thread) {
+            this.thread = thread;
+        }
+
+        void add(RecordedEvent event) {
+            recorded.add(event);
+            events++;
+            busy = busy.plus(event.getDuration());
+            if (event.hasField("bytes")) {
+                bytes += event.getLong("bytes");
+            }
+            if (event.hasField("rows")) {
+                rows += event.getLong("rows");
+            }
+            if (event.getStartTime().isBefore(begin)) {
+                begin = event.getStartTime();
+            }
+            if (event.getEndTime().isAfter(end)) {
+                end = event.getEndTime();
+            }
+        }
+
+        // One character per time slot: '#' if the thread was in an event for the
+        // whole slot, '+' if partially, ' ' if not at all.
+        String render(Instant first, long totalMillis) {
+            double slot = (double) totalMillis / TIMELINE_WIDTH;
+            double[] covered = new double[TIMELINE_WIDTH];
+            for (RecordedEvent event : recorded) {
+                double from = Duration.between(first, event.getStartTime()).toNanos() / 1e6;
+                double to = Duration.between(first, event.getEndTime()).toNanos() / 1e6;
+                for (int i = Math.max(0, (int) (from / slot)); i < TIMELINE_WIDTH && i * slot <= to; i++) {
+                    double overlap = Math.min(to, (i + 1) * slot) - Math.max(from, i * slot);
+                    if (overlap > 0) {
+                        covered[i] += overlap;
+                    }
+                }
+            }
+            StringBuilder sb = new StringBuilder(TIMELINE_WIDTH + 2).append('|');
+            for (double c : covered) {
+                sb.append(c >= slot * 0.9 ? '#' : c > 0 ? '+' : ' ');
+            }
+            return sb.append('|').toString();
+        }
+    }
+}
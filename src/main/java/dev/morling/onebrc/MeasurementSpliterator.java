@@ -0,0 +1,448 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Spliterator} over the lines of a memory-mapped measurements file, for writing the challenge as a plain
+ * Stream pipeline:
+ *
+ * <pre>
+ * try (Stream&lt;Row&gt; rows = MeasurementSpliterator.stream(Path.of("measurements.txt"), true)) {
+ *     System.out.println(rows.collect(MeasurementSpliterator.toStationStats()));
+ * }
+ * </pre>
+ * <p>
+ * {@code Files.lines()} creates a {@code String} per line and one more per split, and its parallel splitting has to
+ * find line ends in a buffered reader. Here {@link #trySplit()} halves the byte range of the mapping and moves the
+ * split point to the next line start, so both halves are balanced and a line is never cut. Rows are handed out as a
+ * reused flyweight {@link Row}: name location and bytes, plus the temperature as int tenths, without allocation.
+ * A row is only valid inside the action it is passed to; {@link Row#name()} copies the name out if it has to be kept.
+ * <p>
+ * {@link #toStationStats()} is the matching collector: an open addressing table keyed by the name bytes, with one
+ * table per parallel leaf and a merge in the combiner.
+ * <p>
+ * The stream owns the mapping and unmaps it when closed.
+ */
+public final class MeasurementSpliterator implements Spliterator<MeasurementSpliterator.Row> {
+
+    // Lines are read as little-endian words, whatever the platform's byte order.
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final int MIN_SPLIT_SIZE = 1 << 20;
+    private static final int AVERAGE_LINE_LENGTH = 14;
+    // Within this distance of the end, lines are parsed byte by byte so that no word read crosses the end.
+    private static final int TAIL = 128;
+
+    private final MemorySegment file;
+    private final long fileSize;
+    private final Row row;
+    // [position, end) covers whole lines: position is a line start, end a line start or the end of the file.
+    private long position;
+    private final long end;
+
+    private MeasurementSpliterator(MemorySegment file, long position, long end) {
+        this.file = file;
+        this.fileSize = file.byteSize();
+        this.row = new Row(file);
+        this.position = position;
+        this.end = end;
+    }
+
+    /** A spliterator over all lines of the given mapping. */
+    public static MeasurementSpliterator of(MemorySegment file) {
+        return new MeasurementSpliterator(file, 0, file.byteSize());
+    }
+
+    /** Maps the file and streams its rows; closing the stream unmaps it. */
+    public static Stream<Row> stream(Path path, boolean parallel) {
+        Arena arena = Arena.ofShared();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            return StreamSupport.stream(of(file), parallel).onClose(arena::close);
+        }
+        catch (IOException e) {
+            arena.close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ========================= Spliterator =========================
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Row> action) {
+        if (position >= end) {
+            return false;
+        }
+        position = parse(position);
+        action.accept(row);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Row> action) {
+        long p = position;
+        long limit = end;
+        while (p < limit) {
+            p = parse(p);
+            action.accept(row);
+        }
+        position = p;
+    }
+
+    @Override
+    public Spliterator<Row> trySplit() {
+        long remaining = end - position;
+        if (remaining < 2L * MIN_SPLIT_SIZE) {
+            return null;
+        }
+        long mid = nextLineStart(position + remaining / 2);
+        if (mid >= end) {
+            return null;
+        }
+        MeasurementSpliterator prefix = new MeasurementSpliterator(file, position, mid);
+        position = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return (end - position) / AVERAGE_LINE_LENGTH;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    private long nextLineStart(long from) {
+        while (from < fileSize && file.get(ValueLayout.JAVA_BYTE, from) != '\n') {
+            from++;
+        }
+        return Math.min(fileSize, from + 1);
+    }
+
+    // ========================= Parsing =========================
+
+    /** Parses the line at {@code start} into {@link #row}, returning the start of the next line. */
+    private long parse(long start) {
+        if (start + TAIL > fileSize) {
+            return parseTail(start);
+        }
+        long word0 = file.get(WORD, start);
+        long mask0 = findDelimiter(word0);
+        long word1 = 0;
+        int length;
+        if (mask0 != 0) {
+            length = Long.numberOfTrailingZeros(mask0) >>> 3;
+            word0 &= lowBytes(length);
+        }
+        else {
+            word1 = file.get(WORD, start + 8);
+            long mask1 = findDelimiter(word1);
+            if (mask1 != 0) {
+                length = 8 + (Long.numberOfTrailingZeros(mask1) >>> 3);
+                word1 &= lowBytes(length - 8);
+            }
+            else {
+                long p = start + 16;
+                long mask;
+                while ((mask = findDelimiter(file.get(WORD, p))) == 0) {
+                    p += 8;
+                }
+                length = (int) (p - start) + (Long.numberOfTrailingZeros(mask) >>> 3);
+            }
+        }
+
+        long numberStart = start + length + 1;
+        long numberWord = file.get(WORD, numberStart);
+        int decimalSepPos = Long.numberOfTrailingZeros(~numberWord & 0x10101000L);
+        row.set(start, length, word0, word1, (int) convertIntoNumber(decimalSepPos, numberWord));
+        return numberStart + (decimalSepPos >>> 3) + 3;
+    }
+
+    private long parseTail(long start) {
+        long p = start;
+        long word0 = 0;
+        long word1 = 0;
+        byte b;
+        while ((b = file.get(ValueLayout.JAVA_BYTE, p)) != ';') {
+            int i = (int) (p - start);
+            if (i < 8) {
+                word0 |= (b & 0xFFL) << (i << 3);
+            }
+            else if (i < 16) {
+                word1 |= (b & 0xFFL) << ((i - 8) << 3);
+            }
+            p++;
+        }
+        int length = (int) (p - start);
+        p++;
+        boolean negative = file.get(ValueLayout.JAVA_BYTE, p) == '-';
+        if (negative) {
+            p++;
+        }
+        int value = 0;
+        while (p < fileSize && (b = file.get(ValueLayout.JAVA_BYTE, p)) != '\n') {
+            if (b != '.') {
+                value = value * 10 + (b - '0');
+            }
+            p++;
+        }
+        row.set(start, length, word0, word1, negative ? -value : value);
+        return p + 1;
+    }
+
+    private static long lowBytes(int count) {
+        return (1L << (count << 3)) - 1;
+    }
+
+    private static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        return (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+    }
+
+    // Branchless conversion of the ASCII number, by Quan Anh Mai.
+    private static long convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        return (absValue ^ signed) - signed;
+    }
+
+    // ========================= Row =========================
+
+    /**
+     * One line of the file: the station name in place, its first 16 bytes as two zero-padded little-endian words
+     * (enough to identify most names without touching the file again), and the temperature in tenths of a degree.
+     * The same instance is reused for every row of a spliterator.
+     */
+    public static final class Row {
+        private final MemorySegment file;
+        private long nameOffset;
+        private int nameLength;
+        private long word0;
+        private long word1;
+        private int tenths;
+
+        private Row(MemorySegment file) {
+            this.file = file;
+        }
+
+        private void set(long nameOffset, int nameLength, long word0, long word1, int tenths) {
+            this.nameOffset = nameOffset;
+            this.nameLength = nameLength;
+            this.word0 = word0;
+            this.word1 = word1;
+            this.tenths = tenths;
+        }
+
+        /** Offset of the name in the mapping, e.g. for {@link ByteKeyStatsMap#add(MemorySegment, long, int, int)}. */
+        public long nameOffset() {
+            return nameOffset;
+        }
+
+        public int nameLength() {
+            return nameLength;
+        }
+
+        public long word0() {
+            return word0;
+        }
+
+        public long word1() {
+            return word1;
+        }
+
+        public int tenths() {
+            return tenths;
+        }
+
+        public double temperature() {
+            return tenths / 10.0;
+        }
+
+        /** A hash of the name; names that differ only after their 16th byte collide. */
+        public long nameHash() {
+            long hash = (word0 ^ Long.rotateLeft(word1, 29) ^ nameLength) * 0x9E3779B97F4A7C15L;
+            return hash ^ (hash >>> 31);
+        }
+
+        public boolean nameEquals(byte[] name) {
+            if (name.length != nameLength) {
+                return false;
+            }
+            return MemorySegment.mismatch(file, nameOffset, nameOffset + nameLength, MemorySegment.ofArray(name), 0, nameLength) == -1;
+        }
+
+        public byte[] nameBytes() {
+            return file.asSlice(nameOffset, nameLength).toArray(ValueLayout.JAVA_BYTE);
+        }
+
+        public String name() {
+            return new String(nameBytes(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return name() + ";" + temperature();
+        }
+    }
+
+    // ========================= Collector =========================
+
+    /** Min, max, sum and count of a station, in tenths of a degree; prints as {@code min/mean/max}. */
+    public record StationStats(int min, int max, long sum, long count) {
+
+        @Override
+        public String toString() {
+            return round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+    }
+
+    /** Collects rows into their per-station statistics, sorted by name. */
+    public static Collector<Row, ?, SortedMap<String, StationStats>> toStationStats() {
+        return Collector.of(StationTable::new, StationTable::add, StationTable::merge, StationTable::toMap,
+                Collector.Characteristics.UNORDERED);
+    }
+
+    private static final class StationTable {
+        private static final int INITIAL_BITS = 15;
+
+        // Grows to twice the size when half full, so that the probe sequences stay short and always end.
+        private int bits = INITIAL_BITS;
+        private Entry[] entries = new Entry[1 << INITIAL_BITS];
+        private int size;
+
+        private static final class Entry {
+            final byte[] name;
+            final long hash;
+            final long word0;
+            final long word1;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            long sum;
+            long count;
+
+            Entry(byte[] name, long hash, long word0, long word1) {
+                this.name = name;
+                this.hash = hash;
+                this.word0 = word0;
+                this.word1 = word1;
+            }
+        }
+
+        void add(Row row) {
+            long hash = row.nameHash();
+            int mask = entries.length - 1;
+            int index = (int) (hash >>> (64 - bits));
+            Entry entry;
+            while ((entry = entries[index]) != null) {
+                if (entry.word0 == row.word0 && entry.word1 == row.word1 && entry.name.length == row.nameLength
+                        && (row.nameLength <= 16 || row.nameEquals(entry.name))) {
+                    break;
+                }
+                index = (index + 1) & mask;
+            }
+            if (entry == null) {
+                entry = entries[index] = new Entry(row.nameBytes(), hash, row.word0, row.word1);
+                grow();
+            }
+            entry.min = Math.min(entry.min, row.tenths);
+            entry.max = Math.max(entry.max, row.tenths);
+            entry.sum += row.tenths;
+            entry.count++;
+        }
+
+        StationTable merge(StationTable other) {
+            for (Entry o : other.entries) {
+                if (o == null) {
+                    continue;
+                }
+                int mask = entries.length - 1;
+                int index = (int) (o.hash >>> (64 - bits));
+                Entry entry;
+                while ((entry = entries[index]) != null && !Arrays.equals(entry.name, o.name)) {
+                    index = (index + 1) & mask;
+                }
+                if (entry == null) {
+                    entries[index] = o;
+                    grow();
+                    continue;
+                }
+                entry.min = Math.min(entry.min, o.min);
+                entry.max = Math.max(entry.max, o.max);
+                entry.sum += o.sum;
+                entry.count += o.count;
+            }
+            return this;
+        }
+
+        // Counts a new entry, and rehashes into a table of twice the size once half of the slots are taken.
+        private void grow() {
+            if (++size <= entries.length >> 1) {
+                return;
+            }
+            Entry[] old = entries;
+            bits++;
+            entries = new Entry[1 << bits];
+            int mask = entries.length - 1;
+            for (Entry e : old) {
+                if (e != null) {
+                    int index = (int) (e.hash >>> (64 - bits));
+                    while (entries[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    entries[index] = e;
+                }
+            }
+        }
+
+        SortedMap<String, StationStats> toMap() {
+            TreeMap<String, StationStats> result = new TreeMap<>();
+            for (Entry e : entries) {
+                if (e != null) {
+                    result.put(new String(e.name, StandardCharsets.UTF_8), new StationStats(e.min, e.max, e.sum, e.count));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Evicts a file from the page cache, or reports how much of it is cached, without root privileges: eviction uses
+ * {@code posix_fadvise(POSIX_FADV_DONTNEED)}, the residency check maps the file and asks {@code mincore}. Both
+ * through {@link IoHints}.
+ * <p>
+ * Only clean pages can be dropped; for a file that was just written, its dirty pages are flushed first
+ * ({@link FileChannel#force(boolean)}). Pages that are mapped by another running process stay resident as well.
+ * <p>
+ * Usage: {@code page_cache.sh evict|status <file>}. {@code evict} fails (exit code 1) if more than
+ * {@link #MAX_RESIDENT_AFTER_EVICT} of the file is still cached afterwards.
+ */
+public class PageCache {
+
+    private static final double MAX_RESIDENT_AFTER_EVICT = 0.01;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !(args[0].equals("evict") || args[0].equals("status"))) {
+            System.err.println("Usage: PageCache evict|status <file>");
+            System.exit(2);
+        }
+        // Resolve symbolic links such as measurements.txt, so that the report names the real file.
+        Path file = Path.of(args[1]).toRealPath();
+
+        if (args[0].equals("evict")) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+            catch (IOException e) {
+                // Not writable, so nothing of ours can be dirty.
+            }
+            if (!IoHints.fadvise(file, 0, 0, IoHints.POSIX_FADV_DONTNEED)) {
+                System.err.println("posix_fadvise is not available, cannot evict " + file);
+                System.exit(1);
+            }
+        }
+
+        double resident = residentFraction(file);
+        if (resident < 0) {
+            System.err.println("mincore is not available, cannot verify the page cache state of " + file);
+            System.exit(args[0].equals("evict") ? 0 : 1);
+        }
+        System.err.printf("%s: %.1f%% in page cache%n", file, resident * 100);
+        if (args[0].equals("evict") && resident > MAX_RESIDENT_AFTER_EVICT) {
+            System.err.println("Eviction incomplete, is the file mapped by another process?");
+            System.exit(1);
+        }
+    }
+
+    /** Fraction of the file's pages that are in the page cache, or -1 if unknown. */
+    public static double residentFraction(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ);
+                Arena arena = Arena.ofConfined()) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            long address = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+            long resident = IoHints.residentPages(address, size);
+            return resident < 0 ? -1 : (double) resident / ((size + IoHints.PAGE_SIZE - 1) / IoHints.PAGE_SIZE);
+        }
+    }
+}
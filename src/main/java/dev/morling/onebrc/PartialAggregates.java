@@ -0,0 +1,506 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import dev.morling.onebrc.MeasurementSpliterator.StationStats;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The binary format for partial aggregates, to cache, checkpoint or merge per-station results across threads,
+ * processes or runs, with a zero-copy reader over a {@link MemorySegment}.
+ * <p>
+ * A blob is little-endian and starts with a 32-byte header:
+ *
+ * <pre>
+ *  0  int   magic "1BPA"
+ *  4  short version, {@value #VERSION}
+ *  6  short flags, {@link #FRONT_CODED}
+ *  8  int   number of stations n
+ * 12  int   size of the name block in bytes
+ * 16  long  start of the aggregated byte range of the file, or -1
+ * 24  long  end of that range, or -1
+ * </pre>
+ *
+ * followed by the columns {@code long sum[n]}, {@code long count[n]}, {@code int min[n]}, {@code int max[n]}, min, max
+ * and sum in tenths of a degree, and then the name block, padded to a multiple of 8 bytes. Stations are sorted by the
+ * unsigned bytes of their UTF-8 names. The name block is either {@code int offset[n + 1]} into the name bytes that
+ * follow, or, with {@link #FRONT_CODED}, each name as an {@code unsigned short} length of the prefix it shares with
+ * the previous name, an {@code unsigned short} length of the rest and the rest's bytes. Sorted names share prefixes,
+ * which makes the block of the 41,343 names in {@code data/weather_stations.csv} 31% smaller, at the price of decoding
+ * the names once on first access.
+ * <p>
+ * Columns and plain names are read in place. {@link #merge} of two blobs with the same stations, the usual case for
+ * threads or processes over the same data, compares the name blocks and combines the columns with the Vector API;
+ * otherwise it merges the sorted names.
+ */
+public final class PartialAggregates {
+
+    public static final int MAGIC = 0x41504231; // "1BPA" in little-endian
+    public static final short VERSION = 1;
+    /** Flag for front-coded station names. */
+    public static final short FRONT_CODED = 1;
+    public static final long NO_RANGE = -1;
+    static final int HEADER_SIZE = 32;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    private final MemorySegment blob;
+    private final int count;
+    private final short flags;
+    private final long sumBase;
+    private final long countBase;
+    private final long minBase;
+    private final long maxBase;
+    // Plain name block: offsets then bytes. The blob's own for plain names, decoded on demand for front-coded ones.
+    private MemorySegment names;
+
+    private PartialAggregates(MemorySegment blob) {
+        if (blob.byteSize() < HEADER_SIZE || blob.get(INT, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a partial aggregates blob");
+        }
+        short version = blob.get(SHORT, 4);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported partial aggregates version " + version);
+        }
+        this.flags = blob.get(SHORT, 6);
+        this.count = blob.get(INT, 8);
+        long size = totalSize(count, blob.get(INT, 12));
+        if (count < 0 || blob.byteSize() < size) {
+            throw new IllegalArgumentException("Truncated partial aggregates blob: " + blob.byteSize() + " of " + size + " bytes");
+        }
+        this.blob = blob.asSlice(0, size);
+        this.sumBase = HEADER_SIZE;
+        this.countBase = sumBase + 8L * count;
+        this.minBase = countBase + 8L * count;
+        this.maxBase = minBase + 4L * count;
+        if ((flags & FRONT_CODED) == 0) {
+            this.names = this.blob.asSlice(maxBase + 4L * count, blob.get(INT, 12));
+        }
+    }
+
+    /** A reader over a blob; the blob is not copied. */
+    public static PartialAggregates of(MemorySegment blob) {
+        return new PartialAggregates(blob);
+    }
+
+    private static long totalSize(int count, int nameBlockSize) {
+        return HEADER_SIZE + 24L * count + align(nameBlockSize);
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    // ========================= Reading =========================
+
+    public MemorySegment segment() {
+        return blob;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean frontCoded() {
+        return (flags & FRONT_CODED) != 0;
+    }
+
+    public long rangeStart() {
+        return blob.get(LONG, 16);
+    }
+
+    public long rangeEnd() {
+        return blob.get(LONG, 24);
+    }
+
+    public int min(int i) {
+        return blob.get(INT, minBase + 4L * i);
+    }
+
+    public int max(int i) {
+        return blob.get(INT, maxBase + 4L * i);
+    }
+
+    public long sum(int i) {
+        return blob.get(LONG, sumBase + 8L * i);
+    }
+
+    public long count(int i) {
+        return blob.get(LONG, countBase + 8L * i);
+    }
+
+    /** The UTF-8 bytes of the i-th name, in place for plain names. */
+    public MemorySegment name(int i) {
+        MemorySegment names = plainNames();
+        long bytes = 4L * (count + 1);
+        int start = names.get(INT, 4L * i);
+        return names.asSlice(bytes + start, names.get(INT, 4L * (i + 1)) - start);
+    }
+
+    public String nameString(int i) {
+        return new String(name(i).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    public StationStats stats(int i) {
+        return new StationStats(min(i), max(i), sum(i), count(i));
+    }
+
+    /** The stations by name, in {@code String} order as the challenge prints them. */
+    public SortedMap<String, StationStats> toStationStats() {
+        TreeMap<String, StationStats> result = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            result.put(nameString(i), stats(i));
+        }
+        return result;
+    }
+
+    private MemorySegment plainNames() {
+        if (names == null) {
+            names = decodeFrontCoded();
+        }
+        return names;
+    }
+
+    private MemorySegment decodeFrontCoded() {
+        MemorySegment coded = blob.asSlice(maxBase + 4L * count, blob.get(INT, 12));
+        byte[][] decoded = new byte[count][];
+        byte[] previous = new byte[0];
+        long p = 0;
+        for (int i = 0; i < count; i++) {
+            int shared = Short.toUnsignedInt(coded.get(SHORT, p));
+            int rest = Short.toUnsignedInt(coded.get(SHORT, p + 2));
+            byte[] name = Arrays.copyOf(previous, shared + rest);
+            MemorySegment.copy(coded, ValueLayout.JAVA_BYTE, p + 4, name, shared, rest);
+            p += 4 + rest;
+            decoded[i] = previous = name;
+        }
+        return plainNameBlock(decoded, MemorySegment.ofArray(new byte[plainNameBlockSize(decoded)]));
+    }
+
+    // ========================= Writing =========================
+
+    /** Collects stations in any order and writes them as a blob. */
+    public static final class Builder {
+        private final List<byte[]> names = new ArrayList<>();
+        private final List<long[]> values = new ArrayList<>();
+        private long rangeStart = NO_RANGE;
+        private long rangeEnd = NO_RANGE;
+
+        public Builder range(long start, long end) {
+            this.rangeStart = start;
+            this.rangeEnd = end;
+            return this;
+        }
+
+        /** Adds a station, which must not have been added before. */
+        public Builder add(byte[] name, int min, int max, long sum, long count) {
+            names.add(name);
+            values.add(new long[]{ min, max, sum, count });
+            return this;
+        }
+
+        public Builder add(String name, StationStats stats) {
+            return add(name.getBytes(StandardCharsets.UTF_8), stats.min(), stats.max(), stats.sum(), stats.count());
+        }
+
+        public Builder addAll(Map<String, StationStats> stations) {
+            stations.forEach(this::add);
+            return this;
+        }
+
+        public PartialAggregates build(Arena arena, boolean frontCoded) {
+            Integer[] order = new Integer[names.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(names::get, Arrays::compareUnsigned));
+            byte[][] sortedNames = new byte[order.length][];
+            for (int i = 0; i < order.length; i++) {
+                sortedNames[i] = names.get(order[i]);
+                if (i > 0 && Arrays.equals(sortedNames[i - 1], sortedNames[i])) {
+                    throw new IllegalArgumentException("Duplicate station " + new String(sortedNames[i], StandardCharsets.UTF_8));
+                }
+            }
+            PartialAggregates result = allocate(arena, sortedNames, frontCoded, rangeStart, rangeEnd);
+            for (int i = 0; i < order.length; i++) {
+                long[] v = values.get(order[i]);
+                result.set(i, (int) v[0], (int) v[1], v[2], v[3]);
+            }
+            return result;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** A blob of per-station statistics, e.g. from {@link MeasurementSpliterator#toStationStats()}. */
+    public static PartialAggregates of(Map<String, StationStats> stations, long rangeStart, long rangeEnd, Arena arena) {
+        return builder().range(rangeStart, rangeEnd).addAll(stations).build(arena, false);
+    }
+
+    /** Allocates a blob for sorted names, with zeroed columns. */
+    private static PartialAggregates allocate(Arena arena, byte[][] sortedNames, boolean frontCoded, long rangeStart, long rangeEnd) {
+        int n = sortedNames.length;
+        int nameBlockSize = frontCoded ? frontCodedNameBlockSize(sortedNames) : plainNameBlockSize(sortedNames);
+        MemorySegment blob = arena.allocate(totalSize(n, nameBlockSize), 8);
+        blob.set(INT, 0, MAGIC);
+        blob.set(SHORT, 4, VERSION);
+        blob.set(SHORT, 6, frontCoded ? FRONT_CODED : 0);
+        blob.set(INT, 8, n);
+        blob.set(INT, 12, nameBlockSize);
+        blob.set(LONG, 16, rangeStart);
+        blob.set(LONG, 24, rangeEnd);
+        MemorySegment nameBlock = blob.asSlice(HEADER_SIZE + 24L * n, nameBlockSize);
+        if (frontCoded) {
+            frontCodedNameBlock(sortedNames, nameBlock);
+        }
+        else {
+            plainNameBlock(sortedNames, nameBlock);
+        }
+        return new PartialAggregates(blob);
+    }
+
+    private void set(int i, int min, int max, long sum, long count) {
+        blob.set(INT, minBase + 4L * i, min);
+        blob.set(INT, maxBase + 4L * i, max);
+        blob.set(LONG, sumBase + 8L * i, sum);
+        blob.set(LONG, countBase + 8L * i, count);
+    }
+
+    private static int plainNameBlockSize(byte[][] names) {
+        long size = 4L * (names.length + 1);
+        for (byte[] name : names) {
+            size += name.length;
+        }
+        return Math.toIntExact(size);
+    }
+
+    private static MemorySegment plainNameBlock(byte[][] names, MemorySegment block) {
+        long bytes = 4L * (names.length + 1);
+        int offset = 0;
+        for (int i = 0; i < names.length; i++) {
+            block.set(INT, 4L * i, offset);
+            MemorySegment.copy(names[i], 0, block, ValueLayout.JAVA_BYTE, bytes + offset, names[i].length);
+            offset += names[i].length;
+        }
+        block.set(INT, 4L * names.length, offset);
+        return block;
+    }
+
+    private static int frontCodedNameBlockSize(byte[][] names) {
+        long size = 0;
+        for (int i = 0; i < names.length; i++) {
+            size += 4 + names[i].length - sharedPrefix(names, i);
+        }
+        return Math.toIntExact(size);
+    }
+
+    private static void frontCodedNameBlock(byte[][] names, MemorySegment block) {
+        long p = 0;
+        for (int i = 0; i < names.length; i++) {
+            int shared = sharedPrefix(names, i);
+            int rest = names[i].length - shared;
+            block.set(SHORT, p, (short) shared);
+            block.set(SHORT, p + 2, (short) rest);
+            MemorySegment.copy(names[i], shared, block, ValueLayout.JAVA_BYTE, p + 4, rest);
+            p += 4 + rest;
+        }
+    }
+
+    private static int sharedPrefix(byte[][] names, int i) {
+        if (names[i].length > 0xFFFF) {
+            throw new IllegalArgumentException("Station name longer than 65535 bytes");
+        }
+        if (i == 0) {
+            return 0;
+        }
+        int mismatch = Arrays.mismatch(names[i - 1], names[i]);
+        return mismatch < 0 ? names[i].length : mismatch;
+    }
+
+    // ========================= Merging =========================
+
+    /**
+     * Merges two blobs into a new one with plain names. The range is the union of both if they are adjacent, otherwise
+     * {@link #NO_RANGE}.
+     */
+    public static PartialAggregates merge(PartialAggregates a, PartialAggregates b, Arena arena) {
+        long rangeStart = NO_RANGE;
+        long rangeEnd = NO_RANGE;
+        if (a.rangeStart() != NO_RANGE && b.rangeStart() != NO_RANGE) {
+            if (a.rangeEnd() == b.rangeStart()) {
+                rangeStart = a.rangeStart();
+                rangeEnd = b.rangeEnd();
+            }
+            else if (b.rangeEnd() == a.rangeStart()) {
+                rangeStart = b.rangeStart();
+                rangeEnd = a.rangeEnd();
+            }
+        }
+        MemorySegment aNames = a.plainNames();
+        MemorySegment bNames = b.plainNames();
+        if (a.count == b.count && aNames.byteSize() == bNames.byteSize() && aNames.mismatch(bNames) == -1) {
+            MemorySegment blob = arena.allocate(totalSize(a.count, (int) aNames.byteSize()), 8);
+            blob.copyFrom(a.blob.asSlice(0, HEADER_SIZE + 24L * a.count));
+            MemorySegment.copy(aNames, 0, blob, HEADER_SIZE + 24L * a.count, aNames.byteSize());
+            blob.set(SHORT, 6, (short) 0);
+            blob.set(INT, 12, (int) aNames.byteSize());
+            blob.set(LONG, 16, rangeStart);
+            blob.set(LONG, 24, rangeEnd);
+            PartialAggregates result = new PartialAggregates(blob);
+            mergeColumns(a, b, result);
+            return result;
+        }
+        return mergeSorted(a, b, arena, rangeStart, rangeEnd);
+    }
+
+    /** Element-wise merge of the columns of blobs with the same stations. */
+    private static void mergeColumns(PartialAggregates a, PartialAggregates b, PartialAggregates into) {
+        int n = a.count;
+        MemorySegment x = a.blob, y = b.blob, z = into.blob;
+        int i = 0;
+        for (int bound = LONGS.loopBound(n); i < bound; i += LONGS.length()) {
+            long sums = 8L * i;
+            LongVector.fromMemorySegment(LONGS, x, a.sumBase + sums, ByteOrder.LITTLE_ENDIAN)
+                    .add(LongVector.fromMemorySegment(LONGS, y, b.sumBase + sums, ByteOrder.LITTLE_ENDIAN))
+                    .intoMemorySegment(z, into.sumBase + sums, ByteOrder.LITTLE_ENDIAN);
+            LongVector.fromMemorySegment(LONGS, x, a.countBase + sums, ByteOrder.LITTLE_ENDIAN)
+                    .add(LongVector.fromMemorySegment(LONGS, y, b.countBase + sums, ByteOrder.LITTLE_ENDIAN))
+                    .intoMemorySegment(z, into.countBase + sums, ByteOrder.LITTLE_ENDIAN);
+        }
+        for (; i < n; i++) {
+            z.set(LONG, into.sumBase + 8L * i, a.sum(i) + b.sum(i));
+            z.set(LONG, into.countBase + 8L * i, a.count(i) + b.count(i));
+        }
+        i = 0;
+        for (int bound = INTS.loopBound(n); i < bound; i += INTS.length()) {
+            long ints = 4L * i;
+            IntVector.fromMemorySegment(INTS, x, a.minBase + ints, ByteOrder.LITTLE_ENDIAN)
+                    .min(IntVector.fromMemorySegment(INTS, y, b.minBase + ints, ByteOrder.LITTLE_ENDIAN))
+                    .intoMemorySegment(z, into.minBase + ints, ByteOrder.LITTLE_ENDIAN);
+            IntVector.fromMemorySegment(INTS, x, a.maxBase + ints, ByteOrder.LITTLE_ENDIAN)
+                    .max(IntVector.fromMemorySegment(INTS, y, b.maxBase + ints, ByteOrder.LITTLE_ENDIAN))
+                    .intoMemorySegment(z, into.maxBase + ints, ByteOrder.LITTLE_ENDIAN);
+        }
+        for (; i < n; i++) {
+            z.set(INT, into.minBase + 4L * i, Math.min(a.min(i), b.min(i)));
+            z.set(INT, into.maxBase + 4L * i, Math.max(a.max(i), b.max(i)));
+        }
+    }
+
+    /** Merge of the sorted names, for blobs with different stations. */
+    private static PartialAggregates mergeSorted(PartialAggregates a, PartialAggregates b, Arena arena, long rangeStart, long rangeEnd) {
+        List<byte[]> names = new ArrayList<>(Math.max(a.count, b.count));
+        // Per output station, the index in a and in b, or -1.
+        int[] fromA = new int[a.count + b.count];
+        int[] fromB = new int[a.count + b.count];
+        int i = 0, j = 0;
+        while (i < a.count || j < b.count) {
+            int c;
+            if (i == a.count) {
+                c = 1;
+            }
+            else if (j == b.count) {
+                c = -1;
+            }
+            else {
+                MemorySegment x = a.name(i), y = b.name(j);
+                long mismatch = x.mismatch(y);
+                c = mismatch == -1 ? 0
+                        : mismatch == x.byteSize() ? -1
+                                : mismatch == y.byteSize() ? 1
+                                        : Byte.compareUnsigned(x.get(ValueLayout.JAVA_BYTE, mismatch), y.get(ValueLayout.JAVA_BYTE, mismatch));
+            }
+            int k = names.size();
+            fromA[k] = c <= 0 ? i : -1;
+            fromB[k] = c >= 0 ? j : -1;
+            names.add((c <= 0 ? a.name(i) : b.name(j)).toArray(ValueLayout.JAVA_BYTE));
+            if (c <= 0) {
+                i++;
+            }
+            if (c >= 0) {
+                j++;
+            }
+        }
+        PartialAggregates result = allocate(arena, names.toArray(new byte[0][]), false, rangeStart, rangeEnd);
+        for (int k = 0; k < names.size(); k++) {
+            int x = fromA[k], y = fromB[k];
+            if (x >= 0 && y >= 0) {
+                result.set(k, Math.min(a.min(x), b.min(y)), Math.max(a.max(x), b.max(y)), a.sum(x) + b.sum(y), a.count(x) + b.count(y));
+            }
+            else if (x >= 0) {
+                result.set(k, a.min(x), a.max(x), a.sum(x), a.count(x));
+            }
+            else {
+                result.set(k, b.min(y), b.max(y), b.sum(y), b.count(y));
+            }
+        }
+        return result;
+    }
+
+    // ========================= Streams =========================
+
+    /** Writes the blob; its header carries its size, so blobs can follow each other on a stream. */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(blob.toArray(ValueLayout.JAVA_BYTE));
+        out.flush();
+    }
+
+    /** Reads one blob written by {@link #writeTo}. */
+    public static PartialAggregates readFrom(InputStream in, Arena arena) throws IOException {
+        byte[] header = in.readNBytes(HEADER_SIZE);
+        if (header.length < HEADER_SIZE) {
+            throw new EOFException("Partial aggregates header truncated after " + header.length + " bytes");
+        }
+        MemorySegment headerSegment = MemorySegment.ofArray(header);
+        if (headerSegment.get(INT, 0) != MAGIC) {
+            throw new IOException("Not a partial aggregates blob");
+        }
+        long size = totalSize(headerSegment.get(INT, 8), headerSegment.get(INT, 12));
+        byte[] rest = in.readNBytes(Math.toIntExact(size - HEADER_SIZE));
+        if (rest.length < size - HEADER_SIZE) {
+            throw new EOFException("Partial aggregates blob truncated at " + (HEADER_SIZE + rest.length) + " of " + size + " bytes");
+        }
+        MemorySegment blob = arena.allocate(size, 8);
+        blob.copyFrom(headerSegment);
+        MemorySegment.copy(rest, 0, blob, ValueLayout.JAVA_BYTE, HEADER_SIZE, rest.length);
+        return new PartialAggregates(blob);
+    }
+}
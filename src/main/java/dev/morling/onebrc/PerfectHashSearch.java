@@ -0,0 +1,584 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Parallel search for perfect hash functions over a fixed set of 64-bit keys, generalizing
+ * {@link PerfectHashSearch_hundredwatt}.
+ * <p>
+ * A function is a {@link Family} plus a seed and a number of slots; it is perfect if no two keys map to the same slot.
+ * Every search thread draws random seeds and tries them against the key set. A trial computes the slots of a block of
+ * {@link #BLOCK} keys in a loop without branches (which the JIT can unroll, and vectorize where the platform has 64-bit multiplies)
+ * and then checks the block against a stamp array, so most seeds are rejected after the first block or two instead of
+ * hashing all keys. The first thread that finds a seed cancels the others.
+ * <p>
+ * The result can be emitted as Java source (seed, slot count, index expression and the value table, to paste into an
+ * entry) or as a binary blob that is loaded back with {@link #readBlob(Path)}. {@link #sweep} runs the search for a
+ * range of load factors and reports the search time against the table size, so an entry can pick the smallest table
+ * that fits in L1.
+ * <p>
+ * Usage: {@code perfect_hash.sh <temperatures | station file> [family] [load factor | sweep] [output .java | .bin]}; a
+ * single search gives up after {@code -Dsearch.timeout} seconds (600), and is refused up front for station files that
+ * would need more than 10^12 attempts.
+ */
+public class PerfectHashSearch {
+
+    // Keys hashed per block before checking for collisions.
+    private static final int BLOCK = 32;
+
+    // Trials between checks for cancellation and the deadline.
+    private static final int CHECK_INTERVAL = 1 << 12;
+
+    private static final int L1_BYTES = 32 * 1024;
+    private static final int BLOB_MAGIC = 0x50484631; // "PHF1"
+
+    // Time limit for a single search from the command line, in seconds.
+    private static final long SEARCH_TIMEOUT_SECONDS = Long.getLong("search.timeout", 600);
+
+    // Station files beyond this many expected attempts are refused rather than searched: at some 10^8 trials per
+    // second and thread, a search would take hours or far longer.
+    private static final double MAX_LOG10_EXPECTED_ATTEMPTS = 12;
+
+    private static final double[] SWEEP_LOAD_FACTORS = { 0.95, 0.9, 0.8, 0.7, 0.6, 0.5, 0.4, 0.35, 0.3, 0.25, 0.2 };
+
+    public enum Family {
+        /** {@code ((key * seed) & Long.MAX_VALUE) % slots}, as used by {@link CalculateAverage_hundredwatt}. */
+        MULTIPLY_MOD {
+            @Override
+            int index(long key, long seed, int slots) {
+                return (int) (((key * seed) & Long.MAX_VALUE) % slots);
+            }
+
+            @Override
+            String javaExpression(String key, String seed, String slots) {
+                return "(int) (((" + key + " * " + seed + ") & Long.MAX_VALUE) % " + slots + ")";
+            }
+        },
+        /** High 32 bits of {@code key * seed}, reduced to the slot count with a multiply instead of a division. */
+        MULTIPLY_SHIFT {
+            @Override
+            int index(long key, long seed, int slots) {
+                return (int) ((((key * seed) >>> 32) * slots) >>> 32);
+            }
+
+            @Override
+            String javaExpression(String key, String seed, String slots) {
+                return "(int) ((((" + key + " * " + seed + ") >>> 32) * " + slots + ") >>> 32)";
+            }
+        },
+        /**
+         * Xor-shift of the key before and after the multiplication, so that bytes in the upper half of the key and the
+         * lower half of the product both affect the slot. Reduced like {@link #MULTIPLY_SHIFT}.
+         */
+        XOR_SHIFT {
+            @Override
+            int index(long key, long seed, int slots) {
+                long h = (key ^ (key >>> 29)) * seed;
+                return (int) ((((h ^ (h >>> 32)) & 0xFFFFFFFFL) * slots) >>> 32);
+            }
+
+            @Override
+            String javaExpression(String key, String seed, String slots) {
+                return "xorShiftIndex(" + key + ", " + seed + ", " + slots + ")";
+            }
+        };
+
+        abstract int index(long key, long seed, int slots);
+
+        abstract String javaExpression(String key, String seed, String slots);
+
+        /** Slot count for the given number of keys and load factor; {@link #MULTIPLY_MOD} uses a prime. */
+        public int slotsFor(int keys, double loadFactor) {
+            int slots = Math.max(keys, (int) Math.ceil(keys / loadFactor));
+            return this == MULTIPLY_MOD ? BigInteger.valueOf(slots - 1).nextProbablePrime().intValueExact() : slots;
+        }
+    }
+
+    /** A perfect hash function for a key set, with the effort it took to find it. */
+    public record Result(Family family, long seed, int slots, long attempts, long nanos) {
+
+        public int index(long key) {
+            return family.index(key, seed, slots);
+        }
+
+        /** Maps every slot to the position of its key in {@code keys}, or -1 for empty slots. */
+        public int[] slotTable(long[] keys) {
+            int[] table = new int[slots];
+            Arrays.fill(table, -1);
+            for (int i = 0; i < keys.length; i++) {
+                int slot = index(keys[i]);
+                if (table[slot] != -1) {
+                    throw new IllegalStateException("Collision at slot " + slot + " for seed " + seed);
+                }
+                table[slot] = i;
+            }
+            return table;
+        }
+    }
+
+    /** A loaded lookup table: keys and values by slot, empty slots have key 0 and value {@code missing}. */
+    public record Table(Result function, long[] keys, long[] values, long missing) {
+
+        public long get(long key) {
+            int slot = function.index(key);
+            return keys[slot] == key ? values[slot] : missing;
+        }
+    }
+
+    /** One point of a {@link #sweep}; {@code result} is null if no seed was found within the time budget. */
+    public record SweepPoint(double loadFactor, int slots, int tableBytes, Result result) {
+    }
+
+    // ========================= Search =========================
+
+    /**
+     * Searches for a seed for which {@code family} maps all keys to distinct slots.
+     *
+     * @return the function, or null if none was found before the timeout
+     */
+    public static Result search(long[] keys, Family family, int slots, int threads, Duration timeout)
+            throws InterruptedException {
+        if (keys.length > slots) {
+            throw new IllegalArgumentException(keys.length + " keys do not fit into " + slots + " slots");
+        }
+        long[] distinct = Arrays.stream(keys).distinct().toArray();
+        if (distinct.length != keys.length) {
+            throw new IllegalArgumentException("Key set contains " + (keys.length - distinct.length) + " duplicates");
+        }
+
+        long start = System.nanoTime();
+        long deadline = timeout == null ? Long.MAX_VALUE : start + timeout.toNanos();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong attempts = new AtomicLong();
+        AtomicReference<Long> found = new AtomicReference<>();
+        SplittableRandom random = new SplittableRandom(System.nanoTime());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom threadRandom = random.split();
+            executor.submit(() -> {
+                Long seed = new Trial(keys, family, slots).run(threadRandom, done, attempts, deadline);
+                if (seed != null && found.compareAndSet(null, seed)) {
+                    done.set(true);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+
+        Long seed = found.get();
+        return seed == null ? null : new Result(family, seed, slots, attempts.get(), System.nanoTime() - start);
+    }
+
+    private static final class Trial {
+        private final long[] keys;
+        private final Family family;
+        private final int slots;
+        private final int[] indexes = new int[BLOCK];
+        private final int[] stamps;
+        private int generation;
+
+        Trial(long[] keys, Family family, int slots) {
+            this.keys = keys;
+            this.family = family;
+            this.slots = slots;
+            this.stamps = new int[slots];
+        }
+
+        Long run(SplittableRandom random, AtomicBoolean done, AtomicLong attempts, long deadline) {
+            while (true) {
+                for (int i = 0; i < CHECK_INTERVAL; i++) {
+                    long seed = random.nextLong() | 1; // all families multiply by the seed
+                    if (isPerfect(seed)) {
+                        attempts.addAndGet(i + 1);
+                        return seed;
+                    }
+                }
+                attempts.addAndGet(CHECK_INTERVAL);
+                if (done.get() || System.nanoTime() > deadline) {
+                    return null;
+                }
+            }
+        }
+
+        boolean isPerfect(long seed) {
+            // Stamps instead of clearing a bit set per trial; a full reset only on wrap-around.
+            if (++generation == 0) {
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+            final int generation = this.generation;
+            for (int from = 0; from < keys.length; from += BLOCK) {
+                int length = Math.min(BLOCK, keys.length - from);
+                hashBlock(from, length, seed);
+                for (int i = 0; i < length; i++) {
+                    int slot = indexes[i];
+                    if (stamps[slot] == generation) {
+                        return false;
+                    }
+                    stamps[slot] = generation;
+                }
+            }
+            return true;
+        }
+
+        // One loop per family, so each is a straight loop over the block without a dispatch per key.
+        private void hashBlock(int from, int length, long seed) {
+            final long[] keys = this.keys;
+            final int[] indexes = this.indexes;
+            final long slots = this.slots;
+            switch (family) {
+                case MULTIPLY_MOD -> {
+                    for (int i = 0; i < length; i++) {
+                        indexes[i] = (int) (((keys[from + i] * seed) & Long.MAX_VALUE) % slots);
+                    }
+                }
+                case MULTIPLY_SHIFT -> {
+                    for (int i = 0; i < length; i++) {
+                        indexes[i] = (int) ((((keys[from + i] * seed) >>> 32) * slots) >>> 32);
+                    }
+                }
+                case XOR_SHIFT -> {
+                    for (int i = 0; i < length; i++) {
+                        long key = keys[from + i];
+                        long h = (key ^ (key >>> 29)) * seed;
+                        indexes[i] = (int) ((((h ^ (h >>> 32)) & 0xFFFFFFFFL) * slots) >>> 32);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the search for a range of load factors, each with its own time budget, from large to small tables.
+     * Stops after the first load factor for which no seed was found, as smaller tables only get harder.
+     */
+    public static List<SweepPoint> sweep(long[] keys, Family family, int valueBytes, int threads, Duration budget)
+            throws InterruptedException {
+        List<SweepPoint> points = new ArrayList<>();
+        for (int i = SWEEP_LOAD_FACTORS.length - 1; i >= 0; i--) {
+            double loadFactor = SWEEP_LOAD_FACTORS[i];
+            int slots = family.slotsFor(keys.length, loadFactor);
+            Result result = search(keys, family, slots, threads, budget);
+            points.add(new SweepPoint(loadFactor, slots, slots * valueBytes, result));
+            if (result == null) {
+                break;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Base-10 logarithm of the expected number of attempts if the family behaved like a random function, i.e. of the
+     * inverse probability that {@code keys} random slots out of {@code slots} are distinct. Grows with keys² / slots,
+     * so a single seed is only practical for small key sets; structured keys such as the temperatures can do better.
+     */
+    public static double log10ExpectedAttempts(int keys, int slots) {
+        double log = 0;
+        for (int i = 1; i < keys; i++) {
+            log -= Math.log1p(-(double) i / slots);
+        }
+        return log / Math.log(10);
+    }
+
+    // ========================= Output =========================
+
+    /** Number of bytes needed per value to hold all of {@code values}. */
+    public static int valueBytes(long[] values) {
+        long min = Arrays.stream(values).min().orElse(0), max = Arrays.stream(values).max().orElse(0);
+        if (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) {
+            return 1;
+        }
+        if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            return 2;
+        }
+        if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) {
+            return 4;
+        }
+        return 8;
+    }
+
+    /**
+     * Java source declaring the seed, slot count, index function and the key and value tables, using {@code prefix}
+     * for the names. Empty slots hold key 0 and value 0.
+     */
+    public static String toJavaSource(Result result, String prefix, long[] keys, long[] values) {
+        int[] table = result.slotTable(keys);
+        int valueBytes = valueBytes(values);
+        String valueType = switch (valueBytes) {
+            case 1 -> "byte";
+            case 2 -> "short";
+            case 4 -> "int";
+            default -> "long";
+        };
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("    // Generated by PerfectHashSearch: %d keys, %s, %d slots (load factor %.2f), %,d attempts%n",
+                keys.length, result.family(), result.slots(), (double) keys.length / result.slots(), result.attempts()));
+        sb.append("    private static final long ").append(prefix).append("_SEED = ").append(result.seed()).append("L;\n");
+        sb.append("    private static final int ").append(prefix).append("_SLOTS = ").append(result.slots()).append(";\n");
+        appendArray(sb, "long", prefix + "_KEYS", table, slot -> slot < 0 ? "0L" : keys[slot] + "L", 4);
+        appendArray(sb, valueType, prefix + "_VALUES", table, slot -> slot < 0 ? "0" : Long.toString(values[slot]), 16);
+        sb.append("\n    private static int ").append(camelCase(prefix)).append("Index(long key) {\n");
+        sb.append("        return ").append(result.family().javaExpression("key", prefix + "_SEED", prefix + "_SLOTS")).append(";\n");
+        sb.append("    }\n");
+        if (result.family() == Family.XOR_SHIFT) {
+            sb.append("""
+
+                        private static int xorShiftIndex(long key, long seed, int slots) {
+                            long h = (key ^ (key >>> 29)) * seed;
+                            return (int) ((((h ^ (h >>> 32)) & 0xFFFFFFFFL) * slots) >>> 32);
+                        }
+                    """);
+        }
+        return sb.toString();
+    }
+
+    private static String camelCase(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : prefix.toLowerCase().split("_")) {
+            sb.append(sb.isEmpty() ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+        }
+        return sb.toString();
+    }
+
+    private static void appendArray(StringBuilder sb, String type, String name, int[] table,
+                                    IntFunction<String> element, int perLine) {
+        sb.append("    private static final ").append(type).append("[] ").append(name).append(" = {");
+        for (int slot = 0; slot < table.length; slot++) {
+            sb.append(slot % perLine == 0 ? "\n            " : " ");
+            if (type.equals("byte") || type.equals("short")) {
+                sb.append('(').append(type).append(") ");
+            }
+            sb.append(element.apply(table[slot])).append(',');
+        }
+        sb.append("\n    };\n");
+    }
+
+    /**
+     * Writes the function and its table: magic, family ordinal, seed, slot count, value width, then key and value
+     * of every slot. Empty slots hold key 0 and value {@code missing}.
+     */
+    public static void writeBlob(Result result, long[] keys, long[] values, long missing, Path path) throws IOException {
+        int[] table = result.slotTable(keys);
+        int valueBytes = valueBytes(values);
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(BLOB_MAGIC);
+            out.writeByte(result.family().ordinal());
+            out.writeLong(result.seed());
+            out.writeInt(result.slots());
+            out.writeByte(valueBytes);
+            out.writeLong(missing);
+            for (int slot : table) {
+                out.writeLong(slot < 0 ? 0 : keys[slot]);
+                long value = slot < 0 ? missing : values[slot];
+                switch (valueBytes) {
+                    case 1 -> out.writeByte((int) value);
+                    case 2 -> out.writeShort((int) value);
+                    case 4 -> out.writeInt((int) value);
+                    default -> out.writeLong(value);
+                }
+            }
+        }
+    }
+
+    public static Table readBlob(Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != BLOB_MAGIC) {
+                throw new IOException("Not a perfect hash table: " + path);
+            }
+            Family family = Family.values()[in.readByte()];
+            long seed = in.readLong();
+            int slots = in.readInt();
+            int valueBytes = in.readByte();
+            long missing = in.readLong();
+            long[] keys = new long[slots];
+            long[] values = new long[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                keys[slot] = in.readLong();
+                values[slot] = switch (valueBytes) {
+                    case 1 -> in.readByte();
+                    case 2 -> in.readShort();
+                    case 4 -> in.readInt();
+                    default -> in.readLong();
+                };
+            }
+            return new Table(new Result(family, seed, slots, 0, 0), keys, values, missing);
+        }
+    }
+
+    // ========================= Key sets =========================
+
+    /**
+     * Encodes a temperature in tenths of a degree the way it appears in the file, as a little-endian word:
+     * e.g. -4.3 becomes {@code 0x332e342d}. These are the keys used by {@link CalculateAverage_hundredwatt}.
+     */
+    public static long temperatureWord(int temperature) {
+        byte[] text = String.format(Locale.ROOT, "%.1f", Math.abs(temperature) / 10.0).getBytes(StandardCharsets.US_ASCII);
+        long word = 0;
+        int shift = 0;
+        if (temperature < 0) {
+            word |= (long) '-';
+            shift += 8;
+        }
+        for (byte b : text) {
+            word |= ((long) b) << shift;
+            shift += 8;
+        }
+        return word;
+    }
+
+    /** The 1999 temperatures from -99.9 to 99.9, mapped to their value in tenths of a degree. */
+    public static Map<Long, Long> temperatureKeys() {
+        Map<Long, Long> keys = new LinkedHashMap<>();
+        for (int t = -999; t <= 999; t++) {
+            keys.put(temperatureWord(t), (long) t);
+        }
+        return keys;
+    }
+
+    /**
+     * The first 8 bytes of every station name in a file in the format of {@code data/weather_stations.csv}, as
+     * little-endian words padded with zeros, mapped to the ordinal of the name. Names sharing a prefix are
+     * reported and only the first one is kept, as a function over the prefix cannot tell them apart.
+     */
+    public static Map<Long, Long> namePrefixKeys(Path file) throws IOException {
+        Map<Long, Long> keys = new LinkedHashMap<>();
+        Map<Long, String> names = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int delimiter = line.indexOf(';');
+                String name = delimiter < 0 ? line : line.substring(0, delimiter);
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                long word = 0;
+                for (int i = 0; i < Math.min(8, bytes.length); i++) {
+                    word |= (bytes[i] & 0xFFL) << (8 * i);
+                }
+                String previous = names.putIfAbsent(word, name);
+                if (previous == null) {
+                    keys.put(word, (long) keys.size());
+                }
+                else if (!previous.equals(name)) {
+                    System.err.println("Skipping '" + name + "', same prefix as '" + previous + "'");
+                }
+            }
+        }
+        return keys;
+    }
+
+    // ========================= Command line =========================
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: PerfectHashSearch <temperatures | station file> [family] [load factor | sweep] [output .java | .bin]");
+            System.exit(1);
+        }
+        Map<Long, Long> keyMap = args[0].equals("temperatures") ? temperatureKeys() : namePrefixKeys(Path.of(args[0]));
+        Family family = args.length > 1 ? Family.valueOf(args[1].toUpperCase()) : Family.MULTIPLY_SHIFT;
+        String mode = args.length > 2 ? args[2] : "0.5";
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        long[] keys = keyMap.keySet().stream().mapToLong(Long::longValue).toArray();
+        long[] values = keyMap.values().stream().mapToLong(Long::longValue).toArray();
+        int valueBytes = valueBytes(values);
+        System.out.printf("%,d keys, %s, %d byte values, %d threads%n", keys.length, family, valueBytes, threads);
+
+        Result result;
+        if (mode.equals("sweep")) {
+            System.out.printf("%n%-8s %8s %10s %6s %10s %14s %10s%n", "Load", "Slots", "Bytes", "L1", "Expected", "Attempts", "Time");
+            Result smallest = null;
+            for (SweepPoint point : sweep(keys, family, valueBytes, threads, Duration.ofSeconds(30))) {
+                Result r = point.result();
+                System.out.printf("%-8.2f %8d %10d %6s %10s %14s %10s%n", point.loadFactor(), point.slots(), point.tableBytes(),
+                        point.tableBytes() <= L1_BYTES ? "yes" : "no",
+                        String.format("1e%.0f", log10ExpectedAttempts(keys.length, point.slots())),
+                        r == null ? "-" : String.format("%,d", r.attempts()),
+                        r == null ? "timeout" : String.format("%,d ms", r.nanos() / 1_000_000));
+                if (r != null) {
+                    smallest = r;
+                }
+            }
+            result = smallest;
+        }
+        else {
+            int slots = family.slotsFor(keys.length, Double.parseDouble(mode));
+            // The estimate assumes random keys, which name prefixes are; the temperatures are structured and do much
+            // better than it predicts.
+            double log10Attempts = log10ExpectedAttempts(keys.length, slots);
+            if (!args[0].equals("temperatures") && log10Attempts > MAX_LOG10_EXPECTED_ATTEMPTS) {
+                System.out.printf("A perfect hash function for %d slots needs about 1e%.0f attempts, which is not feasible; " +
+                        "use a smaller load factor, or 'sweep' to find the smallest feasible table%n", slots, log10Attempts);
+                System.exit(1);
+            }
+            System.out.printf("Searching for %d slots, for at most %d s%n", slots, SEARCH_TIMEOUT_SECONDS);
+            result = search(keys, family, slots, threads, Duration.ofSeconds(SEARCH_TIMEOUT_SECONDS));
+            if (result != null) {
+                System.out.printf("Found seed %d after %,d attempts in %,d ms%n", result.seed(), result.attempts(),
+                        result.nanos() / 1_000_000);
+            }
+            else {
+                System.out.printf("Gave up after %d s; raise -Dsearch.timeout or use a smaller load factor%n", SEARCH_TIMEOUT_SECONDS);
+            }
+        }
+        if (result == null) {
+            System.out.println("No perfect hash function found");
+            return;
+        }
+        System.out.printf("Smallest table: %d slots, %d bytes of values, seed %d%n", result.slots(),
+                result.slots() * valueBytes, result.seed());
+
+        if (args.length > 3) {
+            Path output = Path.of(args[3]);
+            if (output.toString().endsWith(".bin")) {
+                writeBlob(result, keys, values, 0, output);
+            }
+            else {
+                Files.writeString(output, toJavaSource(result, "PERFECT_HASH", keys, values));
+            }
+            System.out.println("Wrote " + output);
+        }
+    }
+}
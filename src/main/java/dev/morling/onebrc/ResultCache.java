@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Cache of results in front of an engine, for aggregating the same unchanged file repeatedly.
+ * <p>
+ * The key identifies the file by its device and inode, size and modification time, plus a CRC32C of its first and
+ * last {@link #EDGE_SIZE} bytes, so a file rewritten in place within the timestamp resolution is still noticed at
+ * its ends; and it includes the engine, its arguments, and the JVM options other than the cache's own, as engines
+ * are often configured with system properties. Computing it reads two megabytes, so a hit answers in milliseconds.
+ * On a miss the engine's {@code main} runs in this JVM with standard output captured, and the output is stored in the
+ * cache directory, named by a digest of the key; the entry repeats the key in its first line, which is checked on
+ * reads.
+ * <p>
+ * Entries are written to a temporary file and moved into place, so concurrent runs never see partial entries. A hit
+ * touches the entry's modification time; after storing, the least recently used entries are evicted until the cache
+ * holds at most {@code cache.maxEntries} entries and {@code cache.maxBytes} bytes.
+ * <p>
+ * Engines must be safe to run this way: return from {@code main} when done, print the result to
+ * {@code System.out}, and neither call {@code System.exit} nor re-launch the JVM as thomaswue's worker processes do.
+ * Usage: {@code cached_calculate_average.sh [engine] [engine arguments]}, with the engine a class name or a fork name
+ * such as {@code shipilev} (the default); {@code -Dcache.dir=<dir>} (default {@code ~/.cache/1brc}),
+ * {@code -Dcache.maxEntries=<n>} (default 64), {@code -Dcache.maxBytes=<n>} (default 64 MB).
+ */
+public final class ResultCache {
+
+    private static final String FILE = "./measurements.txt";
+    private static final int EDGE_SIZE = 1 << 20;
+    private static final String SUFFIX = ".result";
+
+    private final Path directory;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    public ResultCache(Path directory, int maxEntries, long maxBytes) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String engine = args.length > 0 ? args[0] : "shipilev";
+        String className = engine.contains(".") ? engine : "dev.morling.onebrc.CalculateAverage_" + engine;
+        String[] engineArgs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : new String[0];
+
+        ResultCache cache = new ResultCache(
+                Path.of(System.getProperty("cache.dir", System.getProperty("user.home") + "/.cache/1brc")),
+                Integer.getInteger("cache.maxEntries", 64),
+                Long.getLong("cache.maxBytes", 64L << 20));
+        Path file = Path.of(FILE);
+        String key = key(file, className, engineArgs);
+
+        byte[] result = cache.get(key);
+        if (result == null) {
+            result = run(className, engineArgs);
+            if (result.length > 0) {
+                cache.put(key, result);
+            }
+        }
+        System.out.write(result);
+        System.out.flush();
+    }
+
+    // ========================= Keys =========================
+
+    /**
+     * The key of a file's result for an engine: one line with the file's identity and content checks, the engine, its
+     * arguments and {@link #jvmOptions() the options of this JVM}.
+     */
+    public static String key(Path file, String engine, String... engineArgs) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        // The file key is "(dev=...,ino=...)" on Unix; without one, the path has to do.
+        Object identity = attributes.fileKey() != null ? attributes.fileKey() : file.toAbsolutePath().normalize();
+        long size = attributes.size();
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(EDGE_SIZE);
+            update(crc, channel, buffer, 0);
+            update(crc, channel, buffer, Math.max(EDGE_SIZE, size - EDGE_SIZE));
+        }
+        return String.join(" ", "file=" + identity, "size=" + size, "mtime=" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                "edges=" + Long.toHexString(crc.getValue()), "engine=" + engine, "args=" + Arrays.toString(engineArgs), "jvm=" + jvmOptions());
+    }
+
+    /**
+     * This JVM's input arguments without the cache's own options. Engines run in this JVM and many are configured
+     * with system properties, so these are part of the configuration a result was computed with.
+     */
+    static List<String> jvmOptions() {
+        return ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .filter(option -> !option.startsWith("-Dcache."))
+                .toList();
+    }
+
+    private static void update(CRC32C crc, FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        }
+        buffer.flip();
+        crc.update(buffer);
+    }
+
+    // ========================= Entries =========================
+
+    /** The cached result for a key, or {@code null}. */
+    public byte[] get(String key) throws IOException {
+        Path entry = entry(key);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(entry);
+        }
+        catch (java.nio.file.NoSuchFileException e) {
+            return null;
+        }
+        byte[] header = (key + "\n").getBytes(StandardCharsets.UTF_8);
+        if (content.length < header.length || !Arrays.equals(content, 0, header.length, header, 0, header.length)) {
+            // A digest collision or a foreign file; the next put replaces it.
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+            // Only affects eviction order, e.g. if the entry was evicted concurrently.
+        }
+        return Arrays.copyOfRange(content, header.length, content.length);
+    }
+
+    /** Stores a result and evicts the least recently used entries beyond the limits. */
+    public void put(String key, byte[] result) throws IOException {
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write((key + "\n").getBytes(StandardCharsets.UTF_8));
+                out.write(result);
+            }
+            Files.move(temporary, entry(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+        evict();
+    }
+
+    private void evict() throws IOException {
+        record Entry(Path path, long size, long lastUsed) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (var files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : files) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    entries.add(new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+                catch (IOException e) {
+                    // Evicted by a concurrent run.
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(Entry::lastUsed).reversed());
+        long bytes = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            bytes += entries.get(i).size();
+            if (i >= maxEntries || bytes > maxBytes) {
+                Files.deleteIfExists(entries.get(i).path());
+            }
+        }
+    }
+
+    private Path entry(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest, 0, 16) + SUFFIX);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ========================= Engines =========================
+
+    /** Runs an engine's {@code main} and returns what it printed to standard output. */
+    static byte[] run(String className, String[] args) throws Throwable {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        // Engines may close System.out when done.
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                captured.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                captured.write(b, off, len);
+            }
+        }, false, StandardCharsets.UTF_8));
+        try {
+            Class.forName(className).getMethod("main", String[].class).invoke(null, (Object) args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        return captured.toByteArray();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.StreamSupport;
+
+import dev.morling.onebrc.MeasurementSpliterator.StationStats;
+
+/**
+ * Runs one aggregation across several worker JVMs on this machine, e.g. one per socket, and merges their partial
+ * results.
+ * <p>
+ * The coordinator splits the file into byte ranges at line starts and launches a worker process per range, with the
+ * command line of its own JVM, as thomaswue's {@code spawnWorker} does, but with the coordinator's arguments replaced
+ * by the worker's. Each worker maps only its range, aggregates it with {@link MeasurementSpliterator} on its own
+ * threads, and sends its partial aggregate back: by default over its standard output, or with {@code --socket}
+ * over a loopback connection to the coordinator. The coordinator merges the partials as they arrive and checks that
+ * the ranges add up to the whole file.
+ * <p>
+ * A partial is a {@link PartialAggregates} blob, which carries the range it covers and nothing that depends on the
+ * machine it was computed on, so workers on other machines are possible later. For now, the coordinator starts all
+ * workers itself, and the socket only listens on the loopback interface.
+ * <p>
+ * Usage: {@code scale_out.sh [--processes <n>] [--threads <per process>] [--socket]}.
+ */
+public final class ScaleOutCoordinator {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--worker".equals(args[0])) {
+            worker(args);
+            return;
+        }
+        int processes = 2;
+        int threads = 0;
+        boolean socket = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--processes" -> processes = Integer.parseInt(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--socket" -> socket = true;
+                default -> {
+                    System.err.println("Usage: scale_out.sh [--processes <n>] [--threads <per process>] [--socket]");
+                    System.exit(1);
+                }
+            }
+        }
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / processes);
+        }
+        System.out.println(coordinate(Path.of(FILE), processes, threads, socket, args));
+    }
+
+    // ========================= Coordinator =========================
+
+    static SortedMap<String, StationStats> coordinate(Path file, int processes, int threads, boolean socket, String[] ownArgs)
+            throws IOException, InterruptedException {
+        long[] bounds = splitAtLines(file, processes);
+        // Loopback only: the server accepts exactly one connection from each worker started below.
+        ServerSocket server = socket ? new ServerSocket(0, processes, InetAddress.getLoopbackAddress()) : null;
+        List<Process> workers = new ArrayList<>();
+        try (Arena arena = Arena.ofShared()) {
+            for (int i = 0; i < processes; i++) {
+                List<String> workerArgs = new ArrayList<>(List.of("--worker", String.valueOf(bounds[i]), String.valueOf(bounds[i + 1]),
+                        String.valueOf(threads)));
+                if (server != null) {
+                    workerArgs.addAll(List.of("--connect", "localhost:" + server.getLocalPort()));
+                }
+                ProcessBuilder builder = new ProcessBuilder(workerCommand(ownArgs, workerArgs)).redirectError(ProcessBuilder.Redirect.INHERIT);
+                if (server != null) {
+                    builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                }
+                Process worker = builder.start();
+                workers.add(worker);
+                if (server != null) {
+                    // A worker that fails before connecting would leave accept() waiting forever; closing the server
+                    // ends all waits, and the exit code is reported below.
+                    worker.onExit().thenAccept(p -> {
+                        if (p.exitValue() != 0) {
+                            closeQuietly(server);
+                        }
+                    });
+                }
+            }
+
+            // Read all partials concurrently, so that no worker blocks on a full pipe.
+            PartialAggregates[] partials = new PartialAggregates[processes];
+            Thread[] readers = new Thread[processes];
+            IOException[] failure = new IOException[1];
+            for (int i = 0; i < processes; i++) {
+                int index = i;
+                readers[i] = new Thread(() -> {
+                    try {
+                        if (server != null) {
+                            try (Socket connection = server.accept()) {
+                                partials[index] = PartialAggregates.readFrom(connection.getInputStream(), arena);
+                            }
+                        }
+                        else {
+                            partials[index] = PartialAggregates.readFrom(workers.get(index).getInputStream(), arena);
+                        }
+                    }
+                    catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                });
+                readers[i].start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            for (Process worker : workers) {
+                int exitCode = worker.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker " + worker.pid() + " failed with exit code " + exitCode);
+                }
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            return merge(partials, bounds[processes], arena).toStationStats();
+        }
+        finally {
+            // Only workers left behind by a failure are still running here.
+            for (Process worker : workers) {
+                worker.destroyForcibly();
+            }
+            if (server != null) {
+                closeQuietly(server);
+            }
+        }
+    }
+
+    private static void closeQuietly(ServerSocket server) {
+        try {
+            server.close();
+        }
+        catch (IOException e) {
+            // Nothing to do, the coordinator is failing or done with it anyway.
+        }
+    }
+
+    /** Range boundaries: {@code processes + 1} offsets from 0 to the file size, all at line starts. */
+    static long[] splitAtLines(Path file, int parts) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = new long[parts + 1];
+            bounds[parts] = size;
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            for (int i = 1; i < parts; i++) {
+                long position = Math.max(bounds[i - 1], size / parts * i);
+                // Move forward to just after the next newline.
+                search: while (position < size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, position);
+                    for (int j = 0; j < read; j++) {
+                        if (buffer.get(j) == '\n') {
+                            position += j + 1;
+                            break search;
+                        }
+                    }
+                    position += Math.max(read, 0);
+                }
+                bounds[i] = Math.min(position, size);
+            }
+            return bounds;
+        }
+    }
+
+    /**
+     * The command line of this JVM with its program arguments replaced, as thomaswue's {@code spawnWorker} but without
+     * assuming the process was started by {@code main} alone. Falls back to the JVM's input arguments and class path
+     * where the platform does not report the process arguments.
+     */
+    private static List<String> workerCommand(String[] ownArgs, List<String> workerArgs) {
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        List<String> command = new ArrayList<>();
+        if (info.command().isPresent() && info.arguments().isPresent()) {
+            command.add(info.command().get());
+            String[] arguments = info.arguments().get();
+            command.addAll(Arrays.asList(arguments).subList(0, arguments.length - ownArgs.length));
+        }
+        else {
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.addAll(List.of("--class-path", System.getProperty("java.class.path"), ScaleOutCoordinator.class.getName()));
+        }
+        command.addAll(workerArgs);
+        return command;
+    }
+
+    private static PartialAggregates merge(PartialAggregates[] partials, long fileSize, Arena arena) {
+        Arrays.sort(partials, Comparator.comparingLong(PartialAggregates::rangeStart));
+        PartialAggregates result = null;
+        for (PartialAggregates partial : partials) {
+            long covered = result == null ? 0 : result.rangeEnd();
+            if (partial.rangeStart() != covered) {
+                throw new IllegalStateException("Partials do not cover bytes " + covered + " to " + partial.rangeStart());
+            }
+            result = result == null ? partial : PartialAggregates.merge(result, partial, arena);
+        }
+        if (result.rangeEnd() != fileSize) {
+            throw new IllegalStateException("Partials end at " + result.rangeEnd() + " of " + fileSize + " bytes");
+        }
+        return result;
+    }
+
+    // ========================= Worker =========================
+
+    private static void worker(String[] args) throws Exception {
+        long start = Long.parseLong(args[1]);
+        long end = Long.parseLong(args[2]);
+        int threads = Integer.parseInt(args[3]);
+        try (Arena arena = Arena.ofShared();
+                FileChannel channel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            MemorySegment range = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start, arena);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            SortedMap<String, StationStats> stations = pool.submit(() -> StreamSupport.stream(MeasurementSpliterator.of(range), threads > 1)
+                    .collect(MeasurementSpliterator.toStationStats())).get();
+            pool.shutdown();
+            PartialAggregates partial = PartialAggregates.of(stations, start, end, arena);
+
+            if (args.length > 5 && "--connect".equals(args[4])) {
+                String[] hostAndPort = args[5].split(":");
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+                    partial.writeTo(socket.getOutputStream());
+                }
+            }
+            else {
+                partial.writeTo(System.out);
+            }
+        }
+    }
+}
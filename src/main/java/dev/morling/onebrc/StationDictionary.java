@@ -0,0 +1,423 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent dictionary of station names, mapping each name to a dense integer id that stays the same across runs,
+ * so that engines can keep their statistics in flat arrays indexed by id.
+ * <p>
+ * The file is little-endian and mapped as a whole. After a header, it has sections indexed by id (the 64-bit name
+ * hash, the first two name words as in thomaswue's {@code firstNameWord}/{@code secondNameWord}, the name length and
+ * offset), the ids in {@code String} order of their names, a perfect hash over the name hashes with its slot to id
+ * table, and finally the UTF-8 names, padded so that word reads past the last name stay in the file. Looking a name up
+ * is one perfect hash evaluation and one compare, and results can be written in sorted order without sorting.
+ * <p>
+ * The perfect hash is hash-and-displace as in {@link CalculateAverage_perfecthash}, buckets of on average
+ * {@link #BUCKET_SIZE} names with one pilot each, but tuned for lookup latency rather than size: a single
+ * power-of-two table filled to at most {@link #LOAD_FACTOR} instead of partitions, the bucket taken from the low hash
+ * bits and the slot from the high bits of one multiplication. That leaves two dependent loads (displacement and id)
+ * and one multiplication per lookup, where the partitioned minimal one took four loads and two mixes, which made the
+ * engine slower than probing a hash table. Empty slots map to id 0, whose name then does not match.
+ * <p>
+ * Names not in the dictionary are added with {@link #append}, which keeps all existing ids, gives the new names the
+ * next ones and rebuilds the sorted order and the perfect hash. The file is replaced atomically.
+ * <p>
+ * Usage: {@code station_dictionary.sh build|append <dictionary> <file>...} with files in the format of
+ * {@code data/weather_stations.csv} or measurement files (the part of each line up to the first {@code ;} is the name),
+ * or {@code station_dictionary.sh info <dictionary>}.
+ */
+public final class StationDictionary {
+
+    private static final int MAGIC = 0x31434453; // "SDC1"
+    private static final int HEADER_SIZE = 32;
+
+    // Perfect hash construction: average number of names per bucket, names per slot and the number of
+    // pilot values tried for a single bucket.
+    private static final int BUCKET_SIZE = 4;
+    private static final double LOAD_FACTOR = 0.9;
+    private static final int MAX_PILOT = 1 << 20;
+
+    public static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final long PILOT_MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment file;
+    private final int count;
+    private final int slots;
+    private final int slotShift;
+    private final int buckets;
+    private final long[] hashes;
+    // First and second name word of each id, next to each other.
+    private final long[] words;
+    private final int[] lengths;
+    private final int[] nameOffsets;
+    private final int[] sortedIds;
+    private final int[] pilots;
+    // The pilots multiplied out, as used by lookups.
+    private final long[] displacements;
+    private final int[] slotIds;
+    private final long namesOffset;
+
+    private StationDictionary(MemorySegment file) {
+        this.file = file;
+        if (file.byteSize() < HEADER_SIZE || file.get(INT, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a station dictionary");
+        }
+        count = file.get(INT, 4);
+        slots = file.get(INT, 8);
+        buckets = file.get(INT, 12);
+        long offset = HEADER_SIZE;
+        hashes = file.asSlice(offset, count * 8L).toArray(LONG);
+        offset += count * 8L;
+        words = file.asSlice(offset, count * 16L).toArray(LONG);
+        offset += count * 16L;
+        lengths = file.asSlice(offset, count * 4L).toArray(INT);
+        offset += count * 4L;
+        nameOffsets = file.asSlice(offset, count * 4L).toArray(INT);
+        offset += count * 4L;
+        sortedIds = file.asSlice(offset, count * 4L).toArray(INT);
+        offset += count * 4L;
+        pilots = file.asSlice(offset, buckets * 4L).toArray(INT);
+        offset += buckets * 4L;
+        displacements = new long[buckets];
+        for (int b = 0; b < buckets; b++) {
+            displacements[b] = displacement(pilots[b]);
+        }
+        slotShift = 64 - Integer.numberOfTrailingZeros(slots);
+        slotIds = file.asSlice(offset, slots * 4L).toArray(INT);
+        offset += slots * 4L;
+        namesOffset = offset;
+    }
+
+    /** Maps the dictionary file; the mapping lives as long as the arena. */
+    public static StationDictionary load(Path path, Arena arena) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new StationDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        }
+    }
+
+    /** An empty dictionary, for running without a dictionary file. */
+    public static StationDictionary empty() {
+        return new StationDictionary(MemorySegment.ofArray(serialize(List.of())));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** The id of the name with the given {@link #hash}, if it is in the dictionary; compare the name to be sure. */
+    public int candidate(long hash) {
+        return count == 0 ? -1 : slotIds[slot(hash, displacements, slotShift)];
+    }
+
+    /** The slot of a hash: the low bits select the bucket, whose displacement perturbs the hash for the slot. */
+    static int slot(long hash, long[] displacements, int slotShift) {
+        return (int) (((hash ^ displacements[(int) hash & (displacements.length - 1)]) * HASH_MULTIPLIER) >>> slotShift);
+    }
+
+    private static long displacement(int pilot) {
+        return pilot * PILOT_MULTIPLIER;
+    }
+
+    /**
+     * The perfect hash and the name words as plain arrays, for engines to keep in locals of their hot loop: the JIT
+     * does not hoist loads of final instance fields out of loops.
+     */
+    Lookup lookup() {
+        return new Lookup(slotShift, displacements, slotIds, words);
+    }
+
+    record Lookup(int slotShift, long[] displacements, int[] slotIds, long[] words) {
+    }
+
+    public long hashOf(int id) {
+        return hashes[id];
+    }
+
+    /** The first 8 name bytes as a little-endian word, zero padded. */
+    public long firstWord(int id) {
+        return words[2 * id];
+    }
+
+    /** Name bytes 8 to 15 as a little-endian word, zero padded. */
+    public long secondWord(int id) {
+        return words[2 * id + 1];
+    }
+
+    public int nameLength(int id) {
+        return lengths[id];
+    }
+
+    /** Native address of the name's UTF-8 bytes, for mapped dictionaries. */
+    public long nameAddress(int id) {
+        return file.address() + namesOffset + nameOffsets[id];
+    }
+
+    public byte[] nameBytes(int id) {
+        return file.asSlice(namesOffset + nameOffsets[id], lengths[id]).toArray(ValueLayout.JAVA_BYTE);
+    }
+
+    public String name(int id) {
+        return new String(nameBytes(id), StandardCharsets.UTF_8);
+    }
+
+    /** All ids, ordered by name as {@link String#compareTo}. */
+    public int[] sortedIds() {
+        return sortedIds.clone();
+    }
+
+    // ========================= Hashing =========================
+
+    /**
+     * Hash of a name: its little-endian words, zero padded, folded by multiplication, plus the length. For names of up
+     * to 16 bytes this is {@code mix(firstWord * HASH_MULTIPLIER + secondWord + length)}, which engines compute inline.
+     */
+    public static long hash(byte[] name) {
+        long hash = word(name, 0);
+        hash = hash * HASH_MULTIPLIER + word(name, 8);
+        for (int i = 16; i < name.length; i += 8) {
+            hash = hash * HASH_MULTIPLIER + word(name, i);
+        }
+        return mix(hash + name.length);
+    }
+
+    public static long mix(long x) {
+        x = (x ^ (x >>> 32)) * 0xD6E8FEB86659FD93L;
+        return x ^ (x >>> 32);
+    }
+
+    private static long word(byte[] name, int offset) {
+        long word = 0;
+        for (int i = Math.min(name.length, offset + 8) - 1; i >= offset; i--) {
+            word = (word << 8) | (name[i] & 0xFF);
+        }
+        return word;
+    }
+
+    // ========================= Writing =========================
+
+    /** Adds the names that are not in the dictionary yet, creating it if it does not exist, and returns how many. */
+    public static int append(Path path, Collection<String> names) throws IOException {
+        List<String> all = new ArrayList<>();
+        if (Files.exists(path)) {
+            try (Arena arena = Arena.ofConfined()) {
+                StationDictionary existing = load(path, arena);
+                for (int id = 0; id < existing.size(); id++) {
+                    all.add(existing.name(id));
+                }
+            }
+        }
+        Set<String> known = new LinkedHashSet<>(all);
+        int before = all.size();
+        for (String name : names) {
+            if (known.add(name)) {
+                all.add(name);
+            }
+        }
+        if (all.size() == before && Files.exists(path)) {
+            return 0;
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, serialize(all));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return all.size() - before;
+    }
+
+    // Names by id.
+    private static byte[] serialize(List<String> names) {
+        int n = names.size();
+        byte[][] bytes = new byte[n][];
+        long[] hashes = new long[n];
+        Map<Long, Integer> byHash = new HashMap<>();
+        int namesBytes = 0;
+        for (int id = 0; id < n; id++) {
+            bytes[id] = names.get(id).getBytes(StandardCharsets.UTF_8);
+            if (bytes[id].length == 0 || names.get(id).indexOf(';') >= 0) {
+                throw new IllegalArgumentException("Invalid station name '" + names.get(id) + "'");
+            }
+            hashes[id] = hash(bytes[id]);
+            Integer other = byHash.put(hashes[id], id);
+            if (other != null) {
+                throw new IllegalStateException("Names '" + names.get(other) + "' and '" + names.get(id) + "' have the same hash");
+            }
+            namesBytes += bytes[id].length;
+        }
+        Integer[] sorted = new Integer[n];
+        for (int id = 0; id < n; id++) {
+            sorted[id] = id;
+        }
+        Arrays.sort(sorted, (a, b) -> names.get(a).compareTo(names.get(b)));
+
+        int slots = Math.max(2, Integer.highestOneBit((int) Math.ceil(n / LOAD_FACTOR) * 2 - 1));
+        int[] pilots = new int[Math.max(1, Integer.highestOneBit(Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE) * 2 - 1))];
+        int[] slotIds = buildPerfectHash(hashes, pilots, slots);
+
+        long size = HEADER_SIZE + n * 40L + pilots.length * 4L + slots * 4L + namesBytes + 8;
+        ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(size)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(n).putInt(slots).putInt(pilots.length);
+        out.position(HEADER_SIZE);
+        for (long h : hashes) {
+            out.putLong(h);
+        }
+        for (byte[] b : bytes) {
+            out.putLong(word(b, 0)).putLong(word(b, 8));
+        }
+        for (byte[] b : bytes) {
+            out.putInt(b.length);
+        }
+        for (int id = 0, offset = 0; id < n; offset += bytes[id].length, id++) {
+            out.putInt(offset);
+        }
+        for (int id : sorted) {
+            out.putInt(id);
+        }
+        for (int v : pilots) {
+            out.putInt(v);
+        }
+        for (int v : slotIds) {
+            out.putInt(v);
+        }
+        for (byte[] b : bytes) {
+            out.put(b);
+        }
+        return out.array();
+    }
+
+    // Perfect hash over the hashes, returns the id by slot (0 for empty slots) and fills in the pilots.
+    private static int[] buildPerfectHash(long[] hashes, int[] pilots, int slots) {
+        List<List<Integer>> buckets = new ArrayList<>(pilots.length);
+        for (int b = 0; b < pilots.length; b++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int id = 0; id < hashes.length; id++) {
+            buckets.get((int) hashes[id] & (pilots.length - 1)).add(id);
+        }
+        // Largest buckets first, while most slots are free.
+        Integer[] order = new Integer[pilots.length];
+        for (int b = 0; b < pilots.length; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        int[] slotIds = new int[slots];
+        boolean[] taken = new boolean[slots];
+        int slotShift = 64 - Integer.numberOfTrailingZeros(slots);
+        for (int b : order) {
+            List<Integer> bucket = buckets.get(b);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            int[] candidate = new int[bucket.size()];
+            int pilot = 0;
+            search: for (; pilot < MAX_PILOT; pilot++) {
+                for (int i = 0; i < bucket.size(); i++) {
+                    long hash = hashes[bucket.get(i)];
+                    int slot = (int) (((hash ^ displacement(pilot)) * HASH_MULTIPLIER) >>> slotShift);
+                    if (taken[slot]) {
+                        continue search;
+                    }
+                    for (int j = 0; j < i; j++) {
+                        if (candidate[j] == slot) {
+                            continue search;
+                        }
+                    }
+                    candidate[i] = slot;
+                }
+                break;
+            }
+            if (pilot == MAX_PILOT) {
+                throw new IllegalStateException("No pilot found for a bucket of " + bucket.size() + " names");
+            }
+            for (int i = 0; i < bucket.size(); i++) {
+                taken[candidate[i]] = true;
+                slotIds[candidate[i]] = bucket.get(i);
+            }
+            pilots[b] = pilot;
+        }
+        return slotIds;
+    }
+
+    // ========================= Command line =========================
+
+    /** Station names from files in the format of {@code data/weather_stations.csv} or measurement files. */
+    public static Set<String> readNames(Path file) throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int delimiter = line.indexOf(';');
+                names.add(delimiter < 0 ? line : line.substring(0, delimiter));
+            }
+        }
+        return names;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !Set.of("build", "append", "info").contains(args[0])) {
+            System.err.println("Usage: station_dictionary.sh build|append <dictionary> <file>... | info <dictionary>");
+            System.exit(1);
+        }
+        Path path = Path.of(args[1]);
+        if (args[0].equals("info")) {
+            try (Arena arena = Arena.ofConfined()) {
+                StationDictionary dictionary = load(path, arena);
+                int[] sorted = dictionary.sortedIds();
+                System.out.printf("%,d stations, %,d perfect hash slots, %,d bytes%n", dictionary.size(), dictionary.slots,
+                        dictionary.file.byteSize());
+                if (sorted.length > 0) {
+                    System.out.printf("First '%s', last '%s'%n", dictionary.name(sorted[0]), dictionary.name(sorted[sorted.length - 1]));
+                }
+            }
+            return;
+        }
+        if (args[0].equals("build")) {
+            Files.deleteIfExists(path);
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 2; i < args.length; i++) {
+            names.addAll(readNames(Path.of(args[i])));
+        }
+        int added = append(path, names);
+        System.out.printf("Added %,d stations to %s%n", added, path);
+    }
+}
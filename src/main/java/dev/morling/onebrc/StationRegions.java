@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapping of stations to regions (countries, continents, ...), for rolling up per-station results.
+ * <p>
+ * The file uses the format of {@code data/weather_stations.csv}: one {@code station;region} pair per line, lines
+ * starting with {@code #} are comments. Each region is given a dense group id in order of first appearance, starting
+ * at 1; stations that are not listed belong to group {@link #UNMAPPED}, named {@value #UNMAPPED_NAME}.
+ */
+public final class StationRegions {
+
+    public static final int UNMAPPED = 0;
+    public static final String UNMAPPED_NAME = "(unmapped)";
+
+    private final Map<String, Integer> groupOfStation;
+    private final List<String> groupNames;
+
+    private StationRegions(Map<String, Integer> groupOfStation, List<String> groupNames) {
+        this.groupOfStation = groupOfStation;
+        this.groupNames = groupNames;
+    }
+
+    public static StationRegions load(Path file) throws IOException {
+        Map<String, Integer> groupOfStation = new HashMap<>();
+        Map<String, Integer> groupOfRegion = new HashMap<>();
+        List<String> groupNames = new ArrayList<>();
+        groupNames.add(UNMAPPED_NAME);
+
+        try (BufferedReader rows = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = rows.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separator = line.indexOf(';');
+                if (separator <= 0 || separator == line.length() - 1) {
+                    throw new IllegalArgumentException(file + ":" + lineNumber + ": expected station;region but got '" + line + "'");
+                }
+                String station = line.substring(0, separator);
+                String region = line.substring(separator + 1);
+                Integer group = groupOfRegion.computeIfAbsent(region, r -> {
+                    groupNames.add(r);
+                    return groupNames.size() - 1;
+                });
+                Integer previous = groupOfStation.put(station, group);
+                if (previous != null && !previous.equals(group)) {
+                    throw new IllegalArgumentException(file + ":" + lineNumber + ": station " + station + " is already mapped to "
+                            + groupNames.get(previous));
+                }
+            }
+        }
+        return new StationRegions(groupOfStation, List.copyOf(groupNames));
+    }
+
+    /** The group id of the station's region, or {@link #UNMAPPED}. */
+    public int groupOf(String station) {
+        return groupOfStation.getOrDefault(station, UNMAPPED);
+    }
+
+    public String groupName(int group) {
+        return groupNames.get(group);
+    }
+
+    /** Number of group ids, including {@link #UNMAPPED}. */
+    public int groupCount() {
+        return groupNames.size();
+    }
+}
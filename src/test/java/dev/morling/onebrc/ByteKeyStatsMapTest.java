@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks {@link ByteKeyStatsMap} against a plain map: key lengths from 0 to 40 bytes (inline and pooled keys, all
+ * byte values), growth from the smallest capacity, merging, lookups and both iteration orders, for heap and off-heap
+ * maps.
+ */
+class ByteKeyStatsMapTest {
+
+    private final Map<String, long[]> expected = new HashMap<>();
+    private ByteKeyStatsMap heap;
+    private ByteKeyStatsMap offHeap;
+    private ByteKeyStatsMap merged;
+
+    @BeforeEach
+    void aggregate() {
+        Random random = new Random(42);
+        byte[][] keys = new byte[2000][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new byte[i % 41];
+            random.nextBytes(keys[i]);
+        }
+        // Keys that only differ in their length or in a late byte.
+        keys[0] = new byte[0];
+        keys[1] = new byte[]{ 0 };
+        keys[2] = new byte[]{ 0, 0 };
+        keys[3] = Arrays.copyOf(keys[40], 40);
+        keys[3][39] ^= 1;
+
+        heap = ByteKeyStatsMap.onHeap(1);
+        offHeap = ByteKeyStatsMap.offHeap(1);
+        merged = ByteKeyStatsMap.offHeap(1);
+        for (int i = 0; i < 100_000; i++) {
+            byte[] key = keys[random.nextInt(keys.length)];
+            int value = random.nextInt(2001) - 1000;
+            (i % 2 == 0 ? heap : offHeap).add(key, value);
+            long[] stats = expected.computeIfAbsent(new String(key, StandardCharsets.ISO_8859_1),
+                    k -> new long[]{ Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0 });
+            stats[0] = Math.min(stats[0], value);
+            stats[1] = Math.max(stats[1], value);
+            stats[2] += value;
+            stats[3]++;
+        }
+        merged.merge(heap);
+        merged.merge(offHeap);
+    }
+
+    @AfterEach
+    void close() {
+        heap.close();
+        offHeap.close();
+        merged.close();
+    }
+
+    @Test
+    void mergedStatsMatchPlainMap() {
+        assertThat(merged.size()).isEqualTo(expected.size());
+        for (var e : expected.entrySet()) {
+            byte[] key = e.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            long[] x = e.getValue();
+            assertThat(merged.get(key)).as(Arrays.toString(key)).isEqualTo(new ByteKeyStatsMap.Stats((int) x[0], (int) x[1], x[2], x[3]));
+        }
+    }
+
+    @Test
+    void missingKeyIsNotFound() {
+        assertThat(merged.get(new byte[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9 })).isNull();
+    }
+
+    @Test
+    void sortedIterationOrdersByUnsignedBytes() {
+        List<byte[]> visited = new ArrayList<>();
+        merged.forEachSorted((key, min, max, sum, count) -> visited.add(key));
+        assertThat(visited).hasSize(expected.size());
+        for (int i = 1; i < visited.size(); i++) {
+            assertThat(Arrays.compareUnsigned(visited.get(i - 1), visited.get(i))).as("order at " + i).isNegative();
+        }
+    }
+
+    @Test
+    void iterationFollowsInsertionOrder() {
+        // The heap map's keys come first in the merged map, in the order they were added.
+        List<byte[]> heapKeys = new ArrayList<>();
+        heap.forEach((key, min, max, sum, count) -> heapKeys.add(key));
+        List<byte[]> mergedKeys = new ArrayList<>();
+        merged.forEach((key, min, max, sum, count) -> mergedKeys.add(key));
+        assertThat(mergedKeys).hasSize(expected.size());
+        for (int i = 0; i < heapKeys.size(); i++) {
+            assertThat(mergedKeys.get(i)).as("key at " + i).isEqualTo(heapKeys.get(i));
+        }
+    }
+}
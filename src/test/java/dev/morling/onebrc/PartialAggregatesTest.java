@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import dev.morling.onebrc.MeasurementSpliterator.StationStats;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Round trips of {@link PartialAggregates} against the expected outputs of the test samples: plain and front-coded
+ * blobs, read in place and through a stream, the merge of the file's two halves, which takes the sorted merge unless
+ * both halves have the same stations, and the merge of the whole file with itself, which takes the vectorized merge
+ * and must double sums and counts only.
+ */
+class PartialAggregatesTest {
+
+    private Arena arena;
+    private FileChannel channel;
+
+    static Stream<Path> samples() throws IOException {
+        try (Stream<Path> files = Files.list(Path.of("src/test/resources/samples"))) {
+            return files.filter(p -> p.toString().endsWith(".txt"))
+                    .filter(p -> Files.exists(expectedOutput(p)))
+                    .sorted()
+                    .toList()
+                    .stream();
+        }
+    }
+
+    @BeforeEach
+    void createArena() {
+        arena = Arena.ofConfined();
+    }
+
+    @AfterEach
+    void closeFile() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        arena.close();
+    }
+
+    @ParameterizedTest
+    @MethodSource("samples")
+    void roundTrips(Path sample) throws IOException {
+        String expected = Files.readString(expectedOutput(sample)).strip();
+        MemorySegment file = map(sample);
+        SortedMap<String, StationStats> whole = aggregate(file);
+
+        PartialAggregates plain = PartialAggregates.of(whole, 0, file.byteSize(), arena);
+        PartialAggregates frontCoded = PartialAggregates.builder().range(0, file.byteSize()).addAll(whole).build(arena, true);
+        assertThat(print(plain)).as("plain").isEqualTo(expected);
+        assertThat(print(frontCoded)).as("front-coded").isEqualTo(expected);
+        assertThat(print(PartialAggregates.of(MemorySegment.ofArray(frontCoded.segment().toArray(ValueLayout.JAVA_BYTE)))))
+                .as("front-coded, read in place").isEqualTo(expected);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        plain.writeTo(stream);
+        frontCoded.writeTo(stream);
+        ByteArrayInputStream in = new ByteArrayInputStream(stream.toByteArray());
+        assertThat(print(PartialAggregates.readFrom(in, arena))).as("plain, streamed").isEqualTo(expected);
+        assertThat(print(PartialAggregates.readFrom(in, arena))).as("front-coded, streamed").isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @MethodSource("samples")
+    void mergesHalves(Path sample) throws IOException {
+        String expected = Files.readString(expectedOutput(sample)).strip();
+        MemorySegment file = map(sample);
+        long size = file.byteSize();
+
+        // Split after the line that contains the middle byte.
+        long middle = size / 2;
+        while (middle < size && file.get(ValueLayout.JAVA_BYTE, middle) != '\n') {
+            middle++;
+        }
+        middle = Math.min(size, middle + 1);
+        PartialAggregates first = PartialAggregates.of(aggregate(file.asSlice(0, middle)), 0, middle, arena);
+        PartialAggregates second = PartialAggregates.builder().range(middle, size).addAll(aggregate(file.asSlice(middle))).build(arena, true);
+
+        PartialAggregates merged = PartialAggregates.merge(second, first, arena);
+        assertThat(print(merged)).isEqualTo(expected);
+        assertThat(merged.rangeStart()).isZero();
+        assertThat(merged.rangeEnd()).isEqualTo(size);
+    }
+
+    @ParameterizedTest
+    @MethodSource("samples")
+    void mergesWithItself(Path sample) throws IOException {
+        MemorySegment file = map(sample);
+        SortedMap<String, StationStats> whole = aggregate(file);
+        PartialAggregates plain = PartialAggregates.of(whole, 0, file.byteSize(), arena);
+        PartialAggregates frontCoded = PartialAggregates.builder().range(0, file.byteSize()).addAll(whole).build(arena, true);
+
+        PartialAggregates doubled = PartialAggregates.merge(plain, frontCoded, arena);
+        assertThat(doubled.rangeStart()).as("range of overlapping partials").isEqualTo(PartialAggregates.NO_RANGE);
+        assertThat(doubled.size()).isEqualTo(plain.size());
+        for (int i = 0; i < plain.size(); i++) {
+            String station = plain.nameString(i);
+            assertThat(doubled.name(i).mismatch(plain.name(i))).as(station).isEqualTo(-1);
+            assertThat(doubled.min(i)).as(station).isEqualTo(plain.min(i));
+            assertThat(doubled.max(i)).as(station).isEqualTo(plain.max(i));
+            assertThat(doubled.sum(i)).as(station).isEqualTo(2 * plain.sum(i));
+            assertThat(doubled.count(i)).as(station).isEqualTo(2 * plain.count(i));
+        }
+    }
+
+    private MemorySegment map(Path sample) throws IOException {
+        channel = FileChannel.open(sample, StandardOpenOption.READ);
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+    }
+
+    private static Path expectedOutput(Path sample) {
+        return Path.of(sample.toString().replaceFirst("\\.txt$", ".out"));
+    }
+
+    private static SortedMap<String, StationStats> aggregate(MemorySegment lines) {
+        return StreamSupport.stream(MeasurementSpliterator.of(lines), false).collect(MeasurementSpliterator.toStationStats());
+    }
+
+    private static String print(PartialAggregates partial) {
+        return partial.toStationStats().toString();
+    }
+}
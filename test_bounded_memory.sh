@@ -0,0 +1,154 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+
+# Runs calculate_average_bounded.sh under a hard memory limit and checks its
+# output against a reference. The limit is a cgroup v2 memory.max when the
+# unified hierarchy has the memory controller, and falls back to the cgroup v1
+# memory.limit_in_bytes otherwise. Swap is disallowed where the kernel allows
+# it, so that going over the limit ends in the OOM killer, not in swapping.
+# Needs write access to the cgroup hierarchy, which usually means root.
+
+set -euo pipefail
+
+if [ "$#" -eq 0 ] || [ "$#" -gt 3 ] || [ "$1" = "-h" ]; then
+  echo "Usage: ./test_bounded_memory.sh <input file> [limit in MB] [expected output]"
+  echo
+  echo "Runs the bounded implementation on <input file> inside a memory cgroup limited"
+  echo "to [limit in MB] (default 256), with a memory budget of the same size, and diffs"
+  echo "the result with [expected output]. Without it, <input file> with .out in place of"
+  echo ".txt is used if it exists; otherwise the expected output is computed by running"
+  echo "REFERENCE_FORK (default shipilev) without a limit first."
+  echo "Set CONTROL_FORK to also run another implementation under the same limit, for comparison."
+  echo
+  echo "Examples:"
+  echo "./test_bounded_memory.sh src/test/resources/samples/measurements-10000-unique-keys.txt"
+  echo "./test_bounded_memory.sh /data/measurements.txt 256"
+  echo "CONTROL_FORK=baseline ./test_bounded_memory.sh /data/measurements.txt 256 /data/measurements.out"
+  exit 1
+fi
+
+INPUT=$1
+LIMIT_MB=${2:-256}
+EXPECTED=${3:-${INPUT%.txt}.out}
+CGROUPS=()
+ACTUAL=$(mktemp)
+COMPUTED_EXPECTED=""
+# Set to the cgroup v2 root when this script enabled the memory controller there.
+ENABLED_MEMORY_IN=""
+
+cleanup() {
+  rm -f measurements.txt "$ACTUAL" "$COMPUTED_EXPECTED"
+  for cgroup in "${CGROUPS[@]}"; do
+    rmdir "$cgroup" 2>/dev/null || true
+  done
+  # Only possible once the children are gone.
+  if [ -n "$ENABLED_MEMORY_IN" ]; then
+    echo "-memory" > "$ENABLED_MEMORY_IN/cgroup.subtree_control" || true
+  fi
+}
+trap cleanup EXIT
+
+rm -f measurements.txt
+ln -s "$INPUT" measurements.txt
+
+if [ ! -f "$EXPECTED" ]; then
+  COMPUTED_EXPECTED=$(mktemp)
+  EXPECTED=$COMPUTED_EXPECTED
+  echo "Computing the expected output with calculate_average_${REFERENCE_FORK:-shipilev}.sh"
+  "./calculate_average_${REFERENCE_FORK:-shipilev}.sh" > "$EXPECTED"
+fi
+
+# Find the memory controller.
+V2_ROOT=$(awk '$9 == "cgroup2" { print $5; exit }' /proc/self/mountinfo)
+V1_ROOT=$(awk '$9 == "cgroup" && $NF ~ /(^|,)memory(,|$)/ { print $5; exit }' /proc/self/mountinfo)
+if [ -n "$V2_ROOT" ] && grep -qw memory "$V2_ROOT/cgroup.controllers" 2>/dev/null; then
+  # Children of the root, which is exempt from the no-internal-processes rule.
+  if ! grep -qw memory "$V2_ROOT/cgroup.subtree_control"; then
+    echo "+memory" > "$V2_ROOT/cgroup.subtree_control"
+    ENABLED_MEMORY_IN=$V2_ROOT
+  fi
+  PARENT=$V2_ROOT
+  echo "Using cgroup v2 memory.max=${LIMIT_MB}M"
+elif [ -n "$V1_ROOT" ]; then
+  # Children of our own memory cgroup, which we are more likely to be allowed to write.
+  PARENT="$V1_ROOT$(awk -F: '$2 ~ /(^|,)memory(,|$)/ { print $3; exit }' /proc/self/cgroup)"
+  echo "Using cgroup v1 memory.limit_in_bytes=${LIMIT_MB}M"
+else
+  echo "No memory cgroup controller found"
+  exit 1
+fi
+
+# Creates a fresh cgroup limited to LIMIT_MB, so that every run starts from zero usage.
+make_cgroup() {
+  CGROUP="$PARENT/1brc-$1-$$"
+  mkdir "$CGROUP"
+  CGROUPS+=("$CGROUP")
+  if [ -f "$CGROUP/memory.max" ]; then
+    echo "${LIMIT_MB}M" > "$CGROUP/memory.max"
+    if [ -f "$CGROUP/memory.swap.max" ]; then
+      echo 0 > "$CGROUP/memory.swap.max"
+    fi
+  else
+    echo "${LIMIT_MB}M" > "$CGROUP/memory.limit_in_bytes"
+    if [ -f "$CGROUP/memory.memsw.limit_in_bytes" ]; then
+      echo "${LIMIT_MB}M" > "$CGROUP/memory.memsw.limit_in_bytes"
+    fi
+    echo 0 > "$CGROUP/memory.swappiness" 2>/dev/null || true
+  fi
+}
+
+peak_mb() {
+  if [ -f "$CGROUP/memory.peak" ]; then
+    echo $(( $(cat "$CGROUP/memory.peak") >> 20 ))
+  elif [ -f "$CGROUP/memory.max_usage_in_bytes" ]; then
+    echo $(( $(cat "$CGROUP/memory.max_usage_in_bytes") >> 20 ))
+  else
+    echo "?"
+  fi
+}
+
+oom_kills() {
+  if [ -f "$CGROUP/memory.events" ]; then
+    awk '$1 == "oom_kill" { print $2 }' "$CGROUP/memory.events"
+  else
+    awk '$1 == "oom_kill" { n = $2 } END { print (n == "" ? "?" : n) }' "$CGROUP/memory.oom_control"
+  fi
+}
+
+# Runs the given implementation as the only member of a new cgroup, and reports how it went.
+run_limited() {
+  make_cgroup "$1"
+  echo "Running calculate_average_$1.sh under the limit"
+  set +e
+  sh -c 'echo $$ > "$1/cgroup.procs"; exec "./calculate_average_$2.sh"' _ "$CGROUP" "$1" > "$ACTUAL"
+  RC=$?
+  set -e
+  echo "  exit code $RC, peak usage $(peak_mb) MB, OOM kills $(oom_kills)"
+}
+
+if [ -n "${CONTROL_FORK:-}" ]; then
+  run_limited "$CONTROL_FORK"
+fi
+
+export BUDGET_MB=$LIMIT_MB
+run_limited bounded
+if [ "$RC" != 0 ]; then
+  exit 1
+fi
+diff --color=always <(./tocsv.sh < "$ACTUAL") <(./tocsv.sh < "$EXPECTED")
+echo "Output matches $EXPECTED"